@@ -0,0 +1,440 @@
+package com.synesthesiam.jsgf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.rule.JSGFRule;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Decides whether every sentence of a GrammarNode graph has exactly one path.
+ *
+ * Empty nodes are collapsed first: positions are the initial node, word nodes
+ * and final nodes, and each position has transitions to the positions it
+ * reaches through empty nodes, with the number of such empty paths (capped at
+ * 2, and 2 through a cycle). Pairs of positions that two paths can reach with
+ * the same words (the product automaton) are then searched breadth-first
+ * from (initial, initial). The graph is ambiguous iff two paths split at a
+ * diagonal pair (to different positions, or to one position through two
+ * empty paths) and can still end together in a pair of final nodes.
+ *
+ * The search stops once maxWitnesses places where paths split are found, so
+ * an ambiguous grammar is usually detected after a few pairs. Paths that
+ * exceed the repetition and length limits are included, so an unambiguous
+ * result holds for every limit.
+ *
+ * Collapsing can connect every alternative of one rule to every alternative
+ * of the next. Positions whose only successor is the same empty node share
+ * their transitions (and a diagonal pair of such positions is only expanded
+ * once). The analysis gives up after MAX_STEPS arcs and pairs of transitions
+ * or once it stores MAX_STATES transitions and pairs; the grammar is then
+ * treated as ambiguous.
+ */
+class AmbiguityAnalysis {
+  // Arcs followed and pairs of transitions compared
+  static final long MAX_STEPS = 5000000;
+
+  // Transitions and pairs stored
+  static final long MAX_STATES = 250000;
+
+  // Positions and their transitions by label as {target, empty paths}
+  private final List<GrammarNode> positions = new ArrayList<>();
+  private final Map<GrammarNode, Integer> positionIds = new IdentityHashMap<>();
+  private final List<Map<String, List<int[]>>> transitions = new ArrayList<>();
+
+  // Transitions of the positions with a single empty successor, by successor
+  private final Map<GrammarNode, Map<String, List<int[]>>> sharedTransitions =
+      new IdentityHashMap<>();
+
+  // Transitions already expanded from a diagonal pair
+  private final Set<Map<String, List<int[]>>> expandedDiagonals =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+
+  // Pairs of positions (first <= second), the pair each was first reached
+  // from and the pairs known not to lead to a pair of final nodes
+  private final Map<Long, Integer> pairIds = new HashMap<>();
+  private final List<int[]> pairs = new ArrayList<>();
+  private final List<Integer> parents = new ArrayList<>();
+  private final Set<Integer> deadPairs = new HashSet<>();
+
+  private final int maxWitnesses;
+  private final Set<Integer> splitPositions = new HashSet<>();
+  private final List<String> witnesses = new ArrayList<>();
+
+  private long steps = 0;
+  private long states = 0;
+  private boolean complete = true;
+
+  public AmbiguityAnalysis(GrammarNode initialNode, int maxWitnesses) {
+    this.maxWitnesses = maxWitnesses;
+    positionId(initialNode);
+
+    try {
+      search();
+    } catch (OutOfSteps ex) {
+      complete = false;
+    }
+  }
+
+  /**
+   * Checks if a sentence with two paths was found, or if the grammar was too
+   * large to check.
+   */
+  public boolean isAmbiguous() {
+    return !complete || !witnesses.isEmpty();
+  }
+
+  /**
+   * Checks if the analysis finished within MAX_STEPS and MAX_STATES.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * Gets sentences that have two paths, one for each place where paths split
+   * (at most maxWitnesses).
+   */
+  public List<String> getWitnesses() {
+    return Collections.unmodifiableList(witnesses);
+  }
+
+  // --------------------------------------------------------------------------
+
+  private void search() {
+    pairId(0, 0, -1);
+    for (int pair = 0; pair < pairs.size(); pair++) {
+      int p = pairs.get(pair)[0];
+      int q = pairs.get(pair)[1];
+
+      // Both paths are still the same, so they can only go where the paths
+      // of an earlier position with the same transitions went
+      if ((p == q) && !expandedDiagonals.add(getTransitions(p))) {
+        continue;
+      }
+
+      for (Map.Entry<String, List<int[]>> label : getTransitions(p).entrySet()) {
+        List<int[]> others = getTransitions(q).get(label.getKey());
+        if (others == null) {
+          continue;
+        }
+
+        for (int[] x : label.getValue()) {
+          for (int[] y : others) {
+            step();
+            int next = pairId(x[0], y[0], pair);
+            boolean split = (p == q) && ((x[0] != y[0]) || (x[1] > 1));
+
+            if (split && !splitPositions.contains(p)) {
+              List<String> suffix = findSuffix(next);
+              if (suffix != null) {
+                splitPositions.add(p);
+                witnesses.add(witness(next, suffix));
+                if (witnesses.size() >= maxWitnesses) {
+                  return;
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /* Words on the shortest way from a pair to a pair of final nodes or null */
+  private List<String> findSuffix(int start) {
+    if (deadPairs.contains(start)) {
+      return null;
+    }
+
+    Map<Integer, Integer> from = new HashMap<>();
+    Deque<Integer> queue = new ArrayDeque<>();
+    from.put(start, -1);
+    queue.add(start);
+
+    while (!queue.isEmpty()) {
+      int pair = queue.poll();
+      int p = pairs.get(pair)[0];
+      int q = pairs.get(pair)[1];
+
+      if (positions.get(p).isFinalNode() && positions.get(q).isFinalNode()) {
+        List<String> words = new ArrayList<>();
+        for (; pair != start; pair = from.get(pair)) {
+          words.add(getLabel(pair));
+        }
+
+        Collections.reverse(words);
+        return words;
+      }
+
+      for (Map.Entry<String, List<int[]>> label : getTransitions(p).entrySet()) {
+        List<int[]> others = getTransitions(q).get(label.getKey());
+        if (others == null) {
+          continue;
+        }
+
+        for (int[] x : label.getValue()) {
+          for (int[] y : others) {
+            step();
+            int next = pairId(x[0], y[0], pair);
+            if (!deadPairs.contains(next) && (from.putIfAbsent(next, pair) == null)) {
+              queue.add(next);
+            }
+          }
+        }
+      }
+    }
+
+    deadPairs.addAll(from.keySet());
+    return null;
+  }
+
+  /* Words to a pair followed by a suffix */
+  private String witness(int pair, List<String> suffix) {
+    List<String> words = new ArrayList<>();
+    for (int p = pair; parents.get(p) >= 0; p = parents.get(p)) {
+      words.add(getLabel(p));
+    }
+
+    Collections.reverse(words);
+    words.addAll(suffix);
+    words.removeIf(String::isEmpty);
+    return String.join(" ", words);
+  }
+
+  private int pairId(int p, int q, int parent) {
+    long key = ((long) Math.min(p, q) << 32) | Math.max(p, q);
+    Integer id = pairIds.get(key);
+    if (id == null) {
+      store();
+      id = pairs.size();
+      pairIds.put(key, id);
+      pairs.add(new int[] { Math.min(p, q), Math.max(p, q) });
+      parents.add(parent);
+    }
+
+    return id;
+  }
+
+  private void step() {
+    if (++steps > MAX_STEPS) {
+      throw new OutOfSteps();
+    }
+  }
+
+  private void store() {
+    if (++states > MAX_STATES) {
+      throw new OutOfSteps();
+    }
+  }
+
+  /* Word of the positions of a pair (both have the same one) */
+  private String getLabel(int pair) {
+    GrammarNode node = positions.get(pairs.get(pair)[0]);
+    return node.isFinalNode() ? "" : GrammarWalker.getSpelling(node);
+  }
+
+  // --------------------------------------------------------------------------
+
+  private int positionId(GrammarNode node) {
+    Integer id = positionIds.get(node);
+    if (id == null) {
+      id = positions.size();
+      positionIds.put(node, id);
+      positions.add(node);
+      transitions.add(null);
+    }
+
+    return id;
+  }
+
+  private static boolean isPosition(GrammarNode node) {
+    return node.isFinalNode() || (GrammarWalker.getSpelling(node) != null);
+  }
+
+  private Map<String, List<int[]>> getTransitions(int position) {
+    Map<String, List<int[]>> byLabel = transitions.get(position);
+    if (byLabel == null) {
+      // Positions with the same single successor reach the same positions
+      GrammarNode node = positions.get(position);
+      GrammarArc[] arcs = node.getSuccessors();
+      if ((arcs.length == 1) && !isPosition(arcs[0].getGrammarNode())) {
+        byLabel = sharedTransitions.get(arcs[0].getGrammarNode());
+        if (byLabel == null) {
+          byLabel = collapse(node);
+          sharedTransitions.put(arcs[0].getGrammarNode(), byLabel);
+        }
+      } else {
+        byLabel = collapse(node);
+      }
+
+      transitions.set(position, byLabel);
+    }
+
+    return byLabel;
+  }
+
+  /*
+   * Transitions from a position through empty nodes. Paths are counted in
+   * topological order (Kahn's algorithm); empty nodes that are left over are
+   * on or after a cycle and have unboundedly many paths.
+   */
+  private Map<String, List<int[]>> collapse(GrammarNode source) {
+    Map<String, List<int[]>> byLabel = new HashMap<>();
+    if (source.isFinalNode()) {
+      return byLabel;
+    }
+
+    // Empty nodes reachable from the source and their in-degrees
+    Map<GrammarNode, Integer> inDegrees = new IdentityHashMap<>();
+    Deque<GrammarNode> unvisited = new ArrayDeque<>();
+    unvisited.push(source);
+    while (!unvisited.isEmpty()) {
+      for (GrammarArc arc : unvisited.pop().getSuccessors()) {
+        step();
+        GrammarNode next = arc.getGrammarNode();
+        if (!isPosition(next) && (inDegrees.merge(next, 1, Integer::sum) == 1)) {
+          unvisited.push(next);
+        }
+      }
+    }
+
+    Map<GrammarNode, Integer> pathCounts = new IdentityHashMap<>();
+    Map<GrammarNode, Integer> targetCounts = new IdentityHashMap<>();
+    Deque<GrammarNode> ready = new ArrayDeque<>();
+    pathCounts.put(source, 1);
+    ready.push(source);
+
+    while (!ready.isEmpty()) {
+      GrammarNode node = ready.pop();
+      int count = pathCounts.get(node);
+      for (GrammarArc arc : node.getSuccessors()) {
+        GrammarNode next = arc.getGrammarNode();
+        if (isPosition(next)) {
+          targetCounts.merge(next, count, (a, b) -> Math.min(2, a + b));
+        } else {
+          pathCounts.merge(next, count, (a, b) -> Math.min(2, a + b));
+          if (inDegrees.merge(next, -1, Integer::sum) == 0) {
+            ready.push(next);
+          }
+        }
+      }
+    }
+
+    for (Map.Entry<GrammarNode, Integer> inDegree : inDegrees.entrySet()) {
+      if (inDegree.getValue() > 0) {
+        for (GrammarArc arc : inDegree.getKey().getSuccessors()) {
+          if (isPosition(arc.getGrammarNode())) {
+            targetCounts.put(arc.getGrammarNode(), 2);
+          }
+        }
+      }
+    }
+
+    for (Map.Entry<GrammarNode, Integer> target : targetCounts.entrySet()) {
+      GrammarNode node = target.getKey();
+      String label = node.isFinalNode() ? "" : GrammarWalker.getSpelling(node);
+      store();
+      byLabel.computeIfAbsent(label, key -> new ArrayList<>())
+          .add(new int[] { positionId(node), target.getValue() });
+    }
+
+    return byLabel;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Finds the rule where two parses of a sentence differ.
+   *
+   * @return the innermost rule (or the two public rules) that contains the
+   *         difference, the public rule if the parses look the same, or null
+   *         if the sentence doesn't parse
+   */
+  public static String findRule(JSGFGrammar grammar, String sentence) {
+    List<RuleParse> parses = RuleParser.mparse(sentence, grammar, null);
+    if (parses == null) {
+      return null;
+    }
+
+    List<RuleParse> distinct = new ArrayList<>();
+    Set<String> seen = new HashSet<>();
+    for (RuleParse parse : parses) {
+      if (grammar.getRuleGrammar().isRulePublic(parse.getRuleReference().getRuleName())
+          && seen.add(parse.toString())) {
+        distinct.add(parse);
+      }
+    }
+
+    if (distinct.isEmpty()) {
+      return null;
+    } else if (distinct.size() == 1) {
+      // The paths only differ in ways the parse doesn't show (e.g. <NULL>)
+      return "<" + distinct.get(0).getRuleReference().getRuleName() + ">";
+    }
+
+    return findRule(distinct.get(0), distinct.get(1), null);
+  }
+
+  private static String findRule(JSGFRule first, JSGFRule second, String rule) {
+    if (first.toString().equals(second.toString())) {
+      return null;
+    }
+
+    if ((first instanceof RuleParse) && (second instanceof RuleParse)) {
+      String firstName = ((RuleParse) first).getRuleReference().getRuleName();
+      String secondName = ((RuleParse) second).getRuleReference().getRuleName();
+      if (!firstName.equals(secondName)) {
+        return (rule != null) ? rule : String.format("<%s>, <%s>", firstName, secondName);
+      }
+
+      String inner = findRule(((RuleParse) first).getParse(), ((RuleParse) second).getParse(),
+                              "<" + firstName + ">");
+      return (inner != null) ? inner : rule;
+    }
+
+    if ((first instanceof JSGFRuleSequence) && (second instanceof JSGFRuleSequence)) {
+      List<JSGFRule> firstItems = ((JSGFRuleSequence) first).getRules();
+      List<JSGFRule> secondItems = ((JSGFRuleSequence) second).getRules();
+
+      // Empty matches are left out, so the sizes may differ
+      for (int i = 0; i < Math.min(firstItems.size(), secondItems.size()); i++) {
+        String inner = findRule(firstItems.get(i), secondItems.get(i), rule);
+        if (inner != null) {
+          return inner;
+        }
+      }
+    } else if ((first instanceof JSGFRuleTag) && (second instanceof JSGFRuleTag)
+               && ((JSGFRuleTag) first).getTag().equals(((JSGFRuleTag) second).getTag())) {
+      return findRule(((JSGFRuleTag) first).getRule(), ((JSGFRuleTag) second).getRule(), rule);
+    }
+
+    return rule;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Ends the analysis once it has taken MAX_STEPS or stored MAX_STATES */
+  private static class OutOfSteps extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    OutOfSteps() {
+      super(null, null, false, false);
+    }
+  }
+
+}  // class AmbiguityAnalysis
@@ -0,0 +1,217 @@
+package com.synesthesiam.jsgf;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FilenameUtils;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Runs one mode over many grammars concurrently in a single JVM.
+ *
+ * All grammars share an ImportCache, so imported rule libraries are parsed
+ * once. Each grammar's output goes to its own file in the output directory
+ * and per-grammar timings are printed to stderr at the end. Grammars without
+ * public rules (rule libraries that only get imported) are skipped.
+ */
+class BatchProcessor {
+  private static final Logger logger = Logger.getLogger(BatchProcessor.class.getName());
+
+  public interface Loader {
+    CompiledGrammar load(File grammarFile, ImportCache importCache) throws IOException;
+  }
+
+  public interface Mode {
+    void run(CompiledGrammar grammar, PrintStream out) throws IOException;
+  }
+
+  private final File outputDir;
+  private final String outputExtension;
+  private final Loader loader;
+  private final Mode mode;
+  private final ImportCache importCache;
+
+  /**
+   * @param sphinxLoader whether the loader uses the Sphinx JSGF parser (for
+   *     the import cache)
+   */
+  public BatchProcessor(File outputDir, String outputExtension, Loader loader, Mode mode,
+                        boolean sphinxLoader) {
+    this.outputDir = outputDir;
+    this.outputExtension = outputExtension;
+    this.loader = loader;
+    this.mode = mode;
+    this.importCache = new ImportCache(sphinxLoader);
+  }
+
+  /**
+   * Lists the grammars in a directory (*.gram) or manifest file (one path
+   * per line relative to the manifest, # starts a comment).
+   */
+  public static List<File> listGrammars(File batch) throws IOException {
+    List<File> grammarFiles = new ArrayList<>();
+
+    if (batch.isDirectory()) {
+      File[] files = batch.listFiles((dir, name) -> name.endsWith(".gram"));
+      if (files != null) {
+        Arrays.sort(files);
+        grammarFiles.addAll(Arrays.asList(files));
+      }
+    } else {
+      File baseDir = batch.getAbsoluteFile().getParentFile();
+      for (String line : Files.readAllLines(batch.toPath(), Charset.defaultCharset())) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+
+        File grammarFile = new File(line);
+        if (!grammarFile.isAbsolute()) {
+          grammarFile = new File(baseDir, line);
+        }
+
+        grammarFiles.add(grammarFile);
+      }
+    }
+
+    return grammarFiles;
+  }
+
+  /**
+   * Processes the grammars with the given number of threads.
+   *
+   * @return the number of grammars that failed
+   */
+  public int run(List<File> grammarFiles, int jobs) throws IOException {
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Can't create output directory " + outputDir);
+    }
+
+    long startTime = System.nanoTime();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, jobs));
+    List<Future<Result>> futures = new ArrayList<>();
+
+    try {
+      for (File grammarFile : grammarFiles) {
+        futures.add(executor.submit(() -> process(grammarFile)));
+      }
+
+      List<Result> results = new ArrayList<>();
+      for (Future<Result> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new IOException(ex);
+        } catch (ExecutionException ex) {
+          throw new IOException(ex.getCause());
+        }
+      }
+
+      return printSummary(results, (System.nanoTime() - startTime) / 1000000);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static class Result {
+    String name;
+    long loadMillis;
+    long runMillis;
+    boolean skipped;
+    String error;
+  }
+
+  private Result process(File grammarFile) {
+    Result result = new Result();
+    result.name = FilenameUtils.removeExtension(grammarFile.getName());
+
+    try {
+      long startTime = System.nanoTime();
+      CompiledGrammar compiled = loader.load(grammarFile, importCache);
+      result.loadMillis = (System.nanoTime() - startTime) / 1000000;
+
+      if (!hasPublicRules(compiled.getGrammar().getRuleGrammar())) {
+        result.skipped = true;
+        return result;
+      }
+
+      startTime = System.nanoTime();
+      File outputFile = new File(outputDir, result.name + outputExtension);
+      try (PrintStream out =
+           new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+        mode.run(compiled, out);
+      }
+      result.runMillis = (System.nanoTime() - startTime) / 1000000;
+
+    } catch (IOException ex) {
+      if (ex.getCause() instanceof JSGFGrammarParseException) {
+        result.error = JsgfGen.describeParseError((JSGFGrammarParseException)ex.getCause());
+      } else {
+        result.error = String.valueOf(ex.getMessage());
+      }
+    } catch (RuntimeException ex) {
+      result.error = String.valueOf(ex.getMessage());
+    }
+
+    if (result.error != null) {
+      logger.warning(String.format("Failed to process %s: %s", grammarFile, result.error));
+    }
+
+    return result;
+  }
+
+  private static boolean hasPublicRules(JSGFRuleGrammar ruleGrammar) {
+    for (String ruleName : ruleGrammar.getRuleNames()) {
+      if (ruleGrammar.isRulePublic(ruleName)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private int printSummary(List<Result> results, long totalMillis) {
+    System.err.println(String.format("%-30s %10s %10s", "grammar", "load ms", "run ms"));
+    int failed = 0;
+    int skipped = 0;
+    for (Result result : results) {
+      if (result.skipped) {
+        System.err.println(String.format("%-30s %21s", result.name, "no public rules"));
+        skipped++;
+      } else if (result.error == null) {
+        System.err.println(String.format("%-30s %10d %10d",
+                                         result.name, result.loadMillis, result.runMillis));
+      } else {
+        System.err.println(String.format("%-30s %21s", result.name, "FAILED"));
+        failed++;
+      }
+    }
+
+    System.err.println(String.format(
+        "%d grammar(s) in %d ms, %d failed, %d skipped, %d imported grammar(s) parsed once",
+        results.size(), totalMillis, failed, skipped, importCache.size()));
+
+    return failed;
+  }
+
+}  // class BatchProcessor
@@ -0,0 +1,198 @@
+package com.synesthesiam.jsgf;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+import edu.cmu.sphinx.util.LogMath;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Lazily enumerates sentences in descending probability with a best-first
+ * (k-shortest paths) search over the GrammarNode graph.
+ *
+ * Partial paths are kept in a priority queue ordered by log probability.
+ * Extending a path never increases its probability, so complete paths come
+ * out of the queue in order. Each node is expanded at most k times (once per
+ * distinct word prefix), which bounds the work by k rather than by the number
+ * of sentences in the grammar. With a length limit, the completions of a
+ * prefix depend on its length too, so the k expansions are counted per node
+ * and prefix length instead.
+ *
+ * With a repeat limit, a path counts how often it went around each
+ * repetition since entering it, as GrammarWalker does. Only the counts of
+ * the repetitions around a node affect its completions, so a state carries
+ * those and prefixes and expansions are counted per node and counts.
+ */
+class BestFirstSearch implements Iterator<ScoredSentence> {
+  private final int k;
+  private final int maxRepeat;
+  private final int maxLength;
+  private final GrammarWalker.BackArcs backArcs;
+
+  private final PriorityQueue<State> queue =
+      new PriorityQueue<>(Comparator.comparingDouble((State s) -> -s.score)
+                          .thenComparingLong(s -> s.order));
+
+  // Per prefix length if the length is limited
+  private final Map<String, int[]> expansions = new HashMap<>();
+  private final Set<String> expandedPrefixes = new HashSet<>();
+  private final Map<GrammarNode, double[]> arcScores = new HashMap<>();
+
+  private long nextOrder = 0;
+  private ScoredSentence next = null;
+
+  public BestFirstSearch(GrammarNode initialNode, int k, GrammarWalker walker) {
+    this.k = k;
+    this.maxRepeat = walker.getMaxRepeat();
+    this.maxLength = walker.getMaxLength();
+    this.backArcs = walker.getBackArcs(initialNode);
+    push(initialNode, 0, "", 0, enter(null, null, initialNode, false));
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      next = search();
+    }
+
+    return next != null;
+  }
+
+  @Override
+  public ScoredSentence next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    ScoredSentence sentence = next;
+    next = null;
+    return sentence;
+  }
+
+  // --------------------------------------------------------------------------
+
+  private ScoredSentence search() {
+    while (!queue.isEmpty()) {
+      State state = queue.poll();
+
+      // The same prefix at the same node (and with the same repeats) has
+      // the same completions, so only the most probable copy is useful.
+      String key = (state.repeats.length == 0)
+          ? String.valueOf(state.node.getID())
+          : state.node.getID() + " " + Arrays.toString(state.repeats);
+      if (!expandedPrefixes.add(key + " " + state.words)) {
+        continue;
+      }
+
+      if (state.node.isFinalNode()) {
+        return new ScoredSentence(state.words, state.score);
+      }
+
+      // Any more prefixes can't be among the k best through this node (with
+      // as many words left)
+      boolean limited = (maxLength != GrammarWalker.UNLIMITED);
+      int[] counts = expansions.computeIfAbsent(
+          key, node -> new int[limited ? (maxLength + 1) : 1]);
+      if (++counts[limited ? state.length : 0] > k) {
+        continue;
+      }
+
+      GrammarArc[] arcs = state.node.getSuccessors();
+      double[] scores = getArcScores(state.node);
+      for (int i = 0; i < arcs.length; i++) {
+        GrammarNode nextNode = arcs[i].getGrammarNode();
+        String spelling = nextNode.isFinalNode() ? null : GrammarWalker.getSpelling(nextNode);
+
+        int[] repeats = enter(state.node, state.repeats, nextNode,
+                              backArcs.arcs.contains(arcs[i]));
+        if (repeats == null) {
+          continue;
+        }
+
+        if (spelling == null) {
+          push(nextNode, state.score + scores[i], state.words, state.length, repeats);
+        } else if ((maxLength == GrammarWalker.UNLIMITED) || (state.length < maxLength)) {
+          String words = state.words.isEmpty() ? spelling : state.words + " " + spelling;
+          push(nextNode, state.score + scores[i], words, state.length + 1, repeats);
+        }
+      }
+    }
+
+    return null;
+  }
+
+  private void push(GrammarNode node, double score, String words, int length, int[] repeats) {
+    queue.add(new State(node, score, words, length, repeats, nextOrder++));
+  }
+
+  /* Repeat counts after an arc, or null if it goes around a repetition too often */
+  private int[] enter(GrammarNode node, int[] repeats, GrammarNode next, boolean backArc) {
+    if (maxRepeat == GrammarWalker.UNLIMITED) {
+      return GrammarWalker.BackArcs.NO_REPEATS;
+    }
+
+    return backArcs.enter(node, repeats, next, backArc, maxRepeat);
+  }
+
+  private double[] getArcScores(GrammarNode node) {
+    return arcScores.computeIfAbsent(node, BestFirstSearch::normalizeArcScores);
+  }
+
+  /**
+   * Gets the natural log probabilities of a node's arcs. Unweighted
+   * alternatives all have probability one in the graph, so arcs are
+   * normalized to sum to one at each node.
+   */
+  static double[] normalizeArcScores(GrammarNode node) {
+    LogMath logMath = LogMath.getLogMath();
+    GrammarArc[] arcs = node.getSuccessors();
+    double[] scores = new double[arcs.length];
+
+    double total = 0;
+    for (int i = 0; i < arcs.length; i++) {
+      scores[i] = logMath.logToLinear(arcs[i].getProbability());
+      total += scores[i];
+    }
+
+    for (int i = 0; i < arcs.length; i++) {
+      scores[i] = Math.log(scores[i] / total);
+    }
+
+    return scores;
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static class State {
+    final GrammarNode node;
+    final double score;
+    final String words;
+    final int length;
+
+    // Repeat counts of the repetitions around the node
+    final int[] repeats;
+
+    final long order;
+
+    State(GrammarNode node, double score, String words, int length, int[] repeats,
+          long order) {
+      this.node = node;
+      this.score = score;
+      this.words = words;
+      this.length = length;
+      this.repeats = repeats;
+      this.order = order;
+    }
+  }
+
+}  // class BestFirstSearch
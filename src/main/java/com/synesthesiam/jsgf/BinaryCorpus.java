@@ -0,0 +1,292 @@
+package com.synesthesiam.jsgf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Reads a binary corpus of token ids written by jsgf-gen --binary.
+ *
+ * The file is memory-mapped, so records are read in place: a Cursor moves
+ * from record to record and reads token ids and tag spans straight from the
+ * mapped pages. Files larger than a mapping are mapped one window at a time.
+ *
+ * Format (ints are 32 bit little-endian, strings are an int byte length
+ * followed by UTF-8 bytes):
+ *
+ * <pre>
+ * "JSGB" version flags
+ * tokenCount token*           (token id = index, id 0 may be the empty token)
+ * tagCount tag*               (tag id = index)
+ * record*
+ *
+ * record = length tokenId*length [spanCount (tagId start end)*spanCount]
+ * </pre>
+ *
+ * Span records are present if flags has TAG_SPANS. A span covers the tokens
+ * from start up to (excluding) end of its record.
+ */
+public class BinaryCorpus implements Closeable {
+  static final byte[] MAGIC = { 'J', 'S', 'G', 'B' };
+  static final int VERSION = 1;
+  static final int TAG_SPANS = 1;
+
+  // Largest part of the file mapped at once
+  private static final long WINDOW_SIZE = 1L << 30;
+
+  private final FileChannel channel;
+  private final long size;
+  private final boolean hasTagSpans;
+  private final List<String> tokens;
+  private final List<String> tags;
+  private final long recordsOffset;
+
+  private BinaryCorpus(FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+
+    Cursor header = new Cursor(0);
+    byte[] magic = new byte[MAGIC.length];
+    header.getBytes(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new IOException("Not a binary corpus");
+    }
+
+    int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported binary corpus version " + version);
+    }
+
+    hasTagSpans = (header.getInt() & TAG_SPANS) != 0;
+    tokens = header.getStrings();
+    tags = header.getStrings();
+    recordsOffset = header.next;
+  }
+
+  public static BinaryCorpus open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new BinaryCorpus(channel);
+    } catch (IOException | RuntimeException ex) {
+      channel.close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Gets the tokens by id.
+   */
+  public List<String> getTokens() {
+    return tokens;
+  }
+
+  /**
+   * Gets the tag names by id.
+   */
+  public List<String> getTags() {
+    return tags;
+  }
+
+  public boolean hasTagSpans() {
+    return hasTagSpans;
+  }
+
+  /**
+   * Creates a cursor before the first record.
+   */
+  public Cursor cursor() {
+    return new Cursor(recordsOffset);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Position in the records. The accessors read the current record from the
+   * mapped file and are only valid until the next call to next().
+   */
+  public class Cursor {
+    private MappedByteBuffer window = null;
+    private long windowOffset = 0;
+    private long next;
+
+    private int length = 0;
+    private int spanCount = 0;
+    private int tokensAt = 0;
+    private int spansAt = 0;
+
+    private Cursor(long offset) {
+      next = offset;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the corpus
+     */
+    public boolean next() throws IOException {
+      if (next >= size) {
+        return false;
+      }
+
+      int at = map(next, 4);
+      length = window.getInt(at);
+      if (length < 0) {
+        throw new IOException("Corrupt binary corpus");
+      }
+
+      long bytes = 4 + (4L * length);
+
+      spanCount = 0;
+      if (hasTagSpans) {
+        at = map(next, bytes + 4);
+        spanCount = window.getInt(at + (int) bytes);
+        if (spanCount < 0) {
+          throw new IOException("Corrupt binary corpus");
+        }
+
+        bytes += 4 + (12L * spanCount);
+      }
+
+      at = map(next, bytes);
+      tokensAt = at + 4;
+      spansAt = tokensAt + (4 * length) + 4;
+      next += bytes;
+      return true;
+    }
+
+    /**
+     * Gets the number of tokens in the record.
+     */
+    public int getLength() {
+      return length;
+    }
+
+    public int getTokenId(int index) {
+      return window.getInt(tokensAt + (4 * index));
+    }
+
+    public String getToken(int index) {
+      return tokens.get(getTokenId(index));
+    }
+
+    /**
+     * Gets the number of tag spans in the record (0 without TAG_SPANS).
+     */
+    public int getSpanCount() {
+      return spanCount;
+    }
+
+    public int getSpanTagId(int span) {
+      return window.getInt(spansAt + (12 * span));
+    }
+
+    public String getSpanTag(int span) {
+      return tags.get(getSpanTagId(span));
+    }
+
+    /**
+     * Gets the index of the first token in a span.
+     */
+    public int getSpanStart(int span) {
+      return window.getInt(spansAt + (12 * span) + 4);
+    }
+
+    /**
+     * Gets the index after the last token in a span.
+     */
+    public int getSpanEnd(int span) {
+      return window.getInt(spansAt + (12 * span) + 8);
+    }
+
+    /**
+     * Gets the tokens of the record separated by spaces.
+     */
+    public String getSentence() {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < length; i++) {
+        if (i > 0) {
+          sb.append(' ');
+        }
+
+        sb.append(getToken(i));
+      }
+
+      return sb.toString();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* Maps a window with the bytes at an offset and gets their position in it */
+    private int map(long offset, long bytes) throws IOException {
+      if ((offset < 0) || (bytes < 0) || (offset + bytes > size)) {
+        throw new IOException("Truncated binary corpus");
+      }
+
+      if ((window == null) || (offset < windowOffset)
+          || (offset + bytes > windowOffset + window.limit())) {
+        long mapSize = Math.min(Math.max(WINDOW_SIZE, bytes), size - offset);
+        if (mapSize > Integer.MAX_VALUE) {
+          throw new IOException("Record too large in binary corpus");
+        }
+
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowOffset = offset;
+      }
+
+      return (int) (offset - windowOffset);
+    }
+
+    private int getInt() throws IOException {
+      int value = window(4).getInt();
+      next += 4;
+      return value;
+    }
+
+    private void getBytes(byte[] bytes) throws IOException {
+      window(bytes.length).get(bytes);
+      next += bytes.length;
+    }
+
+    private List<String> getStrings() throws IOException {
+      int count = getInt();
+      List<String> strings = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        int length = getInt();
+        if ((length < 0) || (length > size - next)) {
+          throw new IOException("Truncated binary corpus");
+        }
+
+        byte[] bytes = new byte[length];
+        getBytes(bytes);
+        strings.add(new String(bytes, StandardCharsets.UTF_8));
+      }
+
+      return Collections.unmodifiableList(strings);
+    }
+
+    /* The window positioned at the next bytes of the header */
+    private MappedByteBuffer window(int bytes) throws IOException {
+      int at = map(next, bytes);
+      window.position(at);
+      return window;
+    }
+  }
+
+}  // class BinaryCorpus
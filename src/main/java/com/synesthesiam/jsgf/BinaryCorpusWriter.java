@@ -0,0 +1,366 @@
+package com.synesthesiam.jsgf;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Writes generated sentences as a binary corpus of token ids (see
+ * BinaryCorpus for the format).
+ *
+ * The header holds the grammar's token table, so a sentence becomes one int
+ * per token without any text formatting. A quoted token may have several
+ * words, so a sentence is split into tokens of the table that cover it; if
+ * there is more than one way (the words of such a token are also tokens of
+ * their own), the split follows a path through the grammar. With tag spans,
+ * each sentence is
+ * parsed and every tag (including nested ones) becomes a (tag id, start, end)
+ * record over token indexes. Records are encoded into a direct buffer that
+ * is written to the channel when full, so the channel sees large writes.
+ *
+ * write() may be called by several threads; parsing happens outside the lock.
+ */
+class BinaryCorpusWriter {
+  private static final Logger logger = Logger.getLogger(BinaryCorpusWriter.class.getName());
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final WritableByteChannel channel;
+  private final CompiledGrammar compiled;
+  private final ProgressMonitor progress;
+  private final Map<String, Integer> tagIds;
+  private final ByteBuffer buffer =
+      ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+  // Words in each token of the table and the most in any token
+  private final int[] wordCounts;
+  private final int maxTokenWords;
+
+  // Token ids of the current record, reused between records
+  private int[] tokenIds = new int[64];
+
+  // Word offsets of the current sentence, the number of words and id of the
+  // token that starts at each word (0 words if the rest can't be split) and
+  // the index of the token each word is in
+  private int[] wordStarts = new int[64];
+  private int[] wordEnds = new int[64];
+  private int[] tokenWords = new int[65];
+  private int[] tokenStartIds = new int[65];
+  private int[] wordTokens = new int[65];
+
+  /**
+   * Writes the header.
+   *
+   * @param withTagSpans whether to parse sentences for tag spans
+   */
+  public BinaryCorpusWriter(WritableByteChannel channel, CompiledGrammar compiled,
+                            boolean withTagSpans, ProgressMonitor progress) throws IOException {
+    this.channel = channel;
+    this.compiled = compiled;
+    this.progress = progress;
+
+    List<String> tagNames = withTagSpans ? compiled.getTagNames() : Collections.emptyList();
+    tagIds = withTagSpans ? new HashMap<>() : null;
+    for (int i = 0; i < tagNames.size(); i++) {
+      tagIds.put(tagNames.get(i), i);
+    }
+
+    long headerBytes = BinaryCorpus.MAGIC.length + 16;
+    buffer.put(BinaryCorpus.MAGIC);
+    putInt(BinaryCorpus.VERSION);
+    putInt(withTagSpans ? BinaryCorpus.TAG_SPANS : 0);
+
+    int maxWords = 1;
+    wordCounts = new int[compiled.getTokenCount()];
+    putInt(compiled.getTokenCount());
+    for (int tokenId = 0; tokenId < compiled.getTokenCount(); tokenId++) {
+      String token = compiled.getToken(tokenId);
+      headerBytes += putString(token);
+      wordCounts[tokenId] = splitWords(token);
+      maxWords = Math.max(maxWords, wordCounts[tokenId]);
+    }
+
+    maxTokenWords = maxWords;
+
+    putInt(tagNames.size());
+    for (String tagName : tagNames) {
+      headerBytes += putString(tagName);
+    }
+
+    // The header is always written, so the corpus is valid even if empty
+    progress.tryEmit(headerBytes);
+  }
+
+  /**
+   * Writes a sentence of the grammar unless the output budget is used up.
+   *
+   * @throws IllegalStateException if a token is not in the grammar
+   * @throws UncheckedIOException if the channel fails
+   */
+  public void write(String sentence) {
+    int[] spans = null;
+    if (tagIds != null) {
+      RuleParse parse = compiled.parse(sentence);
+      if (parse == null) {
+        logger.warning(String.format("Failed to parse sentence: %s", sentence));
+      }
+
+      spans = (parse == null) ? new int[0] : parse.getTagSpans(tag -> tagIds.getOrDefault(tag, -1));
+    }
+
+    synchronized (this) {
+      int length = tokenize(sentence);
+      if ((spans != null) && (maxTokenWords > 1)) {
+        // Parses count words, the corpus counts tokens
+        for (int i = 0; i < spans.length; i += 3) {
+          int start = spans[i + 1];
+          int end = spans[i + 2];
+          spans[i + 1] = wordTokens[start];
+          spans[i + 2] = (end > start) ? wordTokens[end - 1] + 1 : wordTokens[start];
+        }
+      }
+
+      long bytes = 4 + (4L * length) + ((spans == null) ? 0 : (4L + (4L * spans.length)));
+      if (!progress.tryEmit(bytes)) {
+        return;
+      }
+
+      try {
+        putInt(length);
+        for (int i = 0; i < length; i++) {
+          putInt(tokenIds[i]);
+        }
+
+        if (spans != null) {
+          putInt(spans.length / 3);
+          for (int value : spans) {
+            putInt(value);
+          }
+        }
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+  }
+
+  /**
+   * Writes out the buffered records.
+   */
+  public synchronized void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+
+    buffer.clear();
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Looks up the token ids of a sentence into tokenIds and maps its words to them */
+  private int tokenize(String sentence) {
+    int words = splitWords(sentence);
+    if (tokenWords.length <= words) {
+      tokenWords = new int[words * 2];
+      tokenStartIds = new int[words * 2];
+      wordTokens = new int[words * 2];
+    }
+
+    // Longest token at each word that the rest of the sentence can follow
+    boolean ambiguous = false;
+    tokenWords[words] = 1;
+    for (int word = words - 1; word >= 0; word--) {
+      tokenWords[word] = 0;
+      for (int count = Math.min(maxTokenWords, words - word); count > 0; count--) {
+        int tokenId = (tokenWords[word + count] > 0) ? getTokenId(sentence, word, count) : -1;
+        if (tokenId < 0) {
+          continue;
+        } else if (tokenWords[word] > 0) {
+          ambiguous = true;
+          break;
+        }
+
+        tokenWords[word] = count;
+        tokenStartIds[word] = tokenId;
+      }
+    }
+
+    if (ambiguous) {
+      followGrammar(sentence, words);
+    }
+
+    int length = 0;
+    for (int word = 0; word < words; word += tokenWords[word]) {
+      if (tokenWords[word] == 0) {
+        String token = sentence.substring(wordStarts[word], wordEnds[word]);
+        throw new IllegalStateException(
+            String.format("Token \"%s\" is not in the grammar's token table", token));
+      }
+
+      if (length == tokenIds.length) {
+        tokenIds = Arrays.copyOf(tokenIds, length * 2);
+      }
+
+      for (int i = 0; i < tokenWords[word]; i++) {
+        wordTokens[word + i] = length;
+      }
+
+      tokenIds[length++] = tokenStartIds[word];
+    }
+
+    wordTokens[words] = length;
+    return length;
+  }
+
+  /*
+   * Splits a sentence into the tokens of a path through the grammar (breadth
+   * first over node and word index), if there is one.
+   */
+  private void followGrammar(String sentence, int words) {
+    Map<GrammarNode, BitSet> visited = new IdentityHashMap<>();
+    Deque<Step> queue = new ArrayDeque<>();
+    enter(sentence, words, new Step(null, compiled.getGrammar().getInitialNode(), 0, -1),
+          visited, queue);
+
+    while (!queue.isEmpty()) {
+      Step step = queue.poll();
+      if (step.node.isFinalNode()) {
+        if (step.word == words) {
+          for (; step != null; step = step.previous) {
+            if (step.tokenId >= 0) {
+              int start = step.word - wordCounts[step.tokenId];
+              tokenWords[start] = wordCounts[step.tokenId];
+              tokenStartIds[start] = step.tokenId;
+            }
+          }
+
+          return;
+        }
+
+        continue;
+      }
+
+      for (GrammarArc arc : step.node.getSuccessors()) {
+        enter(sentence, words, new Step(step, arc.getGrammarNode(), step.word, -1),
+              visited, queue);
+      }
+    }
+  }
+
+  /* Queues a step if its node matches the next words and is new at them */
+  private void enter(String sentence, int words, Step step,
+                     Map<GrammarNode, BitSet> visited, Deque<Step> queue) {
+    String spelling = step.node.isFinalNode() ? null : GrammarWalker.getSpelling(step.node);
+    if (spelling != null) {
+      int tokenId = compiled.getTokenId(spelling);
+      int count = (tokenId < 0) ? 0 : wordCounts[tokenId];
+      if ((count == 0) || (step.word + count > words)
+          || (getTokenId(sentence, step.word, count) != tokenId)) {
+        return;
+      }
+
+      step = new Step(step.previous, step.node, step.word + count, tokenId);
+    }
+
+    BitSet seen = visited.computeIfAbsent(step.node, key -> new BitSet());
+    if (!seen.get(step.word)) {
+      seen.set(step.word);
+      queue.add(step);
+    }
+  }
+
+  /* Gets the id of the text of count words or -1 */
+  private int getTokenId(String sentence, int word, int count) {
+    return compiled.getTokenId(
+        sentence.substring(wordStarts[word], wordEnds[word + count - 1]));
+  }
+
+  /* Finds the space-separated words of a text into wordStarts/wordEnds */
+  private int splitWords(String text) {
+    int words = 0;
+    int start = 0;
+    while (start < text.length()) {
+      int end = text.indexOf(' ', start);
+      if (end < 0) {
+        end = text.length();
+      }
+
+      if (end > start) {
+        if (words == wordStarts.length) {
+          wordStarts = Arrays.copyOf(wordStarts, words * 2);
+          wordEnds = Arrays.copyOf(wordEnds, words * 2);
+        }
+
+        wordStarts[words] = start;
+        wordEnds[words] = end;
+        words++;
+      }
+
+      start = end + 1;
+    }
+
+    return words;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Node on a path through the grammar with the words matched up to it */
+  private static class Step {
+    final Step previous;
+    final GrammarNode node;
+    final int word;
+
+    // Token of the node or -1 if it has no word
+    final int tokenId;
+
+    Step(Step previous, GrammarNode node, int word, int tokenId) {
+      this.previous = previous;
+      this.node = node;
+      this.word = word;
+      this.tokenId = tokenId;
+    }
+  }
+
+  private void putInt(int value) throws IOException {
+    if (buffer.remaining() < 4) {
+      flush();
+    }
+
+    buffer.putInt(value);
+  }
+
+  /* Puts a length-prefixed UTF-8 string and returns its size */
+  private int putString(String text) throws IOException {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    putInt(bytes.length);
+    for (int offset = 0; offset < bytes.length; ) {
+      if (!buffer.hasRemaining()) {
+        flush();
+      }
+
+      int count = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, count);
+      offset += count;
+    }
+
+    return 4 + bytes.length;
+  }
+
+}  // class BinaryCorpusWriter
@@ -0,0 +1,610 @@
+package com.synesthesiam.jsgf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.commons.io.FilenameUtils;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
+import edu.cmu.sphinx.jsgf.rule.JSGFRule;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleAlternatives;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleCount;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+// --------------------------------------------------------------------------
+
+/**
+ * A loaded and compiled JSGF grammar for embedding in other programs.
+ *
+ * Instances are immutable once loaded, so one grammar may be shared between
+ * threads. Each stream returned by random() or exhaustive() has its own state
+ * and produces sentences lazily as they are pulled.
+ */
+public class CompiledGrammar {
+  // The Sphinx JSGF parser is a static singleton, so only one grammar can be
+  // parsed at a time with it.
+  static final Object LOAD_LOCK = new Object();
+
+  // Places where paths split that describeAmbiguity() looks for
+  private static final int MAX_WITNESSES = 20;
+
+  private final JSGFGrammar grammar;
+  private final InterningDictionary dictionary;
+  private final GrammarWalker walker;
+  private final Set<String> tokens;
+
+  // Built on the first parse (generating doesn't need it) and shared with
+  // the views from withLimits()
+  private final AtomicReference<FirstSetIndex> firstSets;
+
+  // Computed on first use and shared with the views from withLimits()
+  private final AtomicReference<AmbiguityAnalysis> ambiguity;
+
+  // How the grammar was loaded, for constrain()
+  private final Source source;
+
+  private CompiledGrammar(JSGFGrammar grammar, GrammarWalker walker, Set<String> tokens,
+                          AtomicReference<FirstSetIndex> firstSets,
+                          AtomicReference<AmbiguityAnalysis> ambiguity, Source source) {
+    this.grammar = grammar;
+    this.dictionary = (InterningDictionary) grammar.getDictionary();
+    this.walker = walker;
+    this.tokens = tokens;
+    this.firstSets = firstSets;
+    this.ambiguity = ambiguity;
+    this.source = source;
+  }
+
+  /**
+   * Loads a grammar file. Imported grammars are looked up in the same
+   * directory.
+   *
+   * @throws IOException if the grammar can't be read or parsed (the cause is a
+   *     JSGFGrammarParseException for syntax errors)
+   */
+  public static CompiledGrammar load(File grammarFile) throws IOException {
+    return load(grammarFile, null, null, false);
+  }
+
+  /**
+   * Loads a grammar file pruned to the sentences that satisfy the
+   * constraints.
+   *
+   * @throws IllegalStateException if no sentence can satisfy the constraints
+   */
+  public static CompiledGrammar load(File grammarFile, GrammarConstraints constraints)
+      throws IOException {
+    return load(grammarFile, null, constraints, false);
+  }
+
+  /**
+   * Loads a grammar file, parsing imported grammars only if they aren't
+   * already in the cache.
+   *
+   * @param sphinxLoader whether to load with the Sphinx JSGF parser and
+   *     graph builder instead of JsgfReader and NativeJsgfGrammar (to compare
+   *     the two); the cache must have been made for the same loader
+   */
+  static CompiledGrammar load(File grammarFile, ImportCache importCache,
+                              GrammarConstraints constraints, boolean sphinxLoader)
+      throws IOException {
+    JSGFGrammar grammar = loadJsgf(grammarFile, importCache, sphinxLoader);
+    if ((constraints != null) && !constraints.isEmpty()) {
+      Metrics.Timer timer = Metrics.time(Metrics.Phase.COMPILE, grammar.getGrammarName());
+      try {
+        constraints.apply(grammar);
+      } finally {
+        timer.close();
+      }
+    }
+
+    return compile(grammar, new Source(grammarFile, importCache, constraints, sphinxLoader));
+  }
+
+  public static CompiledGrammar load(Path grammarPath) throws IOException {
+    return load(grammarPath.toFile());
+  }
+
+  public static CompiledGrammar load(String grammarPath) throws IOException {
+    return load(new File(grammarPath));
+  }
+
+  /**
+   * Loads and allocates a grammar file.
+   */
+  static JSGFGrammar loadJsgf(File grammarFile, ImportCache importCache, boolean sphinxLoader)
+      throws IOException {
+    if ((importCache != null) && (importCache.isSphinxLoader() != sphinxLoader)) {
+      throw new IllegalArgumentException("The import cache is for the other loader");
+    }
+
+    grammarFile = grammarFile.getAbsoluteFile();
+
+    URL baseURL = grammarFile.getParentFile().toURI().toURL();
+    String grammarName = FilenameUtils.removeExtension(grammarFile.getName());
+    InterningDictionary dictionary = new InterningDictionary();
+
+    JSGFGrammar grammar = null;
+    if (importCache != null) {
+      grammar = importCache.newGrammar(baseURL, grammarName, dictionary);
+    } else if (sphinxLoader) {
+      grammar = new JSGFGrammar(
+          baseURL,
+          grammarName,
+          false, /* showGrammar */
+          true,  /* optimizeGrammar */
+          false, /* addSilenceWords */
+          false, /* addFillerWords */
+          dictionary);
+    } else {
+      grammar = new NativeJsgfGrammar(baseURL, grammarName, dictionary);
+    }
+
+    try {
+      if (sphinxLoader) {
+        synchronized (LOAD_LOCK) {
+          Metrics.Timer timer = Metrics.time(Metrics.Phase.ALLOCATE, grammarName);
+          try {
+            grammar.allocate();
+          } finally {
+            timer.close();
+          }
+        }
+      } else {
+        grammar.allocate();
+      }
+    } catch (UncheckedIOException ex) {
+      // Failed to load an import in the cache
+      throw ex.getCause();
+    }
+
+    return grammar;
+  }
+
+  /**
+   * Wraps an allocated grammar that was loaded with an InterningDictionary.
+   * The grammar must not be modified afterwards.
+   */
+  private static CompiledGrammar compile(JSGFGrammar grammar, Source source) {
+    Metrics.Timer timer = Metrics.time(Metrics.Phase.COMPILE, grammar.getGrammarName());
+    try {
+      // RuleParser fully qualifies rule names the first time it sees them.
+      // Do it up front so that concurrent parses only ever read the rules.
+      for (JSGFRuleGrammar ruleGrammar : grammar.getGrammarManager().grammars()) {
+        qualifyRuleNames(ruleGrammar);
+      }
+
+      Set<String> tokens = new HashSet<>();
+      JsgfGen.collectTokens(grammar.getInitialNode(), tokens, new HashSet<>());
+
+      return new CompiledGrammar(grammar, new GrammarWalker(GrammarWalker.UNLIMITED,
+                                                            GrammarWalker.UNLIMITED),
+                                 Collections.unmodifiableSet(tokens), new AtomicReference<>(),
+                                 new AtomicReference<>(), source);
+    } finally {
+      timer.close();
+    }
+  }
+
+  /**
+   * Returns a view of this grammar whose generators are limited to maxRepeat
+   * expansions of each * or + rule and maxLength words per sentence (0 is
+   * unlimited).
+   */
+  public CompiledGrammar withLimits(int maxRepeat, int maxLength) {
+    // Limits don't change the paths that produce the same sentence
+    return new CompiledGrammar(grammar, new GrammarWalker(maxRepeat, maxLength), tokens,
+                               firstSets, ambiguity, source);
+  }
+
+  /**
+   * Loads the grammar file again, pruned to the sentences that also satisfy
+   * more constraints (on top of the ones it was loaded with). The limits are
+   * kept. Imported grammars are only parsed for the first of these.
+   *
+   * @throws IllegalStateException if no sentence can satisfy the constraints
+   */
+  public CompiledGrammar constrain(GrammarConstraints constraints) throws IOException {
+    GrammarConstraints combined =
+        (source.constraints == null) ? constraints : source.constraints.and(constraints);
+
+    return load(source.grammarFile, source.importCache, combined, source.sphinxLoader)
+        .withLimits(walker.getMaxRepeat(), walker.getMaxLength());
+  }
+
+  // --------------------------------------------------------------------------
+
+  public String getName() {
+    return grammar.getGrammarName();
+  }
+
+  /**
+   * Gets all tokens (words) present in the grammar.
+   */
+  public Set<String> getTokens() {
+    return tokens;
+  }
+
+  /**
+   * Gets the dense id of a token. Ids run from 0 to getTokenCount() - 1 and
+   * include the empty token of the initial and final nodes.
+   *
+   * @return the id or -1 if the token is not in the grammar
+   */
+  public int getTokenId(String token) {
+    return dictionary.getTokenId(token);
+  }
+
+  /**
+   * Gets the token with a dense id.
+   */
+  public String getToken(int tokenId) {
+    return dictionary.getToken(tokenId);
+  }
+
+  public int getTokenCount() {
+    return dictionary.size();
+  }
+
+  /**
+   * Gets the distinct tag names of the rules reachable from the grammar, in
+   * order of first appearance.
+   */
+  public List<String> getTagNames() {
+    Set<String> tagNames = new LinkedHashSet<>();
+    for (JSGFRule rule : FirstSetIndex.collectRules(grammar).values()) {
+      collectTagNames(rule, tagNames);
+    }
+
+    return new ArrayList<>(tagNames);
+  }
+
+  private static void collectTagNames(JSGFRule rule, Set<String> tagNames) {
+    if (rule instanceof JSGFRuleTag) {
+      tagNames.add(((JSGFRuleTag) rule).getTag());
+      collectTagNames(((JSGFRuleTag) rule).getRule(), tagNames);
+    } else if (rule instanceof JSGFRuleAlternatives) {
+      for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+        collectTagNames(child, tagNames);
+      }
+    } else if (rule instanceof JSGFRuleSequence) {
+      for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+        collectTagNames(child, tagNames);
+      }
+    } else if (rule instanceof JSGFRuleCount) {
+      collectTagNames(((JSGFRuleCount) rule).getRule(), tagNames);
+    }
+  }
+
+  /**
+   * Counts the word occurrences in the compiled grammar graph. With interning
+   * they all refer to getTokenCount() distinct Word objects.
+   */
+  public int getWordReferenceCount() {
+    int count = 0;
+    for (GrammarNode node : grammar.getGrammarNodes()) {
+      for (Word[] words : node.getAlternatives()) {
+        count += words.length;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Finds a * or + repetition that makes exhaustive enumeration infinite
+   * under the limits: any repetition without limits, and one without words
+   * (that the length limit can't end) if only the length is limited.
+   *
+   * @return a description of the repetition or null if the enumeration is
+   *         finite
+   */
+  public String findUnboundedRepetition() {
+    if (walker.getMaxRepeat() != GrammarWalker.UNLIMITED) {
+      return null;
+    }
+
+    List<GrammarNode> cycle = (walker.getMaxLength() == GrammarWalker.UNLIMITED)
+        ? GrammarWalker.findCycle(grammar.getInitialNode())
+        : GrammarWalker.findEmptyCycle(grammar.getInitialNode());
+
+    return (cycle == null) ? null : GrammarWalker.describeCycle(cycle);
+  }
+
+  /**
+   * Generates an endless stream of random sentences with respect to the rule
+   * weights. The stream ends early only if no sentence satisfies the limits.
+   */
+  public Stream<String> random(long seed) {
+    return random(new Random(seed));
+  }
+
+  public Stream<String> random() {
+    return random(new Random());
+  }
+
+  public Stream<String> random(Random randomizer) {
+    return stream(walker.randomSentences(grammar.getInitialNode(), randomizer));
+  }
+
+  /**
+   * Enumerates every distinct sentence in the grammar in depth-first order.
+   * Infinite grammars need limits (see withLimits). Duplicates are only
+   * filtered if the grammar is ambiguous.
+   */
+  public Stream<String> exhaustive() {
+    Stream<String> sentences = stream(enumerate());
+    return isAmbiguous() ? sentences.distinct() : sentences;
+  }
+
+  /**
+   * Counts the sentences of an exhaustive enumeration before duplicates are
+   * removed (exact if the grammar is unambiguous).
+   *
+   * @return the count or -1 if the grammar is infinite, so only the
+   *         repetition limit bounds the enumeration
+   */
+  public double countPaths() {
+    return walker.countPaths(grammar.getInitialNode());
+  }
+
+  /**
+   * Checks if two paths through the compiled grammar can produce the same
+   * sentence. Grammars that are too large to check count as ambiguous.
+   */
+  public boolean isAmbiguous() {
+    AmbiguityAnalysis analysis = ambiguity.get();
+    if (analysis == null) {
+      // One witness is enough
+      ambiguity.compareAndSet(null, new AmbiguityAnalysis(grammar.getInitialNode(), 1));
+      analysis = ambiguity.get();
+    }
+
+    return analysis.isAmbiguous();
+  }
+
+  /**
+   * Describes the causes of ambiguity (up to 20), one per rule, as the rule
+   * (or the two public rules) where two parses of a sentence differ, a tab
+   * and the sentence.
+   */
+  public List<String> describeAmbiguity() {
+    AmbiguityAnalysis analysis = new AmbiguityAnalysis(grammar.getInitialNode(), MAX_WITNESSES);
+    Map<String, String> sentences = new LinkedHashMap<>();
+    for (String witness : analysis.getWitnesses()) {
+      String rule = AmbiguityAnalysis.findRule(grammar, witness);
+      sentences.putIfAbsent((rule == null) ? "-" : rule, witness);
+    }
+
+    List<String> descriptions = new ArrayList<>();
+    for (Map.Entry<String, String> sentence : sentences.entrySet()) {
+      descriptions.add(sentence.getKey() + "\t" + sentence.getValue());
+    }
+
+    return descriptions;
+  }
+
+  /**
+   * Generates the k most probable distinct sentences in descending order of
+   * probability under the rule weights.
+   */
+  public Stream<ScoredSentence> topK(int k) {
+    Iterator<ScoredSentence> search =
+        new BestFirstSearch(grammar.getInitialNode(), k, walker);
+
+    return stream(search).limit(k);
+  }
+
+  /**
+   * Generates few sentences that together use every arc (alternative and
+   * token) of the compiled grammar at least k times. Arcs that no sentence
+   * within the limits can use are skipped.
+   */
+  public Stream<String> coverage(int k) {
+    return stream(new CoverageSampler(grammar.getInitialNode(), k, walker));
+  }
+
+  /**
+   * Generates an endless stream of random sentences where every path through
+   * the grammar is equally likely, ignoring the rule weights.
+   *
+   * @throws IllegalStateException if the grammar has * or + repetition
+   *         that the limits don't bound
+   */
+  public Stream<String> uniform(Random randomizer) {
+    return stream(newUniformSampler().uniform(randomizer));
+  }
+
+  /**
+   * Generates the sentence of every path through the grammar once, in
+   * uniform random order (sampling without replacement). Take the first n
+   * for a random sample; sentences are distinct if the grammar is
+   * unambiguous.
+   *
+   * @throws IllegalStateException if the grammar has * or + repetition
+   *         that the limits don't bound
+   */
+  public Stream<String> unique(Random randomizer) {
+    return stream(newUniformSampler().unique(randomizer));
+  }
+
+  /**
+   * Counts the paths through the grammar within the limits for uniform
+   * sampling.
+   */
+  UniformSampler newUniformSampler() {
+    return new UniformSampler(grammar.getInitialNode(), walker);
+  }
+
+  /**
+   * Parses a sentence against the public rules of the grammar.
+   *
+   * The parse knows the character offsets of its tokens and tags in the
+   * text (see RuleParse.getStart and getEnd).
+   *
+   * @return the parse or null if the sentence is not in the grammar
+   */
+  public RuleParse parse(CharSequence text) {
+    if (!Metrics.enabled) {
+      return RuleParser.parse(text, grammar, null, getFirstSets());
+    }
+
+    long startTime = System.nanoTime();
+    RuleParse parse = RuleParser.parse(text, grammar, null, getFirstSets());
+    recordParse(text, parse, (System.nanoTime() - startTime) / 1000);
+    return parse;
+  }
+
+  /**
+   * Parses a group of sentences (e.g. the N-best hypotheses of a recognizer)
+   * in one pass. The hypotheses are merged into a prefix tree, so the work on
+   * a shared prefix is only done once.
+   *
+   * @return a parse or null for each sentence, in the same order
+   */
+  public List<RuleParse> parseAll(List<? extends CharSequence> texts) {
+    if (!Metrics.enabled || texts.isEmpty()) {
+      return RuleParser.parseAll(texts, grammar, getFirstSets());
+    }
+
+    long startTime = System.nanoTime();
+    List<RuleParse> parses = RuleParser.parseAll(texts, grammar, getFirstSets());
+
+    // The shared work is split evenly between the sentences
+    long micros = (System.nanoTime() - startTime) / 1000 / texts.size();
+    for (int i = 0; i < texts.size(); i++) {
+      recordParse(texts.get(i), parses.get(i), micros);
+    }
+
+    return parses;
+  }
+
+  private static void recordParse(CharSequence text, RuleParse parse, long micros) {
+    Metrics.count(Metrics.Counter.PARSES);
+    Metrics.record(Metrics.Histogram.PARSE_MICROS, micros);
+    if (parse == null) {
+      Metrics.parseFailed(text);
+    }
+  }
+
+  private FirstSetIndex getFirstSets() {
+    FirstSetIndex index = firstSets.get();
+    if (index == null) {
+      // Threads that get here at the same time build equal indexes
+      firstSets.compareAndSet(null, new FirstSetIndex(grammar));
+      index = firstSets.get();
+    }
+
+    return index;
+  }
+
+  /**
+   * Finds the grammar sentence with the fewest token insertions, deletions
+   * and substitutions from a sentence, searching with a beam of beamWidth
+   * states per input token. The match is parsed to get its rule and tags.
+   *
+   * @return the match or null if no sentence is within maxEdits edits
+   */
+  public FuzzyMatch fuzzyParse(String text, int maxEdits, int beamWidth) {
+    FuzzyMatcher matcher = new FuzzyMatcher(grammar.getInitialNode(), maxEdits, beamWidth);
+    FuzzyMatch match = matcher.match(RuleParser.tokenize(text));
+    if (match == null) {
+      return null;
+    }
+
+    return new FuzzyMatch(match.getSentence(), match.getEdits(), parse(match.getSentence()));
+  }
+
+  JSGFGrammar getGrammar() {
+    return grammar;
+  }
+
+  GrammarWalker getWalker() {
+    return walker;
+  }
+
+  GrammarWalker.Cursor enumerate() {
+    return walker.enumerate(grammar.getInitialNode());
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static <T> Stream<T> stream(Iterator<T> iterator) {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+        false);
+  }
+
+  /**
+   * Fully qualifies the rule names in a grammar the way RuleParser does.
+   */
+  static void qualifyRuleNames(JSGFRuleGrammar ruleGrammar) {
+    for (String ruleName : ruleGrammar.getRuleNames()) {
+      qualifyRuleNames(ruleGrammar.getName(), ruleGrammar.getRule(ruleName));
+    }
+  }
+
+  private static void qualifyRuleNames(String grammarName, JSGFRule rule) {
+    if (rule instanceof JSGFRuleName) {
+      JSGFRuleName ruleName = (JSGFRuleName) rule;
+      if (ruleName.getFullGrammarName() == null) {
+        ruleName.setRuleName(grammarName + '.' + ruleName.getSimpleRuleName());
+      }
+    } else if (rule instanceof JSGFRuleAlternatives) {
+      for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+        qualifyRuleNames(grammarName, child);
+      }
+    } else if (rule instanceof JSGFRuleSequence) {
+      for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+        qualifyRuleNames(grammarName, child);
+      }
+    } else if (rule instanceof JSGFRuleCount) {
+      qualifyRuleNames(grammarName, ((JSGFRuleCount) rule).getRule());
+    } else if (rule instanceof JSGFRuleTag) {
+      qualifyRuleNames(grammarName, ((JSGFRuleTag) rule).getRule());
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static class Source {
+    final File grammarFile;
+    final ImportCache importCache;
+    final GrammarConstraints constraints;
+    final boolean sphinxLoader;
+
+    Source(File grammarFile, ImportCache importCache, GrammarConstraints constraints,
+           boolean sphinxLoader) {
+      this.grammarFile = grammarFile;
+
+      // Shared by the grammars loaded again from this one
+      this.importCache = (importCache != null) ? importCache : new ImportCache(sphinxLoader);
+      this.constraints = constraints;
+      this.sphinxLoader = sphinxLoader;
+    }
+  }
+
+}  // class CompiledGrammar
@@ -0,0 +1,355 @@
+package com.synesthesiam.jsgf;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Generates few sentences that together use every arc of the GrammarNode
+ * graph at least k times.
+ *
+ * Each sentence is the path that uses the most arcs that are still needed
+ * (greedy set cover). Path values come from a dynamic program over the graph
+ * with the back edges of * and + cycles removed, plus at most one back edge
+ * per sentence, so every sentence visits a node at most twice. With a
+ * maximum length, values are kept per number of words left. After each
+ * sentence only the nodes that lead to a used arc are updated.
+ *
+ * The iterator ends once every arc is covered or no remaining arc can be
+ * covered within the limits.
+ */
+class CoverageSampler implements Iterator<String> {
+  private static final Logger logger = Logger.getLogger(CoverageSampler.class.getName());
+  private static final int IMPOSSIBLE = -1;
+
+  // Nodes are numbered in depth-first post-order, so the target of an arc
+  // that isn't a back edge always has a smaller number than its source.
+  private final int initial;
+  private final boolean[] isFinal;
+  private final String[] spellings;
+  private final int[] costs;
+  private final int[][] targets;
+  private final boolean[][] backEdges;
+  private final double[][] probabilities;
+  private final int[][] needs;
+  private final int[][] predecessors;
+  private final int[][] backPredecessors;
+
+  // Values per (node, words left): the most needed arcs on a path to a final
+  // node without back edges (best) and with up to one back edge (bestWithBack)
+  private final int lengths;
+  private final int[] best;
+  private final int[] bestWithBack;
+  private final boolean allowBackEdges;
+
+  private int remaining = 0;
+  private String next = null;
+  private boolean done = false;
+
+  public CoverageSampler(GrammarNode initialNode, int k, GrammarWalker walker) {
+    List<GrammarNode> order = GrammarWalker.postOrder(initialNode);
+    Map<GrammarNode, Integer> ids = new IdentityHashMap<>();
+    for (int i = 0; i < order.size(); i++) {
+      ids.put(order.get(i), i);
+    }
+
+    int numNodes = order.size();
+    initial = ids.get(initialNode);
+    isFinal = new boolean[numNodes];
+    spellings = new String[numNodes];
+    costs = new int[numNodes];
+    targets = new int[numNodes][];
+    backEdges = new boolean[numNodes][];
+    probabilities = new double[numNodes][];
+    needs = new int[numNodes][];
+
+    List<List<Integer>> predecessorLists = new ArrayList<>();
+    List<List<Integer>> backPredecessorLists = new ArrayList<>();
+    for (int i = 0; i < numNodes; i++) {
+      predecessorLists.add(new ArrayList<>());
+      backPredecessorLists.add(new ArrayList<>());
+    }
+
+    boolean limitLength = (walker.getMaxLength() != GrammarWalker.UNLIMITED);
+    for (int u = 0; u < numNodes; u++) {
+      GrammarNode node = order.get(u);
+      isFinal[u] = node.isFinalNode();
+      spellings[u] = isFinal[u] ? null : GrammarWalker.getSpelling(node);
+      costs[u] = (limitLength && (spellings[u] != null)) ? 1 : 0;
+
+      // A final node ends the sentence
+      GrammarArc[] arcs = isFinal[u] ? new GrammarArc[0] : node.getSuccessors();
+      targets[u] = new int[arcs.length];
+      backEdges[u] = new boolean[arcs.length];
+      probabilities[u] = new double[arcs.length];
+      needs[u] = new int[arcs.length];
+
+      for (int i = 0; i < arcs.length; i++) {
+        int v = ids.get(arcs[i].getGrammarNode());
+        targets[u][i] = v;
+        backEdges[u][i] = (v >= u);
+        probabilities[u][i] = arcs[i].getProbability();
+        needs[u][i] = k;
+
+        if (backEdges[u][i]) {
+          backPredecessorLists.get(v).add(u);
+        } else {
+          predecessorLists.get(v).add(u);
+        }
+      }
+    }
+
+    predecessors = toArrays(predecessorLists);
+    backPredecessors = toArrays(backPredecessorLists);
+
+    int maxRepeat = walker.getMaxRepeat();
+    boolean hasBackEdges = false;
+    for (int[] backList : backPredecessors) {
+      hasBackEdges |= (backList.length > 0);
+    }
+
+    allowBackEdges =
+        hasBackEdges && ((maxRepeat == GrammarWalker.UNLIMITED) || (maxRepeat >= 2));
+
+    lengths = limitLength ? walker.getMaxLength() + 1 : 1;
+    best = new int[numNodes * lengths];
+
+    for (int u = 0; u < numNodes; u++) {
+      updateBest(u);
+    }
+
+    if (allowBackEdges) {
+      bestWithBack = new int[numNodes * lengths];
+      for (int u = 0; u < numNodes; u++) {
+        updateBestWithBack(u);
+      }
+    } else {
+      // Without back edges both values are the same
+      bestWithBack = best;
+    }
+
+    // Arcs that are on no complete path (<VOID> or limits) can't be covered
+    for (int u = 0; u < numNodes; u++) {
+      for (int i = 0; i < targets[u].length; i++) {
+        int[] values = backEdges[u][i] ? best : bestWithBack;
+        if (!isReachable(values, targets[u][i])) {
+          needs[u][i] = 0;
+        }
+
+        remaining += needs[u][i];
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if ((next == null) && !done) {
+      next = walk();
+      done = (next == null);
+
+      if (done && (remaining > 0)) {
+        logger.warning(String.format("%d arc occurrence(s) can't be covered within the limits",
+                                     remaining));
+      }
+    }
+
+    return next != null;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    String sentence = next;
+    next = null;
+    return sentence;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Follows the most valuable path and marks its arcs as used */
+  private String walk() {
+    int u = initial;
+    int wordsLeft = lengths - 1;
+    if ((remaining == 0) || (bestWithBack[index(u, wordsLeft)] <= 0)) {
+      return null;
+    }
+
+    List<String> words = new ArrayList<>();
+    Set<Integer> changed = new TreeSet<>();
+    boolean usedBackEdge = false;
+
+    while (!isFinal[u]) {
+      int chosen = -1;
+      int chosenValue = IMPOSSIBLE;
+
+      for (int i = 0; i < targets[u].length; i++) {
+        if (backEdges[u][i] && (usedBackEdge || !allowBackEdges)) {
+          continue;
+        }
+
+        int v = targets[u][i];
+        int vWordsLeft = wordsLeft - costs[v];
+        if (vWordsLeft < 0) {
+          continue;
+        }
+
+        int[] values = (usedBackEdge || backEdges[u][i]) ? best : bestWithBack;
+        int value = values[index(v, vWordsLeft)];
+        if (value == IMPOSSIBLE) {
+          continue;
+        }
+
+        value += (needs[u][i] > 0) ? 1 : 0;
+        if ((value > chosenValue)
+            || ((value == chosenValue) && (probabilities[u][i] > probabilities[u][chosen]))) {
+          chosen = i;
+          chosenValue = value;
+        }
+      }
+
+      if (needs[u][chosen] > 0) {
+        needs[u][chosen]--;
+        remaining--;
+        changed.add(u);
+      }
+
+      usedBackEdge |= backEdges[u][chosen];
+      u = targets[u][chosen];
+      wordsLeft -= costs[u];
+
+      if (spellings[u] != null) {
+        words.add(spellings[u]);
+      }
+    }
+
+    update(changed);
+    return String.join(" ", words);
+  }
+
+  /* Recomputes the values that depend on the arcs of the changed nodes */
+  private void update(Set<Integer> changed) {
+    List<Integer> changedBest = new ArrayList<>();
+    propagate(changed, true, changedBest);
+
+    if (!allowBackEdges) {
+      return;
+    }
+
+    Set<Integer> seeds = new TreeSet<>(changed);
+    for (int v : changedBest) {
+      for (int u : backPredecessors[v]) {
+        seeds.add(u);
+      }
+    }
+
+    propagate(seeds, false, null);
+  }
+
+  private void propagate(Set<Integer> seeds, boolean updateBest, List<Integer> changedNodes) {
+    // Smallest number first: successors are always updated before their
+    // predecessors.
+    PriorityQueue<Integer> queue = new PriorityQueue<>(seeds);
+    Set<Integer> queued = new TreeSet<>(seeds);
+
+    while (!queue.isEmpty()) {
+      int u = queue.poll();
+      boolean changed = updateBest ? updateBest(u) : updateBestWithBack(u);
+      if (!changed) {
+        continue;
+      }
+
+      if (changedNodes != null) {
+        changedNodes.add(u);
+      }
+
+      for (int p : predecessors[u]) {
+        if (queued.add(p)) {
+          queue.add(p);
+        }
+      }
+    }
+  }
+
+  private boolean updateBest(int u) {
+    return updateValues(u, best, false);
+  }
+
+  private boolean updateBestWithBack(int u) {
+    return updateValues(u, bestWithBack, allowBackEdges);
+  }
+
+  /* Computes the values of one node from the values of its successors */
+  private boolean updateValues(int u, int[] values, boolean withBack) {
+    boolean changed = false;
+    for (int wordsLeft = 0; wordsLeft < lengths; wordsLeft++) {
+      int value = isFinal[u] ? 0 : IMPOSSIBLE;
+
+      for (int i = 0; i < targets[u].length; i++) {
+        if (backEdges[u][i] && !withBack) {
+          continue;
+        }
+
+        int v = targets[u][i];
+        int vWordsLeft = wordsLeft - costs[v];
+        if (vWordsLeft < 0) {
+          continue;
+        }
+
+        // After the back edge, the path continues without another one
+        int[] targetValues = backEdges[u][i] ? best : values;
+        int targetValue = targetValues[index(v, vWordsLeft)];
+        if (targetValue != IMPOSSIBLE) {
+          value = Math.max(value, targetValue + ((needs[u][i] > 0) ? 1 : 0));
+        }
+      }
+
+      if (values[index(u, wordsLeft)] != value) {
+        values[index(u, wordsLeft)] = value;
+        changed = true;
+      }
+    }
+
+    return changed;
+  }
+
+  private boolean isReachable(int[] values, int u) {
+    for (int wordsLeft = 0; wordsLeft < lengths; wordsLeft++) {
+      if (values[index(u, wordsLeft)] != IMPOSSIBLE) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private int index(int u, int wordsLeft) {
+    return (u * lengths) + wordsLeft;
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static int[][] toArrays(List<List<Integer>> lists) {
+    int[][] arrays = new int[lists.size()][];
+    for (int i = 0; i < arrays.length; i++) {
+      arrays[i] = lists.get(i).stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    return arrays;
+  }
+
+}  // class CoverageSampler
@@ -0,0 +1,422 @@
+package com.synesthesiam.jsgf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
+import edu.cmu.sphinx.jsgf.rule.JSGFRule;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleAlternatives;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleCount;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleToken;
+
+// --------------------------------------------------------------------------
+
+/**
+ * FIRST sets of the rules of a grammar for RuleParser.
+ *
+ * For every rule object reachable from the main grammar, this holds the
+ * (lower case) tokens a match can start with and whether the rule can match
+ * no tokens at all. Alternatives and the rules of the main grammar get a hash
+ * index from the next input token to the choices that can start with it, so
+ * the parser only tries those.
+ *
+ * The index must be built after the rule names are qualified and the rules
+ * must not change afterwards. It is read-only and may be shared by threads.
+ */
+class FirstSetIndex {
+  private static final int[] NO_CHOICES = new int[0];
+
+  private final Map<JSGFRule, FirstSet> firstSets = new IdentityHashMap<>();
+  private final Map<JSGFRule, Dispatch> alternatives = new IdentityHashMap<>();
+  private final List<String> ruleNames = new ArrayList<>();
+  private final Dispatch ruleDispatch;
+
+  public FirstSetIndex(JSGFGrammar grammar) {
+    Map<String, JSGFRule> rules = collectRules(grammar);
+
+    // Iterate to a fixed point because rules may reference each other
+    Map<String, FirstSet> named = new HashMap<>();
+    for (String fullName : rules.keySet()) {
+      named.put(fullName, new FirstSet());
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Map.Entry<String, JSGFRule> rule : rules.entrySet()) {
+        FirstSet firstSet = compute(rule.getValue(), named);
+        if (!firstSet.equals(named.get(rule.getKey()))) {
+          named.put(rule.getKey(), firstSet);
+          changed = true;
+        }
+      }
+    }
+
+    // Dispatch on the alternatives of every rule
+    for (JSGFRule rule : firstSets.keySet()) {
+      if (rule instanceof JSGFRuleAlternatives) {
+        List<FirstSet> choices = new ArrayList<>();
+        for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+          choices.add(firstSets.get(child));
+        }
+
+        alternatives.put(rule, new Dispatch(choices));
+      }
+    }
+
+    // Dispatch on the rules of the main grammar in the order mparse uses
+    JSGFRuleGrammar ruleGrammar = grammar.getRuleGrammar();
+    List<FirstSet> choices = new ArrayList<>();
+    for (String ruleName : ruleGrammar.getRuleNames()) {
+      ruleNames.add(ruleName);
+      choices.add(firstSets.get(ruleGrammar.getRule(ruleName)));
+    }
+
+    ruleDispatch = new Dispatch(choices);
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Checks if a rule can match the input from a position. Rules that aren't
+   * in the index (e.g. built by the parser) are checked through their items
+   * or assumed to match.
+   */
+  public boolean canStart(JSGFRule rule, TokenTrie input, int pos) {
+    for (int child = input.getFirstChild(pos); child != TokenTrie.NONE;
+         child = input.getNextSibling(child)) {
+      if (isWildcard(input.getToken(child))) {
+        return true;
+      }
+    }
+
+    FirstSet firstSet = firstSets.get(rule);
+    if (firstSet != null) {
+      return firstSet.nullable || startsWithAny(firstSet, input, pos);
+    }
+
+    if (rule instanceof JSGFRuleSequence) {
+      for (JSGFRule item : ((JSGFRuleSequence) rule).getRules()) {
+        FirstSet itemSet = firstSets.get(item);
+        if ((itemSet == null) || startsWithAny(itemSet, input, pos)) {
+          return true;
+        }
+
+        if (!itemSet.nullable) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Gets the indexes of the alternatives that can match the input from a
+   * position, in their original order.
+   *
+   * @return the indexes or null if the alternatives aren't in the index
+   */
+  public int[] viableAlternatives(JSGFRuleAlternatives rule, TokenTrie input, int pos) {
+    Dispatch dispatch = alternatives.get(rule);
+    return (dispatch == null) ? null : dispatch.viable(input, pos);
+  }
+
+  /**
+   * Gets the names of the main grammar's rules that can match the input from
+   * the root of the trie, in the order of JSGFRuleGrammar.getRuleNames().
+   */
+  public List<String> viableRuleNames(TokenTrie input) {
+    int[] viable = ruleDispatch.viable(input, TokenTrie.ROOT);
+    List<String> names = new ArrayList<>(viable.length);
+    for (int index : viable) {
+      names.add(ruleNames.get(index));
+    }
+
+    return names;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* All rules reachable from the main grammar by full name */
+  static Map<String, JSGFRule> collectRules(JSGFGrammar grammar) {
+    Map<String, JSGFRule> rules = new LinkedHashMap<>();
+    JSGFRuleGrammar mainGrammar = grammar.getRuleGrammar();
+    Deque<String> unvisited = new ArrayDeque<>();
+    for (String ruleName : mainGrammar.getRuleNames()) {
+      unvisited.add(mainGrammar.getName() + '.' + ruleName);
+    }
+
+    while (!unvisited.isEmpty()) {
+      String fullName = unvisited.pop();
+      if (rules.containsKey(fullName)) {
+        continue;
+      }
+
+      int dot = fullName.lastIndexOf('.');
+      JSGFRuleGrammar ruleGrammar =
+          grammar.getGrammarManager().retrieveGrammar(fullName.substring(0, dot));
+
+      JSGFRule rule = (ruleGrammar == null) ? null : ruleGrammar.getRule(fullName.substring(dot + 1));
+      if (rule != null) {
+        rules.put(fullName, rule);
+        collectReferences(rule, unvisited);
+      }
+    }
+
+    return rules;
+  }
+
+  private static void collectReferences(JSGFRule rule, Deque<String> names) {
+    if (rule instanceof JSGFRuleName) {
+      String fullName = getFullName((JSGFRuleName) rule);
+      if (fullName != null) {
+        names.add(fullName);
+      }
+    } else if (rule instanceof JSGFRuleAlternatives) {
+      for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+        collectReferences(child, names);
+      }
+    } else if (rule instanceof JSGFRuleSequence) {
+      for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+        collectReferences(child, names);
+      }
+    } else if (rule instanceof JSGFRuleCount) {
+      collectReferences(((JSGFRuleCount) rule).getRule(), names);
+    } else if (rule instanceof JSGFRuleTag) {
+      collectReferences(((JSGFRuleTag) rule).getRule(), names);
+    }
+  }
+
+  /* Full name of a (qualified) rule reference or null for <NULL>/<VOID> */
+  private static String getFullName(JSGFRuleName ruleName) {
+    String simpleName = ruleName.getSimpleRuleName();
+    if ("NULL".equals(simpleName) || "VOID".equals(simpleName)
+        || (ruleName.getFullGrammarName() == null)) {
+      return null;
+    }
+
+    return ruleName.getFullGrammarName() + '.' + simpleName;
+  }
+
+  /* Computes the FIRST set of a rule the way RuleParser matches it */
+  private FirstSet compute(JSGFRule rule, Map<String, FirstSet> named) {
+    FirstSet firstSet = new FirstSet();
+
+    if (rule instanceof JSGFRuleToken) {
+      String text = Tokenization.fold(((JSGFRuleToken) rule).getText());
+      if (text.indexOf(' ') < 0) {
+        firstSet.tokens.add(text);
+      } else {
+        String[] words = RuleParser.tokenize(text);
+        if (words.length > 0) {
+          firstSet.tokens.add(words[0]);
+        }
+      }
+    } else if (rule instanceof JSGFRuleName) {
+      JSGFRuleName ruleName = (JSGFRuleName) rule;
+      if ("NULL".equals(ruleName.getSimpleRuleName())) {
+        firstSet.nullable = true;
+      } else {
+        String fullName = getFullName(ruleName);
+        FirstSet target = (fullName == null) ? null : named.get(fullName);
+        if (target != null) {
+          firstSet.tokens.addAll(target.tokens);
+          firstSet.nullable = target.nullable;
+        }
+      }
+    } else if (rule instanceof JSGFRuleAlternatives) {
+      for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+        FirstSet childSet = compute(child, named);
+        firstSet.tokens.addAll(childSet.tokens);
+        firstSet.nullable |= childSet.nullable;
+      }
+    } else if (rule instanceof JSGFRuleSequence) {
+      // The parser fails on an empty sequence
+      List<JSGFRule> items = ((JSGFRuleSequence) rule).getRules();
+      boolean nullable = !items.isEmpty();
+      for (JSGFRule item : items) {
+        FirstSet itemSet = compute(item, named);
+        if (nullable) {
+          firstSet.tokens.addAll(itemSet.tokens);
+        }
+
+        nullable &= itemSet.nullable;
+      }
+
+      firstSet.nullable = nullable;
+    } else if (rule instanceof JSGFRuleCount) {
+      JSGFRuleCount count = (JSGFRuleCount) rule;
+      FirstSet childSet = compute(count.getRule(), named);
+      firstSet.tokens.addAll(childSet.tokens);
+      firstSet.nullable = childSet.nullable || (count.getCount() != JSGFRuleCount.ONCE_OR_MORE);
+    } else if (rule instanceof JSGFRuleTag) {
+      FirstSet childSet = compute(((JSGFRuleTag) rule).getRule(), named);
+      firstSet.tokens.addAll(childSet.tokens);
+      firstSet.nullable = childSet.nullable;
+    }
+
+    firstSets.put(rule, firstSet);
+    return firstSet;
+  }
+
+  /* Checks if any token after a trie node is in a FIRST set */
+  private static boolean startsWithAny(FirstSet firstSet, TokenTrie input, int pos) {
+    for (int child = input.getFirstChild(pos); child != TokenTrie.NONE;
+         child = input.getNextSibling(child)) {
+      if (firstSet.tokens.contains(input.getToken(child))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean isWildcard(String token) {
+    return token.equals("%") || token.equals("*");
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static class FirstSet {
+    final Set<String> tokens = new HashSet<>();
+    boolean nullable = false;
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof FirstSet)) {
+        return false;
+      }
+
+      FirstSet otherSet = (FirstSet) other;
+      return (nullable == otherSet.nullable) && tokens.equals(otherSet.tokens);
+    }
+
+    @Override
+    public int hashCode() {
+      return tokens.hashCode() + (nullable ? 1 : 0);
+    }
+  }
+
+  /* Hash index from the next token to the choices that can start with it */
+  private static class Dispatch {
+    private final int size;
+    private final Map<String, int[]> byToken = new HashMap<>();
+    private final int[] nullable;
+
+    Dispatch(List<FirstSet> choices) {
+      size = choices.size();
+      Map<String, List<Integer>> lists = new HashMap<>();
+      List<Integer> nullableList = new ArrayList<>();
+
+      for (int i = 0; i < choices.size(); i++) {
+        FirstSet firstSet = choices.get(i);
+        if ((firstSet == null) || firstSet.nullable) {
+          // Unknown rules are always tried
+          nullableList.add(i);
+          continue;
+        }
+
+        for (String token : firstSet.tokens) {
+          lists.computeIfAbsent(token, key -> new ArrayList<>()).add(i);
+        }
+      }
+
+      for (Map.Entry<String, List<Integer>> list : lists.entrySet()) {
+        byToken.put(list.getKey(), toArray(list.getValue()));
+      }
+
+      nullable = toArray(nullableList);
+    }
+
+    int[] viable(TokenTrie input, int pos) {
+      int child = input.getFirstChild(pos);
+      if (child == TokenTrie.NONE) {
+        return nullable;
+      }
+
+      if (input.getNextSibling(child) == TokenTrie.NONE) {
+        return viable(input.getToken(child));
+      }
+
+      // Several hypotheses continue here: take the union in the original order
+      boolean[] marked = new boolean[size];
+      int count = 0;
+      for (; child != TokenTrie.NONE; child = input.getNextSibling(child)) {
+        for (int i : viable(input.getToken(child))) {
+          if (!marked[i]) {
+            marked[i] = true;
+            count++;
+          }
+        }
+      }
+
+      int[] union = new int[count];
+      int k = 0;
+      for (int i = 0; i < size; i++) {
+        if (marked[i]) {
+          union[k++] = i;
+        }
+      }
+      return union;
+    }
+
+    private int[] viable(String token) {
+      if (isWildcard(token)) {
+        int[] all = new int[size];
+        for (int i = 0; i < size; i++) {
+          all[i] = i;
+        }
+        return all;
+      }
+
+      int[] matching = byToken.get(token);
+      if (matching == null) {
+        return nullable;
+      }
+
+      if (nullable.length == 0) {
+        return matching;
+      }
+
+      // Merge to keep the original order
+      int[] merged = new int[matching.length + nullable.length];
+      int i = 0;
+      int j = 0;
+      for (int k = 0; k < merged.length; k++) {
+        if ((j >= nullable.length) || ((i < matching.length) && (matching[i] < nullable[j]))) {
+          merged[k] = matching[i++];
+        } else {
+          merged[k] = nullable[j++];
+        }
+      }
+
+      return merged;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+      if (list.isEmpty()) {
+        return NO_CHOICES;
+      }
+
+      int[] array = new int[list.size()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = list.get(i);
+      }
+      return array;
+    }
+  }
+
+}  // class FirstSetIndex
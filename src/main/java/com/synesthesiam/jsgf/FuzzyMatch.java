@@ -0,0 +1,46 @@
+package com.synesthesiam.jsgf;
+
+// --------------------------------------------------------------------------
+
+/**
+ * The grammar sentence closest to a (noisy) input sentence, with the number
+ * of token insertions, deletions and substitutions between them.
+ */
+public class FuzzyMatch {
+  private final String sentence;
+  private final int edits;
+  private final RuleParse parse;
+
+  public FuzzyMatch(String sentence, int edits, RuleParse parse) {
+    this.sentence = sentence;
+    this.edits = edits;
+    this.parse = parse;
+  }
+
+  /**
+   * Gets the sentence of the grammar that was matched.
+   */
+  public String getSentence() {
+    return sentence;
+  }
+
+  /**
+   * Gets the edit distance (in tokens) between the input and the sentence.
+   */
+  public int getEdits() {
+    return edits;
+  }
+
+  /**
+   * Gets the parse of the matched sentence or null if the parser rejects it.
+   */
+  public RuleParse getParse() {
+    return parse;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s\t%d", sentence, edits);
+  }
+
+}  // class FuzzyMatch
@@ -0,0 +1,198 @@
+package com.synesthesiam.jsgf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Finds the path through the GrammarNode graph with the fewest token edits
+ * (insertions, deletions, substitutions) from an input sentence.
+ *
+ * This is the edit distance dynamic program with the grammar graph in place
+ * of the second string, computed one input position (column) at a time. In a
+ * column, empty nodes (cost 0) and skipped grammar words (cost 1) are
+ * followed in order of cost with a priority queue, keeping the best state per
+ * node, until beamWidth states are settled. The next column is seeded by
+ * matching or substituting the next input token, or inserting it. States with
+ * more than maxEdits edits are dropped.
+ *
+ * The work is bounded by (input length + 1) * beamWidth * arcs per node,
+ * independent of the number of sentences in the grammar. Ties are broken by
+ * the probability of the path under the rule weights. The beam can prune the
+ * best path on very wide grammars, so the result is the best match found.
+ */
+class FuzzyMatcher {
+  private final GrammarNode initialNode;
+  private final int maxEdits;
+  private final int beamWidth;
+
+  private final Comparator<State> order =
+      Comparator.comparingInt((State s) -> s.edits)
+      .thenComparingDouble(s -> -s.score)
+      .thenComparingLong(s -> s.order);
+
+  private final Map<GrammarNode, double[]> arcScores = new HashMap<>();
+  private long nextOrder = 0;
+
+  public FuzzyMatcher(GrammarNode initialNode, int maxEdits, int beamWidth) {
+    this.initialNode = initialNode;
+    this.maxEdits = maxEdits;
+    this.beamWidth = beamWidth;
+  }
+
+  /**
+   * Matches a tokenized (lower case) sentence.
+   *
+   * @return the closest sentence and its edits (without a parse) or null if
+   *         no sentence is within maxEdits
+   */
+  public FuzzyMatch match(String[] input) {
+    List<State> seeds = Collections.singletonList(new State(initialNode, null, null, 0, 0, 0));
+
+    for (int pos = 0; ; pos++) {
+      List<State> column = settle(seeds);
+      if (pos == input.length) {
+        // Settled in order, so the first final state is the best
+        for (State state : column) {
+          if (state.node.isFinalNode()) {
+            return new FuzzyMatch(state.getSentence(), state.edits, null);
+          }
+        }
+
+        return null;
+      }
+
+      seeds = advance(column, input[pos]);
+      if (seeds.isEmpty()) {
+        return null;
+      }
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Follows empty nodes and skipped words within a column */
+  private List<State> settle(List<State> seeds) {
+    PriorityQueue<State> queue = new PriorityQueue<>(order);
+    queue.addAll(seeds);
+
+    Map<GrammarNode, Boolean> settled = new IdentityHashMap<>();
+    List<State> column = new ArrayList<>();
+
+    while (!queue.isEmpty() && (column.size() < beamWidth)) {
+      State state = queue.poll();
+      if (settled.put(state.node, true) != null) {
+        continue;
+      }
+
+      column.add(state);
+      if (state.node.isFinalNode()) {
+        continue;
+      }
+
+      GrammarArc[] arcs = state.node.getSuccessors();
+      double[] scores = getArcScores(state.node);
+      for (int i = 0; i < arcs.length; i++) {
+        GrammarNode nextNode = arcs[i].getGrammarNode();
+        if (settled.containsKey(nextNode)) {
+          continue;
+        }
+
+        String spelling = nextNode.isFinalNode() ? null : GrammarWalker.getSpelling(nextNode);
+        if (spelling == null) {
+          queue.add(next(nextNode, state, null, state.edits, state.score + scores[i]));
+        } else if (state.edits < maxEdits) {
+          // Deletion: the grammar word is missing from the input
+          queue.add(next(nextNode, state, spelling, state.edits + 1, state.score + scores[i]));
+        }
+      }
+    }
+
+    return column;
+  }
+
+  /* Consumes one input token */
+  private List<State> advance(List<State> column, String token) {
+    List<State> seeds = new ArrayList<>();
+    for (State state : column) {
+      if (state.edits < maxEdits) {
+        // Insertion: the input token isn't in the grammar sentence
+        seeds.add(next(state.node, state, null, state.edits + 1, state.score));
+      }
+
+      if (state.node.isFinalNode()) {
+        continue;
+      }
+
+      GrammarArc[] arcs = state.node.getSuccessors();
+      double[] scores = getArcScores(state.node);
+      for (int i = 0; i < arcs.length; i++) {
+        GrammarNode nextNode = arcs[i].getGrammarNode();
+        String spelling = nextNode.isFinalNode() ? null : GrammarWalker.getSpelling(nextNode);
+        if (spelling == null) {
+          continue;
+        }
+
+        // Match or substitution
+        int edits = state.edits + (Tokenization.fold(spelling).equals(token) ? 0 : 1);
+        if (edits <= maxEdits) {
+          seeds.add(next(nextNode, state, spelling, edits, state.score + scores[i]));
+        }
+      }
+    }
+
+    return seeds;
+  }
+
+  private State next(GrammarNode node, State previous, String word, int edits, double score) {
+    return new State(node, previous, word, edits, score, nextOrder++);
+  }
+
+  private double[] getArcScores(GrammarNode node) {
+    return arcScores.computeIfAbsent(node, BestFirstSearch::normalizeArcScores);
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static class State {
+    final GrammarNode node;
+    final State previous;
+    final String word;
+    final int edits;
+    final double score;
+    final long order;
+
+    State(GrammarNode node, State previous, String word, int edits, double score, long order) {
+      this.node = node;
+      this.previous = previous;
+      this.word = word;
+      this.edits = edits;
+      this.score = score;
+      this.order = order;
+    }
+
+    /* Grammar words on the path to this state */
+    String getSentence() {
+      List<String> words = new ArrayList<>();
+      for (State state = this; state != null; state = state.previous) {
+        if (state.word != null) {
+          words.add(state.word);
+        }
+      }
+
+      Collections.reverse(words);
+      return String.join(" ", words);
+    }
+  }
+
+}  // class FuzzyMatcher
@@ -0,0 +1,774 @@
+package com.synesthesiam.jsgf;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.JSGFGrammarException;
+import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammarManager;
+import edu.cmu.sphinx.jsgf.rule.JSGFRule;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleAlternatives;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleCount;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleToken;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Restricts a grammar to one public rule and/or fixed tag values before it
+ * is compiled, so every generated sentence matches.
+ *
+ * A tag value is the text covered by the tag, e.g. "open" for
+ * (open | close) {action}. For each constrained tag, the text under every
+ * occurrence of the tag is limited to the value and the public rules are
+ * limited to sentences that contain the tag at least once. The pruned rules
+ * are added to the main grammar under new names; rules of imported grammars
+ * are never modified, so they can be shared.
+ */
+public class GrammarConstraints {
+  private String ruleName = null;
+  private final Map<String, String> tagValues = new LinkedHashMap<>();
+
+  /**
+   * Only generates sentences from one rule, which becomes the only public
+   * rule.
+   */
+  public GrammarConstraints setRule(String ruleName) {
+    this.ruleName = ruleName;
+    return this;
+  }
+
+  /**
+   * Only generates sentences where the tag covers exactly the given text.
+   */
+  public GrammarConstraints addTagValue(String tagName, String value) {
+    tagValues.put(tagName, value);
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return (ruleName == null) && tagValues.isEmpty();
+  }
+
+  /**
+   * Combines these constraints with more, so a sentence has to satisfy both.
+   *
+   * @throws IllegalStateException if they ask for different rules or for
+   *         different values of the same tag (no sentence could satisfy them)
+   */
+  GrammarConstraints and(GrammarConstraints other) {
+    GrammarConstraints combined = new GrammarConstraints();
+    combined.ruleName = ruleName;
+    combined.tagValues.putAll(tagValues);
+
+    if (other.ruleName != null) {
+      if ((ruleName != null) && !ruleName.equals(other.ruleName)) {
+        throw new IllegalStateException(String.format(
+            "A sentence can't be from both <%s> and <%s>", ruleName, other.ruleName));
+      }
+
+      combined.ruleName = other.ruleName;
+    }
+
+    for (Map.Entry<String, String> tagValue : other.tagValues.entrySet()) {
+      String value = tagValues.get(tagValue.getKey());
+      if ((value != null) && !value.equals(tagValue.getValue())) {
+        throw new IllegalStateException(String.format(
+            "The tag {%s} can't cover both \"%s\" and \"%s\"",
+            tagValue.getKey(), value, tagValue.getValue()));
+      }
+
+      combined.tagValues.put(tagValue.getKey(), tagValue.getValue());
+    }
+
+    return combined;
+  }
+
+  /**
+   * Finds every text that the tag can cover anywhere in the rules reachable
+   * from the main grammar, with words separated by single spaces.
+   *
+   * @throws IllegalStateException if the tag covers a * or + repetition,
+   *         recursion or more than maxValues texts
+   */
+  static Set<String> findTagValues(JSGFGrammar grammar, String tagName, int maxValues) {
+    return new TagValues(grammar, tagName, maxValues).find();
+  }
+
+  /**
+   * Prunes the rules of an allocated grammar and recompiles it.
+   *
+   * @throws IllegalStateException if no sentence can satisfy the constraints
+   */
+  void apply(JSGFGrammar grammar) throws IOException {
+    JSGFRuleGrammar ruleGrammar = grammar.getRuleGrammar();
+
+    if (ruleName != null) {
+      JSGFRule rule = ruleGrammar.getRule(ruleName);
+      if (rule == null) {
+        throw new IllegalStateException(String.format("No rule named <%s>", ruleName));
+      }
+
+      for (String name : ruleGrammar.getRuleNames()) {
+        if (ruleGrammar.isRulePublic(name) != name.equals(ruleName)) {
+          ruleGrammar.setRule(name, ruleGrammar.getRule(name), name.equals(ruleName));
+        }
+      }
+    }
+
+    int index = 0;
+    for (Map.Entry<String, String> tagValue : tagValues.entrySet()) {
+      index++;
+      new TagConstraint(grammar, tagValue.getKey(), tagValue.getValue(), index).apply();
+    }
+
+    try {
+      grammar.commitChanges();
+    } catch (JSGFGrammarParseException | JSGFGrammarException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Fully qualified name of a rule reference or null for <NULL>/<VOID> */
+  private static String fullNameOf(JSGFRuleGrammar ruleGrammar, JSGFRuleName name) {
+    String simpleName = name.getSimpleRuleName();
+    if ("NULL".equals(simpleName) || "VOID".equals(simpleName)) {
+      return null;
+    }
+
+    String grammarName = name.getFullGrammarName();
+    if (grammarName == null) {
+      grammarName = ruleGrammar.getName();
+    }
+
+    return grammarName + '.' + simpleName;
+  }
+
+  private static JSGFRuleGrammar lookUpGrammar(JSGFRuleGrammarManager manager, String fullName) {
+    String grammarName = fullName.substring(0, fullName.lastIndexOf('.'));
+    JSGFRuleGrammar ruleGrammar = manager.retrieveGrammar(grammarName);
+    if (ruleGrammar == null) {
+      throw new IllegalStateException("Unknown grammar " + grammarName);
+    }
+
+    return ruleGrammar;
+  }
+
+  private static String simpleNameOf(String fullName) {
+    return fullName.substring(fullName.lastIndexOf('.') + 1);
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Rewrites the rules of a grammar for one tag=value constraint */
+  private static class TagConstraint {
+    private final JSGFRuleGrammarManager manager;
+    private final JSGFRuleGrammar mainGrammar;
+    private final String tagName;
+    private final List<String> valueWords;
+    private final int index;
+
+    // Rules (by full name) that can contain the tag
+    private final Set<String> taggedRules = new HashSet<>();
+
+    // Pruned rules to add to the main grammar
+    private final Map<String, String> constrainedNames = new HashMap<>();
+    private final Map<String, String> withTagNames = new HashMap<>();
+    private final Deque<String[]> pending = new ArrayDeque<>();  // full name, new name
+    private final Map<String, JSGFRule> newRules = new LinkedHashMap<>();
+    private boolean matchedValue = false;
+
+    TagConstraint(JSGFGrammar grammar, String tagName, String value, int index) {
+      this.manager = grammar.getGrammarManager();
+      this.mainGrammar = grammar.getRuleGrammar();
+      this.tagName = tagName;
+      this.valueWords = Arrays.asList(value.trim().split("\\s+"));
+      this.index = index;
+    }
+
+    void apply() {
+      findTaggedRules();
+
+      List<String> publicRules = new ArrayList<>();
+      for (String name : mainGrammar.getRuleNames()) {
+        if (mainGrammar.isRulePublic(name)) {
+          publicRules.add(name);
+        }
+      }
+
+      // Public rules keep their names but must contain the tag
+      Map<String, JSGFRule> publicBodies = new HashMap<>();
+      for (String name : publicRules) {
+        String fullName = mainGrammar.getName() + '.' + name;
+        if (taggedRules.contains(fullName)) {
+          publicBodies.put(name, withTag(mainGrammar, mainGrammar.getRule(name)));
+        }
+      }
+
+      if (publicBodies.isEmpty()) {
+        throw new IllegalStateException(String.format(
+            "No public rule contains the tag {%s}", tagName));
+      }
+
+      // Derived rules are built from the original bodies, so add nothing
+      // until all of them are done.
+      while (!pending.isEmpty()) {
+        String[] derived = pending.pop();
+        JSGFRuleGrammar ruleGrammar = grammarOf(derived[0]);
+        JSGFRule rule = ruleGrammar.getRule(simpleNameOf(derived[0]));
+        boolean isWithTag = withTagNames.containsValue(derived[1]);
+
+        newRules.put(derived[1], isWithTag ? withTag(ruleGrammar, rule)
+                                           : constrain(ruleGrammar, rule));
+      }
+
+      if (!matchedValue) {
+        throw new IllegalStateException(String.format(
+            "The tag {%s} can't cover \"%s\"", tagName, String.join(" ", valueWords)));
+      }
+
+      for (Map.Entry<String, JSGFRule> newRule : newRules.entrySet()) {
+        mainGrammar.setRule(newRule.getKey(), newRule.getValue(), false);
+      }
+
+      for (String name : publicRules) {
+        JSGFRule body = publicBodies.get(name);
+        if (body != null) {
+          mainGrammar.setRule(name, body, true);
+        } else {
+          // Can't produce a sentence with the tag
+          mainGrammar.setRule(name, mainGrammar.getRule(name), false);
+        }
+      }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* Finds the rules that contain the tag directly or through references */
+    private void findTaggedRules() {
+      Map<String, Set<String>> references = new HashMap<>();
+      Deque<String> unvisited = new ArrayDeque<>();
+      for (String name : mainGrammar.getRuleNames()) {
+        unvisited.add(mainGrammar.getName() + '.' + name);
+      }
+
+      while (!unvisited.isEmpty()) {
+        String fullName = unvisited.pop();
+        if (references.containsKey(fullName)) {
+          continue;
+        }
+
+        Set<String> referenced = new HashSet<>();
+        references.put(fullName, referenced);
+
+        JSGFRuleGrammar ruleGrammar = grammarOf(fullName);
+        if (collectReferences(ruleGrammar, ruleGrammar.getRule(simpleNameOf(fullName)),
+                              referenced)) {
+          taggedRules.add(fullName);
+        }
+
+        unvisited.addAll(referenced);
+      }
+
+      // Propagate to the rules that reference them
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        for (Map.Entry<String, Set<String>> rule : references.entrySet()) {
+          if (!taggedRules.contains(rule.getKey())) {
+            for (String referenced : rule.getValue()) {
+              if (taggedRules.contains(referenced)) {
+                taggedRules.add(rule.getKey());
+                changed = true;
+                break;
+              }
+            }
+          }
+        }
+      }
+    }
+
+    /* Returns true if the rule contains the tag itself */
+    private boolean collectReferences(JSGFRuleGrammar ruleGrammar, JSGFRule rule,
+                                      Set<String> referenced) {
+      if (rule instanceof JSGFRuleTag) {
+        JSGFRuleTag tag = (JSGFRuleTag) rule;
+        boolean hasTag = collectReferences(ruleGrammar, tag.getRule(), referenced);
+        return tagName.equals(tag.getTag()) || hasTag;
+      } else if (rule instanceof JSGFRuleName) {
+        String fullName = fullNameOf(ruleGrammar, (JSGFRuleName) rule);
+        if (fullName != null) {
+          referenced.add(fullName);
+        }
+      } else if (rule instanceof JSGFRuleAlternatives) {
+        boolean hasTag = false;
+        for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+          hasTag |= collectReferences(ruleGrammar, child, referenced);
+        }
+        return hasTag;
+      } else if (rule instanceof JSGFRuleSequence) {
+        boolean hasTag = false;
+        for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+          hasTag |= collectReferences(ruleGrammar, child, referenced);
+        }
+        return hasTag;
+      } else if (rule instanceof JSGFRuleCount) {
+        return collectReferences(ruleGrammar, ((JSGFRuleCount) rule).getRule(), referenced);
+      }
+
+      return false;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* Copies a rule with every occurrence of the tag limited to the value */
+    private JSGFRule constrain(JSGFRuleGrammar ruleGrammar, JSGFRule rule) {
+      if (rule instanceof JSGFRuleTag) {
+        JSGFRuleTag tag = (JSGFRuleTag) rule;
+        if (tagName.equals(tag.getTag())) {
+          return restrictTag(ruleGrammar, tag);
+        }
+
+        return new JSGFRuleTag(constrain(ruleGrammar, tag.getRule()), tag.getTag());
+      } else if (rule instanceof JSGFRuleName) {
+        JSGFRuleName name = (JSGFRuleName) rule;
+        String fullName = fullNameOf(ruleGrammar, name);
+        if (fullName == null) {
+          return name;  // <NULL> or <VOID>
+        }
+
+        if (taggedRules.contains(fullName)) {
+          return mainRuleName(derivedName(fullName, constrainedNames, 'c'));
+        }
+
+        // Moved to the main grammar, so the name must be qualified
+        return new JSGFRuleName(fullName);
+      } else if (rule instanceof JSGFRuleAlternatives) {
+        JSGFRuleAlternatives alternatives = (JSGFRuleAlternatives) rule;
+        List<JSGFRule> children = new ArrayList<>();
+        for (JSGFRule child : alternatives.getRules()) {
+          children.add(constrain(ruleGrammar, child));
+        }
+
+        return newAlternatives(children, alternatives.getWeights());
+      } else if (rule instanceof JSGFRuleSequence) {
+        List<JSGFRule> children = new ArrayList<>();
+        for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+          children.add(constrain(ruleGrammar, child));
+        }
+
+        return new JSGFRuleSequence(children);
+      } else if (rule instanceof JSGFRuleCount) {
+        JSGFRuleCount count = (JSGFRuleCount) rule;
+        return new JSGFRuleCount(constrain(ruleGrammar, count.getRule()), count.getCount());
+      }
+
+      return rule;
+    }
+
+    /*
+     * Copies a rule keeping only the sentences that contain the tag at least
+     * once (limited to the value). Returns null if there are none.
+     */
+    private JSGFRule withTag(JSGFRuleGrammar ruleGrammar, JSGFRule rule) {
+      if (rule instanceof JSGFRuleTag) {
+        JSGFRuleTag tag = (JSGFRuleTag) rule;
+        if (tagName.equals(tag.getTag())) {
+          return restrictTag(ruleGrammar, tag);
+        }
+
+        JSGFRule child = withTag(ruleGrammar, tag.getRule());
+        return (child == null) ? null : new JSGFRuleTag(child, tag.getTag());
+      } else if (rule instanceof JSGFRuleName) {
+        String fullName = fullNameOf(ruleGrammar, (JSGFRuleName) rule);
+        if ((fullName == null) || !taggedRules.contains(fullName)) {
+          return null;
+        }
+
+        return mainRuleName(derivedName(fullName, withTagNames, 'w'));
+      } else if (rule instanceof JSGFRuleAlternatives) {
+        JSGFRuleAlternatives alternatives = (JSGFRuleAlternatives) rule;
+        List<JSGFRule> children = new ArrayList<>();
+        List<Float> weights = (alternatives.getWeights() == null) ? null : new ArrayList<>();
+
+        for (int i = 0; i < alternatives.getRules().size(); i++) {
+          JSGFRule child = withTag(ruleGrammar, alternatives.getRules().get(i));
+          if (child != null) {
+            children.add(child);
+            if (weights != null) {
+              weights.add(alternatives.getWeights().get(i));
+            }
+          }
+        }
+
+        return children.isEmpty() ? null : newAlternatives(children, weights);
+      } else if (rule instanceof JSGFRuleSequence) {
+        // One alternative per item that can hold the tag
+        List<JSGFRule> items = ((JSGFRuleSequence) rule).getRules();
+        List<JSGFRule> sequences = new ArrayList<>();
+
+        for (int i = 0; i < items.size(); i++) {
+          JSGFRule tagged = withTag(ruleGrammar, items.get(i));
+          if (tagged == null) {
+            continue;
+          }
+
+          List<JSGFRule> sequence = new ArrayList<>();
+          for (int j = 0; j < items.size(); j++) {
+            sequence.add((j == i) ? tagged : constrain(ruleGrammar, items.get(j)));
+          }
+
+          sequences.add(new JSGFRuleSequence(sequence));
+        }
+
+        if (sequences.isEmpty()) {
+          return null;
+        }
+
+        return (sequences.size() == 1) ? sequences.get(0) : newAlternatives(sequences, null);
+      } else if (rule instanceof JSGFRuleCount) {
+        JSGFRuleCount count = (JSGFRuleCount) rule;
+        JSGFRule tagged = withTag(ruleGrammar, count.getRule());
+        if ((tagged == null) || (count.getCount() == JSGFRuleCount.OPTIONAL)) {
+          return tagged;
+        }
+
+        // x* or x+ with the tag in at least one repetition
+        JSGFRule repeated = new JSGFRuleCount(constrain(ruleGrammar, count.getRule()),
+                                              JSGFRuleCount.ZERO_OR_MORE);
+
+        return new JSGFRuleSequence(Arrays.asList(repeated, tagged, repeated));
+      }
+
+      return null;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* Limits the text under the tag to the value (<VOID> if impossible) */
+    private JSGFRule restrictTag(JSGFRuleGrammar ruleGrammar, JSGFRuleTag tag) {
+      Map<Integer, List<JSGFRule>> matches =
+          match(ruleGrammar, tag.getRule(), 0, new HashSet<>());
+
+      List<JSGFRule> complete = matches.get(valueWords.size());
+      JSGFRule rule = JSGFRuleName.VOID;
+      if (complete != null) {
+        rule = alternativesOf(complete);
+        matchedValue = true;
+      }
+
+      return new JSGFRuleTag(rule, tag.getTag());
+    }
+
+    /*
+     * Matches a rule against the value words from a start position. Returns
+     * the end positions that can be reached, each with the pruned copies of
+     * the rule that reach it. Rule references are inlined.
+     */
+    private Map<Integer, List<JSGFRule>> match(JSGFRuleGrammar ruleGrammar, JSGFRule rule,
+                                               int start, Set<String> active) {
+      Map<Integer, List<JSGFRule>> matches = new TreeMap<>();
+
+      if (rule instanceof JSGFRuleToken) {
+        List<String> tokenWords =
+            Arrays.asList(((JSGFRuleToken) rule).getText().trim().split("\\s+"));
+
+        int end = start + tokenWords.size();
+        if ((end <= valueWords.size()) && valueWords.subList(start, end).equals(tokenWords)) {
+          addMatch(matches, end, rule);
+        }
+      } else if (rule instanceof JSGFRuleName) {
+        JSGFRuleName name = (JSGFRuleName) rule;
+        String fullName = fullNameOf(ruleGrammar, name);
+        if (fullName == null) {
+          if ("NULL".equals(name.getSimpleRuleName())) {
+            addMatch(matches, start, JSGFRuleName.NULL);
+          }
+        } else if (active.add(fullName + '@' + start)) {
+          // Recursion without consuming a word can't match anything new
+          JSGFRuleGrammar referenced = grammarOf(fullName);
+          matches = match(referenced, referenced.getRule(simpleNameOf(fullName)),
+                          start, active);
+          active.remove(fullName + '@' + start);
+        }
+      } else if (rule instanceof JSGFRuleTag) {
+        JSGFRuleTag tag = (JSGFRuleTag) rule;
+        for (Map.Entry<Integer, List<JSGFRule>> match :
+                 match(ruleGrammar, tag.getRule(), start, active).entrySet()) {
+          addMatch(matches, match.getKey(),
+                   new JSGFRuleTag(alternativesOf(match.getValue()), tag.getTag()));
+        }
+      } else if (rule instanceof JSGFRuleAlternatives) {
+        for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+          for (Map.Entry<Integer, List<JSGFRule>> match :
+                   match(ruleGrammar, child, start, active).entrySet()) {
+            for (JSGFRule matched : match.getValue()) {
+              addMatch(matches, match.getKey(), matched);
+            }
+          }
+        }
+      } else if (rule instanceof JSGFRuleSequence) {
+        matches = matchSequence(ruleGrammar, ((JSGFRuleSequence) rule).getRules(),
+                                start, active);
+      } else if (rule instanceof JSGFRuleCount) {
+        JSGFRuleCount count = (JSGFRuleCount) rule;
+        if (count.getCount() != JSGFRuleCount.ONCE_OR_MORE) {
+          addMatch(matches, start, JSGFRuleName.NULL);
+        }
+
+        if (count.getCount() == JSGFRuleCount.OPTIONAL) {
+          for (Map.Entry<Integer, List<JSGFRule>> match :
+                   match(ruleGrammar, count.getRule(), start, active).entrySet()) {
+            for (JSGFRule matched : match.getValue()) {
+              addMatch(matches, match.getKey(), matched);
+            }
+          }
+        } else {
+          // Each repetition that matters consumes at least one word
+          List<JSGFRule> repetitions = new ArrayList<>();
+          for (int n = 1; n <= valueWords.size() - start; n++) {
+            repetitions.add(count.getRule());
+            for (Map.Entry<Integer, List<JSGFRule>> match :
+                     matchSequence(ruleGrammar, repetitions, start, active).entrySet()) {
+              for (JSGFRule matched : match.getValue()) {
+                addMatch(matches, match.getKey(), matched);
+              }
+            }
+          }
+        }
+      }
+
+      return matches;
+    }
+
+    private Map<Integer, List<JSGFRule>> matchSequence(JSGFRuleGrammar ruleGrammar,
+                                                       List<JSGFRule> items, int start,
+                                                       Set<String> active) {
+      // Pruned prefixes of the sequence by end position
+      Map<Integer, List<JSGFRule>> prefixes = new TreeMap<>();
+      addMatch(prefixes, start, new JSGFRuleSequence(new ArrayList<>()));
+
+      for (JSGFRule item : items) {
+        Map<Integer, List<JSGFRule>> extended = new TreeMap<>();
+        for (Map.Entry<Integer, List<JSGFRule>> prefix : prefixes.entrySet()) {
+          JSGFRule prefixRule = alternativesOf(prefix.getValue());
+
+          for (Map.Entry<Integer, List<JSGFRule>> match :
+                   match(ruleGrammar, item, prefix.getKey(), active).entrySet()) {
+            List<JSGFRule> sequence = new ArrayList<>();
+            if (prefixRule instanceof JSGFRuleSequence) {
+              sequence.addAll(((JSGFRuleSequence) prefixRule).getRules());
+            } else {
+              sequence.add(prefixRule);
+            }
+
+            sequence.add(alternativesOf(match.getValue()));
+            addMatch(extended, match.getKey(), new JSGFRuleSequence(sequence));
+          }
+        }
+
+        prefixes = extended;
+      }
+
+      return prefixes;
+    }
+
+    private static void addMatch(Map<Integer, List<JSGFRule>> matches, int end,
+                                 JSGFRule rule) {
+      matches.computeIfAbsent(end, key -> new ArrayList<>()).add(rule);
+    }
+
+    private static JSGFRule alternativesOf(List<JSGFRule> rules) {
+      return (rules.size() == 1) ? rules.get(0) : newAlternatives(rules, null);
+    }
+
+    private static JSGFRuleAlternatives newAlternatives(List<JSGFRule> rules,
+                                                        List<Float> weights) {
+      JSGFRuleAlternatives alternatives = new JSGFRuleAlternatives(rules);
+      if (weights != null) {
+        alternatives.setWeights(weights);
+      }
+
+      return alternatives;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* Gets the name of a pruned copy of a rule in the main grammar */
+    private String derivedName(String fullName, Map<String, String> names, char kind) {
+      String name = names.get(fullName);
+      if (name == null) {
+        String grammarName = fullName.substring(0, fullName.lastIndexOf('.'));
+        String simpleName = simpleNameOf(fullName);
+
+        name = simpleName;
+        if (!grammarName.equals(mainGrammar.getName())) {
+          name += "__" + grammarName.replace('.', '_');
+        }
+
+        name += "__" + kind + index;
+        names.put(fullName, name);
+        pending.push(new String[] { fullName, name });
+      }
+
+      return name;
+    }
+
+    private JSGFRuleName mainRuleName(String name) {
+      return new JSGFRuleName(mainGrammar.getName() + '.' + name);
+    }
+
+    private JSGFRuleGrammar grammarOf(String fullName) {
+      return lookUpGrammar(manager, fullName);
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Collects the texts under every occurrence of one tag */
+  private static class TagValues {
+    private final JSGFRuleGrammarManager manager;
+    private final JSGFRuleGrammar mainGrammar;
+    private final String tagName;
+    private final int maxValues;
+    private final Set<String> values = new LinkedHashSet<>();
+
+    TagValues(JSGFGrammar grammar, String tagName, int maxValues) {
+      this.manager = grammar.getGrammarManager();
+      this.mainGrammar = grammar.getRuleGrammar();
+      this.tagName = tagName;
+      this.maxValues = maxValues;
+    }
+
+    Set<String> find() {
+      Set<String> visited = new HashSet<>();
+      Deque<String> unvisited = new ArrayDeque<>();
+      for (String name : mainGrammar.getRuleNames()) {
+        unvisited.add(mainGrammar.getName() + '.' + name);
+      }
+
+      while (!unvisited.isEmpty()) {
+        String fullName = unvisited.pop();
+        if (visited.add(fullName)) {
+          JSGFRuleGrammar ruleGrammar = lookUpGrammar(manager, fullName);
+          collect(ruleGrammar, ruleGrammar.getRule(simpleNameOf(fullName)), unvisited);
+        }
+      }
+
+      // Can't be asked for with tag=value
+      values.remove("");
+      return values;
+    }
+
+    /* Adds the values of the tags in a rule and queues the rules it references */
+    private void collect(JSGFRuleGrammar ruleGrammar, JSGFRule rule, Deque<String> unvisited) {
+      if (rule instanceof JSGFRuleTag) {
+        JSGFRuleTag tag = (JSGFRuleTag) rule;
+        if (tagName.equals(tag.getTag())) {
+          values.addAll(expand(ruleGrammar, tag.getRule(), new HashSet<>()));
+          checkSize(values);
+        }
+
+        collect(ruleGrammar, tag.getRule(), unvisited);
+      } else if (rule instanceof JSGFRuleName) {
+        String fullName = fullNameOf(ruleGrammar, (JSGFRuleName) rule);
+        if (fullName != null) {
+          unvisited.add(fullName);
+        }
+      } else if (rule instanceof JSGFRuleAlternatives) {
+        for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+          collect(ruleGrammar, child, unvisited);
+        }
+      } else if (rule instanceof JSGFRuleSequence) {
+        for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+          collect(ruleGrammar, child, unvisited);
+        }
+      } else if (rule instanceof JSGFRuleCount) {
+        collect(ruleGrammar, ((JSGFRuleCount) rule).getRule(), unvisited);
+      }
+    }
+
+    /* Gets all texts of a rule (active holds the rules being expanded) */
+    private Set<String> expand(JSGFRuleGrammar ruleGrammar, JSGFRule rule, Set<String> active) {
+      Set<String> texts = new LinkedHashSet<>();
+
+      if (rule instanceof JSGFRuleToken) {
+        texts.add(String.join(" ", ((JSGFRuleToken) rule).getText().trim().split("\\s+")));
+      } else if (rule instanceof JSGFRuleName) {
+        JSGFRuleName name = (JSGFRuleName) rule;
+        String fullName = fullNameOf(ruleGrammar, name);
+        if (fullName == null) {
+          if ("NULL".equals(name.getSimpleRuleName())) {
+            texts.add("");
+          }
+        } else if (active.add(fullName)) {
+          JSGFRuleGrammar referenced = lookUpGrammar(manager, fullName);
+          texts = expand(referenced, referenced.getRule(simpleNameOf(fullName)), active);
+          active.remove(fullName);
+        } else {
+          throw new IllegalStateException(String.format(
+              "The tag {%s} covers the recursive rule <%s>", tagName, fullName));
+        }
+      } else if (rule instanceof JSGFRuleTag) {
+        texts = expand(ruleGrammar, ((JSGFRuleTag) rule).getRule(), active);
+      } else if (rule instanceof JSGFRuleAlternatives) {
+        for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+          texts.addAll(expand(ruleGrammar, child, active));
+          checkSize(texts);
+        }
+      } else if (rule instanceof JSGFRuleSequence) {
+        texts.add("");
+        for (JSGFRule item : ((JSGFRuleSequence) rule).getRules()) {
+          Set<String> itemTexts = expand(ruleGrammar, item, active);
+          Set<String> extended = new LinkedHashSet<>();
+          for (String prefix : texts) {
+            for (String text : itemTexts) {
+              extended.add(prefix.isEmpty() ? text
+                           : (text.isEmpty() ? prefix : (prefix + ' ' + text)));
+            }
+
+            checkSize(extended);
+          }
+
+          texts = extended;
+        }
+      } else if (rule instanceof JSGFRuleCount) {
+        JSGFRuleCount count = (JSGFRuleCount) rule;
+        if (count.getCount() != JSGFRuleCount.OPTIONAL) {
+          throw new IllegalStateException(String.format(
+              "The tag {%s} covers unbounded repetition (* or +)", tagName));
+        }
+
+        texts.add("");
+        texts.addAll(expand(ruleGrammar, count.getRule(), active));
+      }
+
+      return texts;
+    }
+
+    private void checkSize(Set<String> texts) {
+      if (texts.size() > maxValues) {
+        throw new IllegalStateException(String.format(
+            "The tag {%s} covers more than %d different texts", tagName, maxValues));
+      }
+    }
+  }
+
+}  // class GrammarConstraints
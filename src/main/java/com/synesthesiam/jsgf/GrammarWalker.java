@@ -0,0 +1,762 @@
+package com.synesthesiam.jsgf;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Walks the GrammarNode graph of a compiled grammar with bounded repetition.
+ *
+ * A * or + rule compiles into a cycle, so a path may visit the same node more
+ * than once. The arcs that close a cycle (back arcs of a depth-first search)
+ * lead to the first node of a repetition. Every time a path enters such a
+ * node from outside the repetition, its repeat count starts at one, and each
+ * back arc adds one, so a nested repetition gets the full maxRepeat in every
+ * iteration of the outer one. A path may go around a repetition at most
+ * maxRepeat times per entry and emit at most maxLength words. Both random
+ * and exhaustive generation therefore run over a finite state space.
+ *
+ * A random walk that backs off from dead ends or keeps repeating gives up
+ * after MAX_RANDOM_STEPS nodes instead of running for exponential time.
+ */
+class GrammarWalker {
+  public static final int UNLIMITED = 0;
+
+  // Nodes entered and left by one random walk before it gives up
+  static final long MAX_RANDOM_STEPS = 1000000;
+
+  private final int maxRepeat;
+  private final int maxLength;
+
+  // Back arcs of the last graph walked (read without a lock, since any
+  // thread computes the same ones)
+  private volatile BackArcs backArcs = null;
+
+  public GrammarWalker(int maxRepeat, int maxLength) {
+    this.maxRepeat = maxRepeat;
+    this.maxLength = maxLength;
+  }
+
+  public int getMaxRepeat() {
+    return maxRepeat;
+  }
+
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Generates a random sentence by following arcs with respect to their
+   * probabilities. Dead ends (<VOID> or an exhausted limit) back up to the
+   * previous node and try its remaining arcs.
+   *
+   * @return the sentence or null if no path satisfies the limits
+   */
+  public String randomSentence(GrammarNode initialNode, Random randomizer) {
+    Path path = new Path(getBackArcs(initialNode));
+    Deque<Frame> stack = new ArrayDeque<>();
+    stack.push(path.enter(initialNode));
+    long nodes = 1;
+    long steps = 1;
+
+    while (!stack.isEmpty()) {
+      Frame frame = stack.peek();
+      if (frame.node.isFinalNode()) {
+        Metrics.record(Metrics.Histogram.NODES_PER_SENTENCE, nodes);
+        return path.sentence();
+      }
+
+      if (++steps > MAX_RANDOM_STEPS) {
+        throw new IllegalStateException(String.format(
+            "Gave up on a random sentence after %d steps: %s", MAX_RANDOM_STEPS,
+            ((maxRepeat == UNLIMITED) && (maxLength == UNLIMITED))
+            ? "use --max-repeat or --max-length to bound * and + repetition"
+            : "--max-repeat/--max-length rule out almost every path"));
+      }
+
+      GrammarArc arc = frame.removeRandom(randomizer);
+      if (arc == null) {
+        // Dead end (<VOID> or limits reached)
+        path.leave(stack.pop());
+      } else {
+        stack.push(path.enter(arc));
+        nodes++;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Lazily enumerates every sentence in depth-first order. Duplicate
+   * sentences are not filtered.
+   */
+  public Cursor enumerate(GrammarNode initialNode) {
+    return new Cursor(initialNode);
+  }
+
+  BackArcs getBackArcs(GrammarNode initialNode) {
+    BackArcs arcs = backArcs;
+    if ((arcs == null) || (arcs.initialNode != initialNode)) {
+      arcs = new BackArcs(initialNode);
+      backArcs = arcs;
+    }
+
+    return arcs;
+  }
+
+  /**
+   * Lazily generates random sentences. The iterator ends early only if no
+   * path satisfies the limits.
+   */
+  public Iterator<String> randomSentences(GrammarNode initialNode, Random randomizer) {
+    return new Iterator<String>() {
+      private String next = null;
+      private boolean done = false;
+
+      @Override
+      public boolean hasNext() {
+        if ((next == null) && !done) {
+          // Only walk when the consumer asks for another sentence
+          next = randomSentence(initialNode, randomizer);
+          done = (next == null);
+        }
+
+        return next != null;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        String sentence = next;
+        next = null;
+        return sentence;
+      }
+    };
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Finds a cycle (from a * or + rule) reachable from the initial node.
+   *
+   * @return the nodes on the cycle or null if the graph is acyclic
+   */
+  public static List<GrammarNode> findCycle(GrammarNode initialNode) {
+    return findCycle(initialNode, new IdentityHashMap<>(), false);
+  }
+
+  /**
+   * Finds a cycle without words (e.g. a * rule around <NULL>) reachable from
+   * the initial node. The length limit doesn't end such a cycle.
+   *
+   * @return the nodes on the cycle or null if there is none
+   */
+  public static List<GrammarNode> findEmptyCycle(GrammarNode initialNode) {
+    Map<GrammarNode, Boolean> onStack = new IdentityHashMap<>();
+    for (GrammarNode node : postOrder(initialNode)) {
+      if (!onStack.containsKey(node) && (getSpelling(node) == null)) {
+        List<GrammarNode> cycle = findCycle(node, onStack, true);
+        if (cycle != null) {
+          return cycle;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /* Finds a cycle from a start node, through nodes without words if emptyOnly */
+  private static List<GrammarNode> findCycle(GrammarNode start, Map<GrammarNode, Boolean> onStack,
+                                             boolean emptyOnly) {
+    // Iterative DFS with white (absent), grey (on stack), black (done) nodes
+    Deque<GrammarNode> nodes = new ArrayDeque<>();
+    Deque<Integer> arcIndexes = new ArrayDeque<>();
+
+    nodes.push(start);
+    arcIndexes.push(0);
+    onStack.put(start, true);
+
+    while (!nodes.isEmpty()) {
+      GrammarNode node = nodes.peek();
+      int arcIndex = arcIndexes.pop();
+      GrammarArc[] arcs = node.getSuccessors();
+
+      if (arcIndex >= arcs.length) {
+        onStack.put(node, false);
+        nodes.pop();
+        continue;
+      }
+
+      arcIndexes.push(arcIndex + 1);
+      GrammarNode next = arcs[arcIndex].getGrammarNode();
+      if (emptyOnly && (getSpelling(next) != null)) {
+        continue;
+      }
+
+      Boolean state = onStack.get(next);
+      if (state == null) {
+        onStack.put(next, true);
+        nodes.push(next);
+        arcIndexes.push(0);
+      } else if (state) {
+        // Back edge: collect the cycle from the stack
+        List<GrammarNode> cycle = new ArrayList<>();
+        for (GrammarNode stackNode : nodes) {
+          cycle.add(0, stackNode);
+          if (stackNode == next) {
+            break;
+          }
+        }
+        return cycle;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Describes a cycle for diagnostics by the words along it.
+   */
+  public static String describeCycle(List<GrammarNode> cycle) {
+    StringBuilder sb = new StringBuilder();
+    for (GrammarNode node : cycle) {
+      String spelling = getSpelling(node);
+      if (spelling != null) {
+        sb.append(spelling).append(' ');
+      }
+    }
+
+    String words = sb.toString().trim();
+    return words.isEmpty() ? "<NULL>" : words;
+  }
+
+  /**
+   * Counts the paths that exhaustive enumeration walks within the length
+   * limit, i.e. the number of sentences before duplicates are removed. Paths
+   * are summed in post-order, per number of words left if the length is
+   * limited.
+   *
+   * @return the number of paths (as a double, since it can be huge) or -1 if
+   *         the graph has a cycle
+   */
+  public double countPaths(GrammarNode initialNode) {
+    if (findCycle(initialNode) != null) {
+      return -1;
+    }
+
+    int lengths = (maxLength == UNLIMITED) ? 1 : (maxLength + 1);
+    Map<GrammarNode, double[]> counts = new IdentityHashMap<>();
+
+    for (GrammarNode node : postOrder(initialNode)) {
+      double[] count = new double[lengths];
+      if (node.isFinalNode()) {
+        Arrays.fill(count, 1);
+      } else {
+        for (GrammarArc arc : node.getSuccessors()) {
+          GrammarNode next = arc.getGrammarNode();
+          double[] nextCount = counts.get(next);
+          for (int wordsLeft = getLength(next); wordsLeft < lengths; wordsLeft++) {
+            count[wordsLeft] += nextCount[wordsLeft - getLength(next)];
+          }
+        }
+      }
+
+      counts.put(node, count);
+    }
+
+    int wordsLeft = (lengths - 1) - getLength(initialNode);
+    return (wordsLeft < 0) ? 0 : counts.get(initialNode)[wordsLeft];
+  }
+
+  /* Words a node adds to a sentence as far as the length limit is concerned */
+  private int getLength(GrammarNode node) {
+    return ((maxLength != UNLIMITED) && !node.isFinalNode() && (getSpelling(node) != null))
+        ? 1 : 0;
+  }
+
+  /**
+   * Gets the nodes reachable from the initial node in depth-first post-order
+   * (successors of a final node are not followed).
+   */
+  static List<GrammarNode> postOrder(GrammarNode initialNode) {
+    List<GrammarNode> order = new ArrayList<>();
+    Map<GrammarNode, Boolean> seen = new IdentityHashMap<>();
+    Deque<GrammarNode> nodes = new ArrayDeque<>();
+    Deque<Integer> arcIndexes = new ArrayDeque<>();
+
+    nodes.push(initialNode);
+    arcIndexes.push(0);
+    seen.put(initialNode, true);
+
+    while (!nodes.isEmpty()) {
+      GrammarNode node = nodes.peek();
+      int arcIndex = arcIndexes.pop();
+      GrammarArc[] arcs = node.isFinalNode() ? new GrammarArc[0] : node.getSuccessors();
+
+      if (arcIndex >= arcs.length) {
+        order.add(nodes.pop());
+        continue;
+      }
+
+      arcIndexes.push(arcIndex + 1);
+      GrammarNode next = arcs[arcIndex].getGrammarNode();
+      if (seen.put(next, true) == null) {
+        nodes.push(next);
+        arcIndexes.push(0);
+      }
+    }
+
+    return order;
+  }
+
+  /**
+   * Gets the spelling of a node's word or null if it has none.
+   */
+  static String getSpelling(GrammarNode node) {
+    if (!node.isEmpty()) {
+      Word word = node.getWord();
+      if (!word.isFiller() && !word.getSpelling().isEmpty()) {
+        return word.getSpelling();
+      }
+    }
+
+    return null;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Selects an arc with respect to the arc-probabilities (which are log and we
+   * don't have a logMath here which makes the implementation a little bit
+   * messy).
+   */
+  static int selectRandomIndex(List<GrammarArc> arcs, Random randomizer) {
+    if (arcs.size() < 2) {
+      return 0;
+    }
+
+    double[] linWeights = new double[arcs.size()];
+    double linWeightsSum = 0;
+
+    final double EPS = 1E-10;
+
+    for (int i = 0; i < linWeights.length; i++) {
+      linWeights[i] = (arcs.get(0).getProbability() + EPS) / (arcs.get(i).getProbability() + EPS);
+      linWeightsSum += linWeights[i];
+    }
+
+    for (int i = 0; i < linWeights.length; i++) {
+      linWeights[i] /= linWeightsSum;
+    }
+
+    double selIndex = randomizer.nextDouble();
+    int index = 0;
+    for (int i = 0; (selIndex > EPS) && (i < linWeights.length); i++) {
+      index = i;
+      selIndex -= linWeights[i];
+    }
+
+    return index;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Depth-first enumeration that pauses after each sentence. The remaining
+   * work can be split off into a second cursor for parallel enumeration.
+   */
+  class Cursor implements Iterator<String> {
+    private final Path path;
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private String next = null;
+
+    Cursor(GrammarNode initialNode) {
+      path = new Path(getBackArcs(initialNode));
+      stack.push(path.enter(initialNode));
+    }
+
+    private Cursor(Path path, Frame frame) {
+      this.path = path;
+      stack.push(frame);
+    }
+
+    private void advance() {
+      while ((next == null) && !stack.isEmpty()) {
+        Frame frame = stack.peek();
+        if (frame.node.isFinalNode()) {
+          next = path.sentence();
+          path.leave(stack.pop());
+          continue;
+        }
+
+        GrammarArc arc = frame.removeFirst();
+        if (arc == null) {
+          path.leave(stack.pop());
+        } else {
+          stack.push(path.enter(arc));
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      advance();
+      return next != null;
+    }
+
+    @Override
+    public String next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      String sentence = next;
+      next = null;
+      return sentence;
+    }
+
+    /**
+     * Moves the unexplored arcs of the frame closest to the initial node into
+     * a new cursor. That frame has the largest remaining subtrees. In
+     * depth-first order, everything the new cursor produces comes after
+     * everything this cursor still produces.
+     *
+     * @return the new cursor or null if there is nothing to split
+     */
+    Cursor split() {
+      Frame bottom = null;
+      for (Iterator<Frame> frames = stack.descendingIterator(); frames.hasNext(); ) {
+        Frame frame = frames.next();
+        if (!frame.arcs.isEmpty()) {
+          bottom = frame;
+          break;
+        }
+      }
+
+      if (bottom == null) {
+        return null;
+      }
+
+      // Rewind a copy of the path back to the split frame
+      Path splitPath = new Path(path);
+      for (Frame frame : stack) {
+        if (frame == bottom) {
+          break;
+        }
+
+        splitPath.leave(frame);
+      }
+
+      Frame splitFrame = new Frame(bottom.node, bottom.hasWord, bottom.savedRepeats,
+                                   new ArrayList<>(bottom.arcs));
+      bottom.arcs.clear();
+
+      return new Cursor(splitPath, splitFrame);
+    }
+  }
+
+  /* Node on the current path with the arcs that are still viable from it */
+  private static class Frame {
+    final GrammarNode node;
+    final boolean hasWord;
+
+    // Repeat count of the node before it was entered (null if it had none)
+    final Integer savedRepeats;
+
+    final List<GrammarArc> arcs;
+
+    Frame(GrammarNode node, boolean hasWord, Integer savedRepeats, List<GrammarArc> arcs) {
+      this.node = node;
+      this.hasWord = hasWord;
+      this.savedRepeats = savedRepeats;
+      this.arcs = arcs;
+    }
+
+    GrammarArc removeFirst() {
+      return arcs.isEmpty() ? null : arcs.remove(0);
+    }
+
+    GrammarArc removeRandom(Random randomizer) {
+      return arcs.isEmpty() ? null : arcs.remove(selectRandomIndex(arcs, randomizer));
+    }
+  }
+
+  /* Arcs that close a cycle, found by a depth-first search from the initial node */
+  static class BackArcs {
+    final GrammarNode initialNode;
+    final Set<GrammarArc> arcs = Collections.newSetFromMap(new IdentityHashMap<>());
+    final Set<GrammarNode> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    static final int[] NO_REPEATS = new int[0];
+
+    // First nodes of the repetitions that contain each node (found on demand)
+    private Map<GrammarNode, GrammarNode[]> loops = null;
+
+    BackArcs(GrammarNode initialNode) {
+      this.initialNode = initialNode;
+
+      // Iterative DFS with white (absent), grey (on stack), black (done) nodes
+      Map<GrammarNode, Boolean> onStack = new IdentityHashMap<>();
+      Deque<GrammarNode> nodes = new ArrayDeque<>();
+      Deque<Integer> arcIndexes = new ArrayDeque<>();
+
+      nodes.push(initialNode);
+      arcIndexes.push(0);
+      onStack.put(initialNode, true);
+
+      while (!nodes.isEmpty()) {
+        GrammarNode node = nodes.peek();
+        int arcIndex = arcIndexes.pop();
+        GrammarArc[] successors = node.getSuccessors();
+
+        if (arcIndex >= successors.length) {
+          onStack.put(node, false);
+          nodes.pop();
+          continue;
+        }
+
+        arcIndexes.push(arcIndex + 1);
+        GrammarNode next = successors[arcIndex].getGrammarNode();
+        Boolean state = onStack.get(next);
+
+        if (state == null) {
+          onStack.put(next, true);
+          nodes.push(next);
+          arcIndexes.push(0);
+        } else if (state) {
+          arcs.add(successors[arcIndex]);
+          targets.add(next);
+        }
+      }
+    }
+
+    /*
+     * Gets the repeat counts of the repetitions around a node after an arc
+     * into it, or null if the arc goes around a repetition too often.
+     */
+    int[] enter(GrammarNode node, int[] repeats, GrammarNode next, boolean backArc, int maxRepeat) {
+      GrammarNode[] nextLoops = getLoops().get(next);
+      if (nextLoops == null) {
+        return NO_REPEATS;
+      }
+
+      int[] nextRepeats = new int[nextLoops.length];
+      for (int i = 0; i < nextLoops.length; i++) {
+        if (nextLoops[i] != next) {
+          // Still inside, since a repetition is only entered at its first node
+          nextRepeats[i] = getRepeats(node, repeats, nextLoops[i]);
+        } else if (backArc) {
+          nextRepeats[i] = getRepeats(node, repeats, next) + 1;
+          if (nextRepeats[i] > maxRepeat) {
+            return null;
+          }
+        } else {
+          nextRepeats[i] = 1;
+        }
+      }
+
+      return nextRepeats;
+    }
+
+    private int getRepeats(GrammarNode node, int[] repeats, GrammarNode loop) {
+      GrammarNode[] nodeLoops = (node == null) ? null : getLoops().get(node);
+      if (nodeLoops != null) {
+        for (int i = 0; i < nodeLoops.length; i++) {
+          if (nodeLoops[i] == loop) {
+            return repeats[i];
+          }
+        }
+      }
+
+      return 1;
+    }
+
+    /*
+     * Finds the nodes of each repetition: its first node and the nodes that
+     * reach a back arc into it without passing through it.
+     */
+    private synchronized Map<GrammarNode, GrammarNode[]> getLoops() {
+      if (loops != null) {
+        return loops;
+      }
+
+      loops = new IdentityHashMap<>();
+      Map<GrammarNode, List<GrammarNode>> predecessors = new IdentityHashMap<>();
+      Deque<GrammarNode> unvisited = new ArrayDeque<>();
+      predecessors.put(initialNode, new ArrayList<>());
+      unvisited.push(initialNode);
+      while (!unvisited.isEmpty()) {
+        GrammarNode node = unvisited.pop();
+        for (GrammarArc arc : node.getSuccessors()) {
+          GrammarNode next = arc.getGrammarNode();
+          if (!predecessors.containsKey(next)) {
+            predecessors.put(next, new ArrayList<>());
+            unvisited.push(next);
+          }
+
+          predecessors.get(next).add(node);
+        }
+      }
+
+      // Walk back from each back arc to its target
+      Map<GrammarNode, Set<GrammarNode>> bodies = new IdentityHashMap<>();
+      for (GrammarNode source : predecessors.keySet()) {
+        for (GrammarArc arc : source.getSuccessors()) {
+          if (!arcs.contains(arc)) {
+            continue;
+          }
+
+          Set<GrammarNode> body = bodies.computeIfAbsent(arc.getGrammarNode(), loop -> {
+            Set<GrammarNode> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+            nodes.add(loop);
+            return nodes;
+          });
+
+          if (body.add(source)) {
+            unvisited.push(source);
+          }
+
+          while (!unvisited.isEmpty()) {
+            for (GrammarNode node : predecessors.get(unvisited.pop())) {
+              if (body.add(node)) {
+                unvisited.push(node);
+              }
+            }
+          }
+        }
+      }
+
+      Map<GrammarNode, List<GrammarNode>> loopLists = new IdentityHashMap<>();
+      for (Map.Entry<GrammarNode, Set<GrammarNode>> body : bodies.entrySet()) {
+        for (GrammarNode node : body.getValue()) {
+          loopLists.computeIfAbsent(node, key -> new ArrayList<>()).add(body.getKey());
+        }
+      }
+
+      for (Map.Entry<GrammarNode, List<GrammarNode>> entry : loopLists.entrySet()) {
+        loops.put(entry.getKey(), entry.getValue().toArray(new GrammarNode[0]));
+      }
+
+      return loops;
+    }
+  }
+
+  /* Words and repeat counts along the current path */
+  private class Path {
+    final BackArcs backArcs;
+    final List<String> words;
+
+    // Times around each repetition on the path since it was entered
+    final Map<GrammarNode, Integer> repeats;
+
+    Path(BackArcs backArcs) {
+      this.backArcs = backArcs;
+      words = new ArrayList<>();
+      repeats = new IdentityHashMap<>();
+    }
+
+    Path(Path other) {
+      backArcs = other.backArcs;
+      words = new ArrayList<>(other.words);
+      repeats = new IdentityHashMap<>(other.repeats);
+    }
+
+    Frame enter(GrammarArc arc) {
+      GrammarNode node = arc.getGrammarNode();
+      Integer saved = repeats.get(node);
+      if (backArcs.arcs.contains(arc)) {
+        // Around the repetition once more
+        repeats.put(node, (saved != null) ? saved + 1 : 1);
+      } else if (backArcs.targets.contains(node)) {
+        // Entered from outside, so it starts over
+        repeats.put(node, 1);
+      }
+
+      return expand(node, saved);
+    }
+
+    Frame enter(GrammarNode initialNode) {
+      Integer saved = repeats.get(initialNode);
+      if (backArcs.targets.contains(initialNode)) {
+        repeats.put(initialNode, 1);
+      }
+
+      return expand(initialNode, saved);
+    }
+
+    private Frame expand(GrammarNode node, Integer savedRepeats) {
+      String spelling = node.isFinalNode() ? null : getSpelling(node);
+      if (spelling != null) {
+        words.add(spelling);
+      }
+
+      // Arcs whose target is still within the repeat and length limits.
+      // Limits only depend on the path, so they are fixed for this frame.
+      GrammarArc[] arcs = node.getSuccessors();
+      Metrics.count(Metrics.Counter.NODES_VISITED);
+      Metrics.add(Metrics.Counter.ARCS_EVALUATED, arcs.length);
+
+      List<GrammarArc> viable = new ArrayList<>();
+      for (GrammarArc arc : arcs) {
+        GrammarNode next = arc.getGrammarNode();
+        if ((maxRepeat != UNLIMITED) && backArcs.arcs.contains(arc)
+            && (repeats.getOrDefault(next, 0) >= maxRepeat)) {
+          continue;
+        }
+
+        if ((maxLength != UNLIMITED) && (words.size() >= maxLength)
+            && !next.isFinalNode() && (getSpelling(next) != null)) {
+          continue;
+        }
+
+        viable.add(arc);
+      }
+
+      if (viable.isEmpty() && !node.isFinalNode()) {
+        // The walk has to back off from here
+        Metrics.count(Metrics.Counter.DEAD_ENDS);
+      }
+
+      return new Frame(node, spelling != null, savedRepeats, viable);
+    }
+
+    void leave(Frame frame) {
+      if (frame.savedRepeats == null) {
+        repeats.remove(frame.node);
+      } else {
+        repeats.put(frame.node, frame.savedRepeats);
+      }
+
+      if (frame.hasWord) {
+        words.remove(words.size() - 1);
+      }
+    }
+
+    String sentence() {
+      return String.join(" ", words);
+    }
+  }
+
+}  // class GrammarWalker
@@ -0,0 +1,167 @@
+package com.synesthesiam.jsgf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FilenameUtils;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammarException;
+import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Re-runs one mode every time a grammar or one of its imports changes.
+ *
+ * The directories of the grammar and of every file it imports are watched
+ * with a WatchService. When files change, only they and the imported
+ * grammars that refer to them (directly or through other imports) are
+ * dropped from an ImportCache; the grammar is then reloaded, so unchanged
+ * imports aren't parsed again. Errors are reported and watching goes on.
+ */
+class GrammarWatcher {
+  // Changes that arrive this soon after another are handled together (an
+  // editor may write a file several times when saving it)
+  private static final long SETTLE_MILLIS = 100;
+
+  private final File grammarFile;
+  private final BatchProcessor.Loader loader;
+  private final BatchProcessor.Mode mode;
+  private final PrintStream out;
+  private final ImportCache importCache;
+
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+
+  public GrammarWatcher(File grammarFile, BatchProcessor.Loader loader, BatchProcessor.Mode mode,
+                        PrintStream out, boolean sphinxLoader) throws IOException {
+    this.grammarFile = grammarFile.getAbsoluteFile();
+    this.loader = loader;
+    this.mode = mode;
+    this.out = out;
+    this.importCache = new ImportCache(sphinxLoader);
+    this.watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Runs the mode, then again after every change until the thread is
+   * interrupted.
+   */
+  public void run() throws IOException {
+    try {
+      runOnce();
+      while (true) {
+        for (File file : waitForChanges()) {
+          importCache.invalidate(file);
+        }
+
+        runOnce();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } finally {
+      watchService.close();
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Loads the grammar and runs the mode, reporting errors instead of throwing */
+  private void runOnce() throws IOException {
+    String name = FilenameUtils.removeExtension(grammarFile.getName());
+    int cachedBefore = importCache.size();
+
+    try {
+      long startTime = System.nanoTime();
+      CompiledGrammar compiled = loader.load(grammarFile, importCache);
+      long loadMillis = (System.nanoTime() - startTime) / 1000000;
+
+      // The grammar itself and the imports that weren't cached
+      int parsed = 1 + Math.max(0, importCache.size() - cachedBefore);
+
+      startTime = System.nanoTime();
+      mode.run(compiled, out);
+      long runMillis = (System.nanoTime() - startTime) / 1000000;
+
+      System.err.println(String.format(
+          "%s: loaded in %d ms (%d grammar(s) parsed), ran in %d ms; watching for changes",
+          name, loadMillis, parsed, runMillis));
+    } catch (IOException ex) {
+      if (ex.getCause() instanceof JSGFGrammarParseException) {
+        System.err.println(JsgfGen.describeParseError((JSGFGrammarParseException)ex.getCause()));
+      } else if (ex.getCause() instanceof JSGFGrammarException) {
+        // Missing import or rule
+        System.err.println(ex.getCause().getMessage().trim());
+      } else {
+        System.err.println(String.valueOf(ex.getMessage()));
+      }
+    } catch (RuntimeException ex) {
+      System.err.println(String.valueOf(ex.getMessage()));
+    } finally {
+      out.flush();
+    }
+
+    // Includes imports that failed to load, so fixing them is noticed
+    watch(grammarFile);
+    for (File file : importCache.getFiles()) {
+      watch(file);
+    }
+  }
+
+  private void watch(File file) throws IOException {
+    Path dir = file.getParentFile().toPath();
+    if (watchedDirs.containsValue(dir) || !dir.toFile().isDirectory()) {
+      return;
+    }
+
+    WatchKey key = dir.register(watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY,
+                                StandardWatchEventKinds.ENTRY_DELETE);
+    watchedDirs.put(key, dir);
+  }
+
+  /* Blocks until the grammar or an import changes and returns the changed files */
+  private Set<File> waitForChanges() throws InterruptedException {
+    Set<File> grammarFiles = new HashSet<>(importCache.getFiles());
+    grammarFiles.add(grammarFile);
+
+    Set<File> changedFiles = new HashSet<>();
+    while (changedFiles.isEmpty()) {
+      WatchKey key = watchService.take();
+      while (key != null) {
+        Path dir = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if ((dir != null) && (event.context() instanceof Path)) {
+            File changed = dir.resolve((Path) event.context()).toFile();
+            if (grammarFiles.contains(changed)) {
+              changedFiles.add(changed);
+            }
+          }
+        }
+
+        if (!key.reset()) {
+          // Directory is gone
+          watchedDirs.remove(key);
+        }
+
+        key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    return changedFiles;
+  }
+
+}  // class GrammarWatcher
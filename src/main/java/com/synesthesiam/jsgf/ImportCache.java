@@ -0,0 +1,323 @@
+package com.synesthesiam.jsgf;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.JSGFGrammarException;
+import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammarFactory;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammarManager;
+import edu.cmu.sphinx.jsgf.parser.JSGFParser;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Parses imported grammars once and shares them read-only between all
+ * grammars loaded through the cache.
+ *
+ * Normally each JSGFGrammar has its own grammar manager and re-parses every
+ * import. Grammars created by newGrammar() get a manager that falls back to a
+ * shared manager per base directory. A missing import is parsed, together
+ * with the imports it needs, into a private manager; the grammars are linked
+ * and have their rule names qualified there and are only put into the shared
+ * manager once complete, so other threads never see a half-built grammar and
+ * shared grammars are never modified afterwards.
+ */
+class ImportCache {
+  private final boolean sphinxLoader;
+  private final Map<String, SharedManager> managers = new ConcurrentHashMap<>();
+
+  public ImportCache() {
+    this(false);
+  }
+
+  /**
+   * Creates a cache for grammars loaded with the Sphinx JSGF parser and
+   * graph builder (or JsgfReader and NativeJsgfGrammar).
+   */
+  public ImportCache(boolean sphinxLoader) {
+    this.sphinxLoader = sphinxLoader;
+  }
+
+  public boolean isSphinxLoader() {
+    return sphinxLoader;
+  }
+
+  /**
+   * Creates an unallocated grammar whose imports come from the cache.
+   */
+  public JSGFGrammar newGrammar(URL baseURL, String grammarName, Dictionary dictionary) {
+    SharedManager shared =
+        managers.computeIfAbsent(baseURL.toString(),
+                                 key -> new SharedManager(baseURL, sphinxLoader));
+
+    if (sphinxLoader) {
+      return new CachedGrammar(baseURL, grammarName, dictionary, shared);
+    }
+
+    return new NativeJsgfGrammar(baseURL, grammarName, dictionary, new ImportingManager(shared));
+  }
+
+  /**
+   * Gets the number of imported grammars that have been parsed.
+   */
+  public int size() {
+    int size = 0;
+    for (SharedManager manager : managers.values()) {
+      size += manager.grammars().size();
+    }
+
+    return size;
+  }
+
+  /**
+   * Gets the files of all imported grammars that have been read, including
+   * the ones that failed to load.
+   */
+  public Set<File> getFiles() {
+    Set<File> files = new HashSet<>();
+    for (SharedManager manager : managers.values()) {
+      files.addAll(manager.files);
+    }
+
+    return files;
+  }
+
+  /**
+   * Drops the grammar of a changed file and every cached grammar that refers
+   * to it, directly or through other grammars, so that they are parsed again
+   * the next time they are imported. The other grammars stay cached.
+   *
+   * @return the number of grammars dropped
+   */
+  public int invalidate(File file) {
+    int dropped = 0;
+    for (SharedManager manager : managers.values()) {
+      dropped += manager.invalidate(file.getAbsoluteFile());
+    }
+
+    return dropped;
+  }
+
+  private static boolean refersToAny(JSGFRuleGrammar grammar, Set<String> grammarNames) {
+    for (JSGFRuleName importName : grammar.getImports()) {
+      if (grammarNames.contains(importName.getFullGrammarName())) {
+        return true;
+      }
+    }
+
+    for (String grammarName : NativeJsgfGrammar.getReferencedGrammars(grammar)) {
+      if (grammarNames.contains(grammarName)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static class CachedGrammar extends JSGFGrammar {
+    CachedGrammar(URL baseURL, String grammarName, Dictionary dictionary,
+                  SharedManager shared) {
+      super(baseURL,
+            grammarName,
+            false, /* showGrammar */
+            true,  /* optimizeGrammar */
+            false, /* addSilenceWords */
+            false, /* addFillerWords */
+            dictionary);
+
+      manager = new ImportingManager(shared);
+    }
+  }
+
+  /* Manager for one grammar that looks up imports in the shared manager */
+  private static class ImportingManager extends JSGFRuleGrammarManager {
+    private final SharedManager shared;
+
+    ImportingManager(SharedManager shared) {
+      this.shared = shared;
+    }
+
+    @Override
+    public JSGFRuleGrammar retrieveGrammar(String grammarName) {
+      JSGFRuleGrammar grammar = super.retrieveGrammar(grammarName);
+      return (grammar != null) ? grammar : shared.retrieveGrammar(grammarName);
+    }
+  }
+
+  /* Manager for the imported grammars of one base directory */
+  private static class SharedManager extends JSGFRuleGrammarManager {
+    private final URL baseURL;
+    private final boolean sphinxLoader;
+
+    // Every grammar file this manager tried to read
+    final Set<File> files = ConcurrentHashMap.newKeySet();
+
+    SharedManager(URL baseURL, boolean sphinxLoader) {
+      this.baseURL = baseURL;
+      this.sphinxLoader = sphinxLoader;
+
+      // Looked up without a lock while parsing sentences
+      grammars = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public JSGFRuleGrammar retrieveGrammar(String grammarName) {
+      // Only complete grammars are ever put into the map
+      JSGFRuleGrammar grammar = grammars.get(grammarName);
+      return (grammar != null) ? grammar : load(grammarName);
+    }
+
+    JSGFRuleGrammar getPublished(String grammarName) {
+      return grammars.get(grammarName);
+    }
+
+    File getFile(String grammarName) {
+      try {
+        File file = FileUtils.toFile(getURL(grammarName));
+        return (file != null) ? file.getAbsoluteFile() : null;
+      } catch (MalformedURLException ex) {
+        return null;
+      }
+    }
+
+    int invalidate(File file) {
+      Set<String> droppedNames = new HashSet<>();
+      for (String grammarName : grammars.keySet()) {
+        if (file.equals(getFile(grammarName))) {
+          droppedNames.add(grammarName);
+        }
+      }
+
+      // Imports only resolve within the same base directory
+      boolean changed = !droppedNames.isEmpty();
+      while (changed) {
+        changed = false;
+        for (JSGFRuleGrammar grammar : grammars.values()) {
+          if (!droppedNames.contains(grammar.getName())
+              && refersToAny(grammar, droppedNames)) {
+            droppedNames.add(grammar.getName());
+            changed = true;
+          }
+        }
+      }
+
+      grammars.keySet().removeAll(droppedNames);
+      return droppedNames.size();
+    }
+
+    private URL getURL(String grammarName) throws MalformedURLException {
+      return new URL(baseURL, grammarName.replace('.', '/') + ".gram");
+    }
+
+    private JSGFRuleGrammar load(String grammarName) {
+      // JsgfReader has no global state, so only loads for this directory
+      // need to wait for each other
+      synchronized (sphinxLoader ? CompiledGrammar.LOAD_LOCK : this) {
+        // Already loaded by another thread
+        JSGFRuleGrammar grammar = grammars.get(grammarName);
+        if (grammar != null) {
+          return grammar;
+        }
+
+        // The factories store grammars in their manager before the rules
+        // are parsed, so the grammar and any imports it needs are built in
+        // a private manager and only published once they are linked
+        LoadingManager loading = new LoadingManager(this);
+        try {
+          grammar = parse(grammarName, loading);
+          if (grammar == null) {
+            // Let JSGFGrammar report the missing grammar
+            return null;
+          }
+
+          for (JSGFRuleGrammar loaded : loading.grammars()) {
+            if (sphinxLoader) {
+              loaded.resolveAllRules();
+            } else {
+              NativeJsgfGrammar.resolveRules(loaded, loading);
+            }
+            CompiledGrammar.qualifyRuleNames(loaded);
+          }
+
+          for (JSGFRuleGrammar loaded : loading.grammars()) {
+            grammars.put(loaded.getName(), loaded);
+          }
+
+          return grammar;
+        } catch (JSGFGrammarException ex) {
+          throw new UncheckedIOException(new IOException(ex));
+        }
+      }
+    }
+
+    /* Parses a grammar and the imports that aren't published yet into a loading manager */
+    JSGFRuleGrammar parse(String grammarName, LoadingManager loading) {
+      try {
+        URL url = getURL(grammarName);
+        File file = getFile(grammarName);
+        if (file != null) {
+          files.add(file);
+        }
+
+        // Stores the grammar in the loading manager, so import cycles end here
+        JSGFRuleGrammar grammar;
+        if (sphinxLoader) {
+          grammar = JSGFParser.newGrammarFromJSGF(url, new JSGFRuleGrammarFactory(loading));
+        } else {
+          grammar = JsgfReader.read(url, loading);
+        }
+
+        grammar.setEnabled(true);
+
+        for (JSGFRuleName importName : grammar.getImports()) {
+          loading.retrieveGrammar(importName.getFullGrammarName());
+        }
+
+        return grammar;
+      } catch (FileNotFoundException ex) {
+        return null;
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      } catch (JSGFGrammarParseException ex) {
+        throw new UncheckedIOException(new IOException(ex));
+      }
+    }
+  }
+
+  /* Manager for one load of the shared manager, discarded if it fails */
+  private static class LoadingManager extends JSGFRuleGrammarManager {
+    private final SharedManager shared;
+
+    LoadingManager(SharedManager shared) {
+      this.shared = shared;
+    }
+
+    @Override
+    public JSGFRuleGrammar retrieveGrammar(String grammarName) {
+      JSGFRuleGrammar grammar = super.retrieveGrammar(grammarName);
+      if (grammar == null) {
+        grammar = shared.getPublished(grammarName);
+      }
+
+      return (grammar != null) ? grammar : shared.parse(grammarName, this);
+    }
+  }
+
+}  // class ImportCache
@@ -0,0 +1,103 @@
+package com.synesthesiam.jsgf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.dictionary.Word;
+import edu.cmu.sphinx.util.props.PropertyException;
+import edu.cmu.sphinx.util.props.PropertySheet;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Dictionary without pronunciations that returns one canonical Word per
+ * spelling.
+ *
+ * The grammar compiler looks up every word occurrence separately, so without
+ * interning a token repeated across many rules holds one Word per
+ * occurrence. Each distinct spelling also gets a dense token id (0, 1, 2, ...)
+ * in order of first lookup.
+ */
+class InterningDictionary implements Dictionary {
+  // Read without a lock while generating
+  private final Map<String, Integer> tokenIds = new ConcurrentHashMap<>();
+  private final List<Word> words = new ArrayList<>();
+
+  @Override
+  public synchronized Word getWord(String text) {
+    if ("<sil>".equals(text)) {
+      text = "";  // exclude silence token
+    }
+
+    Integer tokenId = tokenIds.get(text);
+    if (tokenId == null) {
+      words.add(new Word(text, null, false));
+      tokenId = words.size() - 1;
+      tokenIds.put(text, tokenId);
+    }
+
+    return words.get(tokenId);
+  }
+
+  /**
+   * Gets the dense id of a token.
+   *
+   * @return the id or -1 if the token has never been looked up
+   */
+  public int getTokenId(String text) {
+    Integer tokenId = tokenIds.get(text);
+    return (tokenId == null) ? -1 : tokenId;
+  }
+
+  /**
+   * Gets the spelling of a token id.
+   */
+  public synchronized String getToken(int tokenId) {
+    return words.get(tokenId).getSpelling();
+  }
+
+  /**
+   * Gets the number of distinct tokens (including the empty silence token).
+   */
+  public int size() {
+    return tokenIds.size();
+  }
+
+  // --------------------------------------------------------------------------
+
+  @Override
+  public Word getSentenceStartWord() {
+    return null;
+  }
+
+  @Override
+  public Word getSentenceEndWord() {
+    return null;
+  }
+
+  @Override
+  public Word getSilenceWord() {
+    return null;
+  }
+
+  @Override
+  public void allocate() {
+  }
+
+  @Override
+  public void deallocate() {
+  }
+
+  @Override
+  public Word[] getFillerWords() {
+    return new Word[] { };
+  }
+
+  @Override
+  public void newProperties(PropertySheet arg0) throws PropertyException {
+  }
+
+}  // class InterningDictionary
@@ -1,16 +1,26 @@
 package com.synesthesiam.jsgf;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Type;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,12 +32,12 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.io.FilenameUtils;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
 import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.JSGFGrammarException;
 import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
 import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
 import edu.cmu.sphinx.jsgf.rule.JSGFRule;
@@ -35,15 +45,10 @@ import edu.cmu.sphinx.jsgf.rule.JSGFRuleAlternatives;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleCount;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
-import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleToken;
-import edu.cmu.sphinx.linguist.dictionary.Dictionary;
 import edu.cmu.sphinx.linguist.dictionary.Word;
-import edu.cmu.sphinx.linguist.language.grammar.Grammar;
 import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
 import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
-import edu.cmu.sphinx.util.props.PropertyException;
-import edu.cmu.sphinx.util.props.PropertySheet;
 
 // --------------------------------------------------------------------------
 
@@ -51,9 +56,6 @@ public class JsgfGen {
   private static final Logger logger = Logger.getLogger(JsgfGen.class.getName());
   private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
-  private static Random randomizer = new Random();
-  private static JSGFRuleGrammar ruleGrammar = null;
-
   public static void main(String[] args) throws Exception {
     Options options =
         new Options()
@@ -62,13 +64,60 @@ public class JsgfGen {
                    .longOpt("grammar")
                    .desc("JSGF grammar")
                    .hasArg()
-                   .required()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("batch")
+                   .desc("Directory of grammars or manifest file (one grammar path per line) to process instead of --grammar")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("output-dir")
+                   .desc("Directory for per-grammar output files with --batch")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("jobs")
+                   .desc("Number of grammars processed at the same time with --batch (defaults to number of processors)")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("watch")
+                   .desc("Keep running and re-run the mode whenever --grammar or one of its imports changes")
                    .build())
         .addOption(Option.builder()
                    .longOpt("count")
                    .desc("Number of random sentences to generate")
                    .hasArg()
                    .build())
+        .addOption(Option.builder()
+                   .longOpt("coverage")
+                   .desc("Generate few sentences that use every alternative and token at least K times (then fill up to --count with random sentences)")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("uniform")
+                   .desc("Pick every path through the grammar with the same probability for --count (ignoring weights)")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("unique")
+                   .desc("Generate N distinct sentences from uniform random paths without replacement (all sentences if there are fewer)")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("quota")
+                   .desc("Generate exactly the numbers of sentences per rule, tag or tag value in a JSON file")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("rule")
+                   .desc("Only generate sentences from this rule")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("constrain")
+                   .desc("Only generate sentences where a tag covers the given text (tag=value, may be repeated)")
+                   .hasArg()
+                   .build())
         .addOption(Option.builder()
                    .longOpt("tags")
                    .desc("Add tags using Markdown entity style")
@@ -77,6 +126,10 @@ public class JsgfGen {
                    .longOpt("classes")
                    .desc("Add tags names in upper case")
                    .build())
+        .addOption(Option.builder()
+                   .longOpt("binary")
+                   .desc("Write --count, --coverage, --unique, --quota or --exhaustive sentences as a binary corpus of token ids (with tag spans if --tags)")
+                   .build())
         .addOption(Option.builder()
                    .longOpt("seed")
                    .desc("Random number generator seed value (defaults to random)")
@@ -91,10 +144,90 @@ public class JsgfGen {
                    .hasArg()
                    .desc("Replace rule alternatives with basic tokens (JSON input)")
                    .build())
+        .addOption(Option.builder()
+                   .longOpt("parse-nbest")
+                   .hasArg()
+                   .desc("Parse groups of hypotheses (separated by blank lines) from a file")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("fuzzy")
+                   .hasArg()
+                   .desc("Match each line of a file to the closest grammar sentence")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("max-edits")
+                   .hasArg()
+                   .desc("Maximum token insertions, deletions and substitutions for --fuzzy (defaults to 2)")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("beam")
+                   .hasArg()
+                   .desc("Number of search states kept per input token for --fuzzy (defaults to 1000)")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("ambiguity")
+                   .desc("Report the rules that let two paths produce the same sentence")
+                   .build())
         .addOption(Option.builder()
                    .longOpt("exhaustive")
                    .desc("Enumerate all phrases in the grammar")
                    .build())
+        .addOption(Option.builder()
+                   .longOpt("threads")
+                   .desc("Number of threads for --exhaustive and --quota (defaults to 1)")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("ordered")
+                   .desc("Keep the sequential order of --exhaustive output with --threads")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("top-k")
+                   .desc("Print the K most probable sentences with their log probabilities")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("max-repeat")
+                   .desc("Maximum number of times a * or + repetition is expanded (required with --exhaustive for infinite grammars)")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("max-length")
+                   .desc("Maximum number of words in a generated sentence")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("progress")
+                   .desc("Report sentences generated, rate, duplicates and estimated total to stderr every SECONDS (defaults to 5)")
+                   .hasArg()
+                   .optionalArg(true)
+                   .argName("SECONDS")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("max-time")
+                   .desc("Stop generating sentences after this many seconds")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("max-output-bytes")
+                   .desc("Stop generating sentences before the output exceeds this many bytes")
+                   .hasArg()
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("stats")
+                   .desc("Write counters, histograms and phase times as JSON to FILE (defaults to stderr) at the end")
+                   .hasArg()
+                   .optionalArg(true)
+                   .argName("FILE")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("heap")
+                   .desc("Report the heap used by and the time to load each grammar to stderr")
+                   .build())
+        .addOption(Option.builder()
+                   .longOpt("sphinx-loader")
+                   .desc("Load grammars with the Sphinx JSGF parser instead of the built-in one")
+                   .build())
         .addOption(Option.builder()
                    .longOpt("debug")
                    .desc("Enable finer level of logging to the console")
@@ -117,243 +250,594 @@ public class JsgfGen {
       logger.getParent().getHandlers()[0].setLevel(Level.FINE);
     }
 
+    if (cmd.hasOption("stats")) {
+      Metrics.enable();
+    } else {
+      // Events for a flight recording (see Metrics)
+      Metrics.enableIfRecording();
+    }
+
+    if (!cmd.hasOption("grammar") && !cmd.hasOption("batch")) {
+      System.err.println("Either --grammar or --batch is required");
+      System.exit(1);
+    }
+
     if (!cmd.hasOption("count")
+        && !cmd.hasOption("coverage")
+        && !cmd.hasOption("unique")
+        && !cmd.hasOption("quota")
         && !cmd.hasOption("tokens")
         && !cmd.hasOption("exhaustive")
-        && !cmd.hasOption("replace")) {
-      System.err.println("Either --count or --exhaustive or --tokens or --replace is required");
+        && !cmd.hasOption("top-k")
+        && !cmd.hasOption("replace")
+        && !cmd.hasOption("parse-nbest")
+        && !cmd.hasOption("fuzzy")
+        && !cmd.hasOption("ambiguity")) {
+      System.err.println("Either --count or --coverage or --unique or --quota or --exhaustive or --top-k or --tokens or --replace or --parse-nbest or --fuzzy or --ambiguity is required");
       System.exit(1);
     }
 
-    if (cmd.hasOption("seed")) {
-      // Use provided seed
-      randomizer = new Random(Integer.parseInt(cmd.getOptionValue("seed")));
-    }
-
     // ------------------------------------------------------------------------
 
-    File grammarFile = new File(cmd.getOptionValue("grammar")).getAbsoluteFile();
-
+    final CommandLine commandLine = cmd;
     try {
-      JSGFGrammar grammar = new JSGFGrammar(
-          grammarFile.getParentFile().toURI().toURL(),
-          FilenameUtils.removeExtension(grammarFile.getName()),
-          false, /* showGrammar */
-          true,  /* optimizeGrammar */
-          false, /* addSilenceWords */
-          false, /* addFillerWords */
-          new FakeDictionary());
-
-      grammar.allocate();
+      if (cmd.hasOption("batch")) {
+        if (!cmd.hasOption("output-dir")) {
+          System.err.println("--output-dir is required with --batch");
+          System.exit(1);
+        }
 
-      // ------------------------------------------------------------------------
+        if (cmd.hasOption("watch")) {
+          System.err.println("--watch can't be used with --batch");
+          System.exit(1);
+        }
 
-      // Post-processing of sentences
-      Function<String, String> postProcess = Function.identity();
+        int jobs = Integer.parseInt(cmd.getOptionValue(
+            "jobs", Integer.toString(Runtime.getRuntime().availableProcessors())));
 
-      boolean addTags = cmd.hasOption("tags");
-      boolean addClasses = cmd.hasOption("classes");
-      if (addTags || addClasses) {
-        postProcess = (sentence) -> {
-          // Parse generated sentence and use JSGF tags
-          RuleParse parse = RuleParser.parse(sentence, grammar, null);
-          if (parse != null) {
-            if (addTags) {
-              return makeTaggedSentence(
-                  parse.getParse(),
-                  info -> String.format("[%s](%s) ", info.taggedText, info.tagName));
-
-            } else if (addClasses) {
-              return makeTaggedSentence(parse.getParse(),
-                                        info -> info.tagName.toUpperCase() + " ");
-            }
-          } else {
-            logger.warning(String.format("Failed to parse sentence: %s", sentence));
-          }
+        BatchProcessor batch = new BatchProcessor(
+            new File(cmd.getOptionValue("output-dir")),
+            cmd.hasOption("replace") ? ".gram" : (cmd.hasOption("binary") ? ".bin" : ".txt"),
+            (grammarFile, importCache) -> loadGrammar(commandLine, grammarFile, importCache),
+            (compiled, out) -> runMode(commandLine, compiled, out),
+            cmd.hasOption("sphinx-loader"));
 
-          return sentence;
-        };
-      }
+        int failed =
+            batch.run(BatchProcessor.listGrammars(new File(cmd.getOptionValue("batch"))), jobs);
 
+        writeStats(cmd);
 
-      if (cmd.hasOption("tokens")) {
-        // Print all tokens (words) in the grammar
-        Set<String> tokens = new HashSet<>();
-        collectTokens(grammar.getInitialNode(), tokens);
-        for (String token : tokens) {
-          System.out.println(token);
+        if (failed > 0) {
+          System.exit(1);
         }
-      } else if (cmd.hasOption("count")) {
-        // Generate random sentences from grammar
-        int numSentences = Integer.parseInt(cmd.getOptionValue("count"));
-        Set<String> usedSentences = new HashSet<>();
-
-        for (int i = 0; i < numSentences; i++) {
-          String sentence = postProcess.apply(getRandomSentence(grammar));
-          if (!usedSentences.contains(sentence)) {
-            usedSentences.add(sentence);
-            System.out.println(sentence);
-          }
+      } else if (cmd.hasOption("watch")) {
+        if (cmd.hasOption("binary")) {
+          System.err.println("--binary can't be used with --watch");
+          System.exit(1);
         }
-      } else if (cmd.hasOption("replace")) {
-        // Replace rule alternatives with static tokens
-        Gson gson = new Gson();
-        Type mapListToken = new TypeToken<Map<String, List<String>>>(){}.getType();
-
-        try (FileReader reader = new FileReader(cmd.getOptionValue("replace"))) {
-
-          Map<String, List<String>> ruleStrings =
-              (Map<String, List<String>>)gson.fromJson(reader, mapListToken);
 
-          replaceRules(grammar, ruleStrings);
-          grammar.commitChanges();
-
-          // Write to stdout
-          ruleGrammar = grammar.getRuleGrammar();
-          System.out.println(writeGrammar(ruleGrammar));
-        }
+        GrammarWatcher watcher = new GrammarWatcher(
+            new File(cmd.getOptionValue("grammar")),
+            (grammarFile, importCache) -> loadGrammar(commandLine, grammarFile, importCache),
+            (compiled, out) -> runMode(commandLine, compiled, out),
+            System.out, cmd.hasOption("sphinx-loader"));
 
-      } else if (cmd.hasOption("exhaustive")) {
-        // Enumerate all phrases in the grammar
-        GrammarNode node = grammar.getInitialNode();
-        printSuccessors(node, postProcess);
+        watcher.run();
+      } else {
+        File grammarFile = new File(cmd.getOptionValue("grammar")).getAbsoluteFile();
+        runMode(cmd, loadGrammar(cmd, grammarFile, null), System.out);
+        writeStats(cmd);
       }
-
     } catch (IOException ex) {
       if (ex.getCause() instanceof JSGFGrammarParseException) {
-        JSGFGrammarParseException jsgfEx = (JSGFGrammarParseException)ex.getCause();
-        System.err.println(String.format("Error at line %s, char %s", jsgfEx.lineNumber, jsgfEx.charNumber));
-        System.err.println(jsgfEx.message);
-        System.err.println(jsgfEx.details);
+        System.err.println(describeParseError((JSGFGrammarParseException)ex.getCause()));
         System.exit(1);
       } else {
         throw ex;
       }
+    } catch (IllegalStateException ex) {
+      System.err.println(ex.getMessage());
+      System.exit(1);
     }
 
   }  // method main
 
   // --------------------------------------------------------------------------
 
-  private static class TagInfo {
-    public String tagName;
-    public String taggedText;
+  static CompiledGrammar loadGrammar(CommandLine cmd, File grammarFile,
+                                     ImportCache importCache) throws IOException {
+    int maxRepeat = Integer.parseInt(cmd.getOptionValue("max-repeat", "0"));
+    int maxLength = Integer.parseInt(cmd.getOptionValue("max-length", "0"));
+    boolean sphinxLoader = cmd.hasOption("sphinx-loader");
+
+    GrammarConstraints constraints = new GrammarConstraints();
+    if (cmd.hasOption("rule")) {
+      constraints.setRule(cmd.getOptionValue("rule"));
+    }
+
+    if (cmd.hasOption("constrain")) {
+      for (String constraint : cmd.getOptionValues("constrain")) {
+        int equals = constraint.indexOf('=');
+        if (equals < 1) {
+          throw new IllegalStateException(
+              String.format("Expected tag=value for --constrain, got \"%s\"", constraint));
+        }
+
+        constraints.addTagValue(constraint.substring(0, equals).trim(),
+                                constraint.substring(equals + 1));
+      }
+    }
+
+    if (!cmd.hasOption("heap")) {
+      return CompiledGrammar.load(grammarFile, importCache, constraints, sphinxLoader)
+          .withLimits(maxRepeat, maxLength);
+    }
+
+    // Measure with loading serialized so other grammars don't count
+    synchronized (CompiledGrammar.LOAD_LOCK) {
+      long heapBefore = getUsedHeap();
+      long startTime = System.nanoTime();
+      CompiledGrammar compiled =
+          CompiledGrammar.load(grammarFile, importCache, constraints, sphinxLoader);
+      long loadMillis = (System.nanoTime() - startTime) / 1000000;
+      long heapAfter = getUsedHeap();
+
+      System.err.println(String.format(
+          "%s: %d KB heap, %d ms to load, %d grammar nodes, %d word references to %d distinct tokens",
+          compiled.getName(), (heapAfter - heapBefore) / 1024, loadMillis,
+          compiled.getGrammar().getNumNodes(), compiled.getWordReferenceCount(),
+          compiled.getTokenCount()));
+
+      return compiled.withLimits(maxRepeat, maxLength);
+    }
   }
 
-  private static String makeTaggedSentence(JSGFRule component,
-                                           Function<TagInfo, String> tagHandler) {
-    StringBuilder sb = new StringBuilder();
-    makeTaggedSentence(component, tagHandler, sb, true);
-    return sb.toString().trim();
+  /* Writes the --stats JSON (if collected) to stderr or the --stats file */
+  private static void writeStats(CommandLine cmd) throws IOException {
+    if (!Metrics.enabled) {
+      return;
+    }
+
+    String report = Metrics.report();
+    if (cmd.getOptionValue("stats") != null) {
+      Files.write(Paths.get(cmd.getOptionValue("stats")),
+                  (report + LINE_SEPARATOR).getBytes(StandardCharsets.UTF_8));
+    } else if (cmd.hasOption("stats")) {
+      System.err.println(report);
+    }
   }
 
-  private static void makeTaggedSentence(JSGFRule component,
-                                         Function<TagInfo, String> tagHandler,
-                                         StringBuilder sb,
-                                         boolean includeTags) {
-
-    if (component instanceof JSGFRuleTag) {
-      final JSGFRuleTag tag = (JSGFRuleTag) component;
-      final String tagName = tag.getTag();
-      final StringBuilder tagSB = new StringBuilder();
-      makeTaggedSentence(tag.getRule(), tagHandler, tagSB, false);
-
-      if (includeTags) {
-        TagInfo info = new TagInfo();
-        info.tagName = tagName;
-        info.taggedText = tagSB.toString().trim();
-        sb.append(tagHandler.apply(info));
-      } else {
-        sb.append(tagSB.toString().trim());
-      }
-    } else if (component instanceof JSGFRuleAlternatives) {
-      final JSGFRuleAlternatives alternatives = (JSGFRuleAlternatives) component;
-      for (JSGFRule rule : alternatives.getRules()) {
-        makeTaggedSentence(rule, tagHandler, sb, includeTags);
-      }
-    } else if (component instanceof JSGFRuleCount) {
-      final JSGFRuleCount count = (JSGFRuleCount) component;
-      final JSGFRule actComponent = count.getRule();
-      makeTaggedSentence(actComponent, tagHandler, sb, includeTags);
-    } else if (component instanceof RuleParse) {
-      final RuleParse parse = (RuleParse) component;
-      final JSGFRule actComponent = parse.getParse();
-      makeTaggedSentence(actComponent, tagHandler, sb, includeTags);
-    } else if (component instanceof JSGFRuleSequence) {
-      final JSGFRuleSequence sequence = (JSGFRuleSequence) component;
-      for (JSGFRule rule : sequence.getRules()) {
-        makeTaggedSentence(rule, tagHandler, sb, includeTags);
-      }
-    } else if (component instanceof JSGFRuleToken) {
-      final JSGFRuleToken token = (JSGFRuleToken)component;
-      sb.append(token.getText()).append(' ');
+  private static long getUsedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 2; i++) {
+      System.gc();
     }
+
+    return runtime.totalMemory() - runtime.freeMemory();
   }
 
-  // --------------------------------------------------------------------------
+  /**
+   * Runs the mode selected on the command line for one grammar.
+   *
+   * @throws IllegalStateException if the mode can't be run for the grammar
+   */
+  static void runMode(CommandLine cmd, CompiledGrammar compiled, PrintStream out)
+      throws IOException {
 
-  private static String getRandomSentence(Grammar grammar) {
-    StringBuilder sb = new StringBuilder();
-    GrammarNode node = grammar.getInitialNode();
+    if (Metrics.enabled) {
+      out = new PrintStream(Metrics.timeOutput(out));
+    }
 
-    List<GrammarNode> nodeStack = new ArrayList<>();
+    Metrics.Timer timer = Metrics.time(Metrics.Phase.GENERATE, compiled.getName());
+    try (ProgressMonitor progress = makeProgressMonitor(cmd, compiled.getName())) {
+      runMode(cmd, compiled, out, progress);
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    } finally {
+      // Output ends with whole sentences, even if a budget stopped it
+      out.flush();
+      timer.close();
+    }
+  }
 
-    while (!node.isFinalNode()) {
-      nodeStack.add(node);
+  private static ProgressMonitor makeProgressMonitor(CommandLine cmd, String name) {
+    long reportMillis = ProgressMonitor.UNLIMITED;
+    if (cmd.hasOption("progress")) {
+      reportMillis = (long) (Double.parseDouble(cmd.getOptionValue("progress", "5")) * 1000);
+    }
+
+    long maxMillis = (long) (Double.parseDouble(cmd.getOptionValue("max-time", "0")) * 1000);
+    long maxOutputBytes = Long.parseLong(cmd.getOptionValue("max-output-bytes", "0"));
+
+    return new ProgressMonitor(name, reportMillis, maxMillis, maxOutputBytes);
+  }
+
+  private static void runMode(CommandLine cmd, CompiledGrammar compiled, PrintStream out,
+                              ProgressMonitor progress) throws IOException {
+
+    Random randomizer = new Random();
+    if (cmd.hasOption("seed")) {
+      // Use provided seed
+      randomizer = new Random(Integer.parseInt(cmd.getOptionValue("seed")));
+    }
 
-      if (!node.isEmpty()) {
-        Word word = node.getWord();
-        if (!word.isFiller())
-          sb.append(word.getSpelling()).append(' ');
+    // Post-processing of sentences
+    Function<String, String> postProcess =
+        makePostProcess(compiled, cmd.hasOption("tags"), cmd.hasOption("classes"));
+
+    // Generated sentences go out as lines of text or into a binary corpus
+    Consumer<String> sink = sentence -> {
+      if (progress.tryEmit(sentence)) {
+        out.println(sentence);
       }
-      node = selectRandomSuccessor(node);
-      if (node == null) {
-        // Back up to viable node (must have hit a <VOID>)
-        node = nodeStack.get(nodeStack.size() - 2);
+    };
+
+    BinaryCorpusWriter corpus = null;
+    if (cmd.hasOption("binary")) {
+      for (String option : new String[] { "tokens", "top-k", "replace", "parse-nbest", "fuzzy",
+                                          "ambiguity", "classes" }) {
+        if (cmd.hasOption(option)) {
+          throw new IllegalStateException("--binary can't be used with --" + option);
+        }
+      }
+
+      // Tags become spans over the grammar's tokens
+      postProcess = Function.identity();
+      corpus = new BinaryCorpusWriter(
+          Channels.newChannel(out), compiled, cmd.hasOption("tags"), progress);
+      sink = corpus::write;
+    }
+
+    if (Metrics.enabled) {
+      postProcess = timePostProcess(postProcess);
+    }
+
+    long quotaShortfall = 0;
+    if (cmd.hasOption("tokens")) {
+      // Print all tokens (words) in the grammar
+      for (String token : compiled.getTokens()) {
+        out.println(token);
+      }
+    } else if (cmd.hasOption("coverage")) {
+      // Cover every arc, then fill with random sentences
+      int k = Integer.parseInt(cmd.getOptionValue("coverage"));
+      int numSentences = Integer.parseInt(cmd.getOptionValue("count", "0"));
+      Set<String> usedSentences = new HashSet<>();
+      int generated = 0;
+
+      // The number of covering sentences is only known at the end
+      progress.start(-1);
+      Iterator<String> covering = compiled.coverage(k).iterator();
+      while (!progress.isStopped() && covering.hasNext()) {
+        // Kept even if repeated, since k > 1 may need the same sentence again
+        String sentence = postProcess.apply(covering.next());
+        progress.generated();
+        usedSentences.add(sentence);
+        sink.accept(sentence);
+        generated++;
+      }
+
+      Iterator<String> sentences = compiled.random(randomizer).iterator();
+      for (; (generated < numSentences) && !progress.isStopped() && sentences.hasNext();
+           generated++) {
+        String sentence = postProcess.apply(sentences.next());
+        progress.generated();
+        if (usedSentences.add(sentence)) {
+          sink.accept(sentence);
+        } else {
+          Metrics.count(Metrics.Counter.DUPLICATES);
+        }
+      }
+    } else if (cmd.hasOption("quota")) {
+      // Balanced sentences per rule, tag or tag value
+      QuotaGenerator quotas;
+      try (FileReader reader = new FileReader(cmd.getOptionValue("quota"))) {
+        quotas = new QuotaGenerator(compiled, reader);
+      }
+
+      int threads = Integer.parseInt(cmd.getOptionValue("threads", "1"));
+      quotaShortfall = quotas.run(randomizer, threads, postProcess, sink, progress);
+    } else if (cmd.hasOption("unique")) {
+      // Uniform random paths without replacement
+      int numSentences = Integer.parseInt(cmd.getOptionValue("unique"));
+      generateDistinct(compiled.unique(randomizer).iterator(), numSentences,
+                       postProcess, sink, progress);
+    } else if (cmd.hasOption("count") && cmd.hasOption("uniform")) {
+      // Uniform random paths, regardless of weights
+      int numSentences = Integer.parseInt(cmd.getOptionValue("count"));
+      UniformSampler sampler = compiled.newUniformSampler();
+
+      // Repeated paths are drawn again, which gets slow once most paths
+      // are taken. Distinct paths of independent draws come in the same
+      // random order as a shuffle of all paths, so that is used instead.
+      boolean shuffle =
+          (sampler.getPathCount().compareTo(BigInteger.valueOf(2L * numSentences)) <= 0);
+
+      Iterator<String> sentences =
+          shuffle ? sampler.unique(randomizer) : sampler.distinctPaths(randomizer);
+      generateDistinct(sentences, numSentences, postProcess, sink, progress);
+    } else if (cmd.hasOption("count")) {
+      // Generate random sentences from grammar
+      int numSentences = Integer.parseInt(cmd.getOptionValue("count"));
+      Set<String> usedSentences = new HashSet<>();
+      Iterator<String> sentences = compiled.random(randomizer).iterator();
+
+      progress.start(numSentences);
+      for (int i = 0; (i < numSentences) && !progress.isStopped(); i++) {
+        if (!sentences.hasNext()) {
+          throw new IllegalStateException("No sentence satisfies --max-repeat/--max-length");
+        }
+
+        String sentence = postProcess.apply(sentences.next());
+        progress.generated();
+        if (usedSentences.add(sentence)) {
+          sink.accept(sentence);
+        } else {
+          Metrics.count(Metrics.Counter.DUPLICATES);
+        }
+      }
+    } else if (cmd.hasOption("top-k")) {
+      // Most probable sentences first
+      int k = Integer.parseInt(cmd.getOptionValue("top-k"));
+      Iterator<ScoredSentence> sentences = compiled.topK(k).iterator();
+
+      progress.start(k);
+      while (!progress.isStopped() && sentences.hasNext()) {
+        ScoredSentence scored = sentences.next();
+        String line = new ScoredSentence(postProcess.apply(scored.getSentence()),
+                                         scored.getLogProbability()).toString();
+        progress.generated();
+        if (progress.tryEmit(line)) {
+          out.println(line);
+        }
+      }
+    } else if (cmd.hasOption("replace")) {
+      // Replace rule alternatives with static tokens
+      Gson gson = new Gson();
+      Type mapListToken = new TypeToken<Map<String, List<String>>>(){}.getType();
+
+      try (FileReader reader = new FileReader(cmd.getOptionValue("replace"))) {
+
+        Map<String, List<String>> ruleStrings =
+            (Map<String, List<String>>)gson.fromJson(reader, mapListToken);
+
+        // The compiled grammar is discarded after this, so it's safe to modify
+        JSGFGrammar grammar = compiled.getGrammar();
+        replaceRules(grammar, ruleStrings);
+
+        try {
+          grammar.commitChanges();
+        } catch (JSGFGrammarParseException | JSGFGrammarException ex) {
+          throw new IOException(ex);
+        }
+
+        // Write new grammar
+        out.println(writeGrammar(grammar.getRuleGrammar()));
+      }
+
+    } else if (cmd.hasOption("parse-nbest")) {
+      // Parse each group of hypotheses at once
+      boolean addTags = cmd.hasOption("tags");
+      boolean addClasses = cmd.hasOption("classes");
+      List<String> hypotheses = new ArrayList<>();
+
+      try (BufferedReader reader =
+           new BufferedReader(new FileReader(cmd.getOptionValue("parse-nbest")))) {
+        String line;
+        boolean separate = false;
+        do {
+          // The end of the file ends the last group like a blank line
+          line = reader.readLine();
+          String hypothesis = (line == null) ? "" : line.trim();
+          if (!hypothesis.isEmpty()) {
+            hypotheses.add(hypothesis);
+          } else if (!hypotheses.isEmpty()) {
+            // One blank line between groups, however many were in the input
+            if (separate) {
+              out.println();
+            }
+
+            printParses(compiled, hypotheses, addTags, addClasses, out);
+            hypotheses.clear();
+            separate = true;
+          }
+        } while (line != null);
+      }
+    } else if (cmd.hasOption("fuzzy")) {
+      // Closest grammar sentence within an edit budget
+      int maxEdits = Integer.parseInt(cmd.getOptionValue("max-edits", "2"));
+      int beamWidth = Integer.parseInt(cmd.getOptionValue("beam", "1000"));
+
+      try (BufferedReader reader =
+           new BufferedReader(new FileReader(cmd.getOptionValue("fuzzy")))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          FuzzyMatch match = compiled.fuzzyParse(line, maxEdits, beamWidth);
+          if (match == null) {
+            out.println("-\t-\t" + line);
+          } else if (match.getParse() == null) {
+            out.println("-\t" + match.getEdits() + "\t" + match.getSentence());
+          } else {
+            out.println(match.getParse().getRuleReference().getSimpleRuleName()
+                        + "\t" + match.getEdits() + "\t"
+                        + formatParse(match.getParse(), cmd.hasOption("tags"),
+                                      cmd.hasOption("classes")));
+          }
+        }
+      }
+    } else if (cmd.hasOption("ambiguity")) {
+      // Rules with two paths for the same sentence
+      if (!compiled.isAmbiguous()) {
+        out.println("Grammar is unambiguous");
+      }
+
+      List<String> descriptions = compiled.describeAmbiguity();
+      if (descriptions.isEmpty() && compiled.isAmbiguous()) {
+        out.println("Grammar is too large to check for ambiguity");
+      }
+
+      for (String description : descriptions) {
+        out.println(description);
+      }
+    } else if (cmd.hasOption("exhaustive")) {
+      // Enumerate all phrases in the grammar
+      String repetition = compiled.findUnboundedRepetition();
+      if (repetition != null) {
+        // --max-length alone ends every repetition with words in it
+        throw new IllegalStateException(String.format(
+            "Grammar is infinite: unbounded repetition (* or +) through \"%s\"%s%s",
+            repetition, LINE_SEPARATOR,
+            (compiled.getWalker().getMaxLength() == GrammarWalker.UNLIMITED)
+            ? "Use --max-repeat or --max-length to limit repetitions"
+            : "It has no words, so use --max-repeat to limit repetitions"));
+      }
+
+      // Classes can make distinct sentences the same
+      boolean addClasses = cmd.hasOption("classes") && !cmd.hasOption("tags");
+      boolean distinct = compiled.isAmbiguous() || addClasses;
+      if (!distinct) {
+        logger.fine("Grammar is unambiguous, sentences are not de-duplicated");
+      }
+
+      // Paths are known up front if there are no * or + cycles
+      progress.start(cmd.hasOption("progress") ? compiled.countPaths() : -1);
+
+      int threads = Integer.parseInt(cmd.getOptionValue("threads", "1"));
+      if (threads > 1) {
+        boolean ordered = cmd.hasOption("ordered");
+        ParallelEnumeration enumeration = (corpus != null)
+            ? new ParallelEnumeration(postProcess, ordered, distinct, sink, progress)
+            : new ParallelEnumeration(postProcess, ordered, distinct, out, progress);
+
+        enumeration.run(compiled.enumerate(), threads);
+      } else {
+        Set<String> usedSentences = new HashSet<>();
+        Iterator<String> sentences = compiled.enumerate();
+        while (!progress.isStopped() && sentences.hasNext()) {
+          String sentence = postProcess.apply(sentences.next());
+          progress.generated();
+          if (!distinct || usedSentences.add(sentence)) {
+            sink.accept(sentence);
+          } else {
+            Metrics.count(Metrics.Counter.DUPLICATES);
+          }
+        }
       }
     }
-    return sb.toString().trim();
-  }
 
+    if (corpus != null) {
+      corpus.flush();
+    }
+
+    if (quotaShortfall > 0) {
+      // After the output, which has every sentence that could be made
+      throw new IllegalStateException(String.format(
+          "%d sentence(s) short of the quotas", quotaShortfall));
+    }
+  }
 
-  private static GrammarNode selectRandomSuccessor(GrammarNode node) {
-    GrammarArc[] arcs = node.getSuccessors();
+  static String describeParseError(JSGFGrammarParseException jsgfEx) {
+    return String.format("Error at line %s, char %s", jsgfEx.lineNumber, jsgfEx.charNumber)
+        + LINE_SEPARATOR + jsgfEx.message
+        + LINE_SEPARATOR + jsgfEx.details;
+  }
 
-    // select a transition arc with respect to the arc-probabilities (which are log and we don't
-    // have a logMath here which makes the implementation a little bit messy
-    if (arcs.length > 1) {
-      double[] linWeights = new double[arcs.length];
-      double linWeightsSum = 0;
+  // --------------------------------------------------------------------------
 
-      final double EPS = 1E-10;
+  static Function<String, String> makePostProcess(CompiledGrammar compiled,
+                                                  boolean addTags,
+                                                  boolean addClasses) {
+    if (!addTags && !addClasses) {
+      return Function.identity();
+    }
 
-      for (int i = 0; i < linWeights.length; i++) {
-        linWeights[i] = (arcs[0].getProbability() + EPS) / (arcs[i].getProbability() + EPS);
-        linWeightsSum += linWeights[i];
+    return (sentence) -> {
+      // Parse generated sentence and use JSGF tags
+      RuleParse parse = compiled.parse(sentence);
+      if (parse != null) {
+        return formatParse(parse, addTags, addClasses);
       }
 
-      for (int i = 0; i < linWeights.length; i++) {
-        linWeights[i] /= linWeightsSum;
+      logger.warning(String.format("Failed to parse sentence: %s", sentence));
+      return sentence;
+    };
+  }
+
+  /* Counts the time spent in a post-processing function as its phase */
+  private static Function<String, String> timePostProcess(Function<String, String> postProcess) {
+    return (sentence) -> {
+      long startTime = System.nanoTime();
+      String processed = postProcess.apply(sentence);
+      Metrics.addTime(Metrics.Phase.POST_PROCESS, System.nanoTime() - startTime);
+      return processed;
+    };
+  }
+
+  /* Emits the first numSentences distinct sentences (or all of them) */
+  private static void generateDistinct(Iterator<String> sentences, int numSentences,
+                                       Function<String, String> postProcess,
+                                       Consumer<String> sink, ProgressMonitor progress) {
+    Set<String> usedSentences = new HashSet<>();
+    int generated = 0;
+
+    progress.start(numSentences);
+    while ((generated < numSentences) && !progress.isStopped() && sentences.hasNext()) {
+      String sentence = postProcess.apply(sentences.next());
+      progress.generated();
+      if (usedSentences.add(sentence)) {
+        sink.accept(sentence);
+        generated++;
+      } else {
+        Metrics.count(Metrics.Counter.DUPLICATES);
       }
+    }
+  }
 
+  /* Prints "<rule>\t<sentence>" for each hypothesis, or "-" if it doesn't parse */
+  private static void printParses(CompiledGrammar compiled,
+                                  List<String> hypotheses,
+                                  boolean addTags,
+                                  boolean addClasses,
+                                  PrintStream out) {
+    if (hypotheses.isEmpty()) {
+      return;
+    }
 
-      double selIndex = randomizer.nextDouble();
-      int index = 0;
-      for (int i = 0; selIndex > EPS; i++) {
-        index = i;
-        selIndex -= linWeights[i];
+    List<RuleParse> parses = compiled.parseAll(hypotheses);
+    for (int i = 0; i < hypotheses.size(); i++) {
+      RuleParse parse = parses.get(i);
+      if (parse == null) {
+        out.println("-\t" + hypotheses.get(i));
+      } else {
+        out.println(parse.getRuleReference().getSimpleRuleName() + "\t"
+                    + formatParse(parse, addTags, addClasses));
       }
+    }
+  }
 
-      return arcs[index].getGrammarNode();
+  /* Sentence of a parse with tags (--tags), classes (--classes) or neither */
+  private static String formatParse(RuleParse parse, boolean addTags, boolean addClasses) {
+    if (addTags) {
+      return parse.makeTaggedSentence(
+          (tagName, taggedText) -> String.format("[%s](%s)", taggedText, tagName));
 
-    } else if (arcs.length > 0) {
-      return arcs[0].getGrammarNode();
+    } else if (addClasses) {
+      return parse.makeTaggedSentence((tagName, taggedText) -> tagName.toUpperCase());
     }
 
-    return null;
+    return parse.makeTaggedSentence((tagName, taggedText) -> taggedText);
   }
 
-  private static void collectTokens(GrammarNode node, Set<String> tokens) {
+  // --------------------------------------------------------------------------
+
+  static void collectTokens(GrammarNode node, Set<String> tokens,
+                             Set<GrammarNode> visited) {
+    if (!visited.add(node)) {
+      // Already seen (* and + rules are cycles)
+      return;
+    }
+
     if (!node.isEmpty()) {
       Word word = node.getWord();
       if (!word.isFiller()) {
@@ -365,7 +849,7 @@ public class JsgfGen {
     }
 
     for (GrammarArc arc : Arrays.asList(node.getSuccessors())) {
-      collectTokens(arc.getGrammarNode(), tokens);
+      collectTokens(arc.getGrammarNode(), tokens, visited);
     }
   }
 
@@ -517,88 +1001,4 @@ public class JsgfGen {
 
   // --------------------------------------------------------------------------
 
-  private static void printSuccessors(GrammarNode node,
-                                      Function<String, String> postProcess) {
-
-    printSuccessors(node, postProcess, new ArrayList<>(), new HashSet<>());
-  }
-
-  private static void printSuccessors(GrammarNode node,
-                                      Function<String, String> postProcess,
-                                      List<String> words,
-                                      Set<String> usedSentences) {
-    if (node.isFinalNode()) {
-      String sentence = words.stream()
-                        .collect(Collectors.joining(" "));
-
-      sentence = postProcess.apply(sentence).trim();
-
-      if (!usedSentences.contains(sentence)) {
-        usedSentences.add(sentence);
-        System.out.println(sentence);
-      }
-    } else {
-      if (!node.isEmpty()) {
-        Word word = node.getWord();
-        if (!word.isFiller()) {
-          words.add(word.getSpelling());
-        }
-      }
-
-      for (GrammarArc arc : node.getSuccessors()) {
-        printSuccessors(arc.getGrammarNode(), postProcess,
-                        new ArrayList<>(words),
-                        usedSentences);
-      }
-    }
-  }
-
-  // --------------------------------------------------------------------------
-
-  static class FakeDictionary implements Dictionary {
-    @Override
-    public Word getWord(String text) {
-      if ("<sil>".equals(text)) {
-        text = "";  // exclude silence token
-      }
-
-      return new Word(text, null, false);
-    }
-
-    @Override
-    public Word getSentenceStartWord() {
-      return null;
-    }
-
-    @Override
-    public Word getSentenceEndWord() {
-      return null;
-    }
-
-    @Override
-    public Word getSilenceWord() {
-      return null;
-    }
-
-    @Override
-    public void allocate() {
-    }
-
-    @Override
-    public void deallocate() {
-    }
-
-    @Override
-    public Word[] getFillerWords() {
-      return new Word[] { };
-    }
-
-    @Override
-    public void newProperties(PropertySheet arg0) throws PropertyException {
-    }
-
-  }  // class FakeDictionary
-
-  // --------------------------------------------------------------------------
-
 }  // class Program
@@ -0,0 +1,874 @@
+package com.synesthesiam.jsgf;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.logging.Logger;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammarFactory;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammarManager;
+import edu.cmu.sphinx.jsgf.rule.JSGFRule;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleAlternatives;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleCount;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleToken;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Streaming lexer and recursive-descent parser for .gram files.
+ *
+ * Builds the same rule trees as the Sphinx JSGFParser (tokens, rule
+ * references including &lt;NULL&gt; and &lt;VOID&gt;, alternatives with
+ * weights, sequences, counts and tags), but reads the file through a small
+ * buffer without a token object per character range or doc comment
+ * bookkeeping. Tokens follow the Sphinx lexer: the longest match wins and
+ * ties go to keywords, then numbers, then identifiers. Unlike the Sphinx
+ * parser it has no static state, so grammars can be read concurrently.
+ */
+class JsgfReader {
+  private static final Logger logger = Logger.getLogger(JsgfReader.class.getName());
+
+  // Longest self identifying header line that is looked at
+  private static final int MAX_HEADER_BYTES = 80;
+
+  private enum Kind {
+    EOF("end of file"),
+    GRAMMAR("\"grammar\""),
+    IMPORT("\"import\""),
+    PUBLIC("\"public\""),
+    INTEGER("integer"),
+    FLOAT("float"),
+    CHAR("character literal"),
+    STRING("quoted string"),
+    TAG("tag"),
+    IDENTIFIER("identifier"),
+    SEMICOLON("\";\""),
+    VERSION("\"V1.0\""),
+    LT("\"<\""),
+    DOT("\".\""),
+    STAR("\"*\""),
+    GT("\">\""),
+    EQUALS("\"=\""),
+    BAR("\"|\""),
+    SLASH("\"/\""),
+    PLUS("\"+\""),
+    LPAREN("\"(\""),
+    RPAREN("\")\""),
+    LBRACKET("\"[\""),
+    RBRACKET("\"]\"");
+
+    final String description;
+
+    Kind(String description) {
+      this.description = description;
+    }
+  }
+
+  private static class Token {
+    final Kind kind;
+    final String text;
+    final int line;
+    final int column;
+
+    Token(Kind kind, String text, int line, int column) {
+      this.kind = kind;
+      this.text = text;
+      this.line = line;
+      this.column = column;
+    }
+  }
+
+  private final Reader reader;
+  private final String source;
+
+  // Characters from the start of the current token on
+  private char[] buffer = new char[8192];
+  private int position = 0;
+  private int limit = 0;
+  private boolean endOfInput = false;
+
+  private int line;
+  private int column = 1;
+  private boolean afterCarriageReturn = false;
+
+  // Lookahead of up to two tokens
+  private Token next = null;
+  private Token afterNext = null;
+
+  private JsgfReader(Reader reader, String source, int firstLine) {
+    this.reader = reader;
+    this.source = source;
+    this.line = firstLine;
+  }
+
+  /**
+   * Reads a grammar file and stores it in a grammar manager.
+   *
+   * A "#JSGF V1.0 ENCODING;" header selects the character encoding of the
+   * rest of the file (the platform default otherwise).
+   *
+   * @throws JSGFGrammarParseException for syntax errors
+   */
+  public static JSGFRuleGrammar read(URL url, JSGFRuleGrammarManager manager)
+      throws IOException, JSGFGrammarParseException {
+    try (InputStream in = new BufferedInputStream(url.openStream(), 256)) {
+      Reader reader = null;
+      int firstLine = 1;
+
+      String encoding = readHeaderEncoding(in);
+      if (encoding == null) {
+        reader = new InputStreamReader(in);
+      } else if (encoding.isEmpty()) {
+        reader = new InputStreamReader(in);
+        firstLine = 2;
+      } else {
+        logger.fine(String.format("Grammar character encoding of %s is %s", url, encoding));
+        reader = new InputStreamReader(in, encoding);
+        firstLine = 2;
+      }
+
+      String path = url.getPath();
+      return new JsgfReader(reader, path.substring(path.lastIndexOf('/') + 1), firstLine)
+          .grammarUnit(new JSGFRuleGrammarFactory(manager));
+    }
+  }
+
+  /**
+   * Reads a grammar from characters and stores it in a grammar manager.
+   */
+  public static JSGFRuleGrammar read(Reader reader, String source,
+                                     JSGFRuleGrammarManager manager)
+      throws IOException, JSGFGrammarParseException {
+    return new JsgfReader(reader, source, 1).grammarUnit(new JSGFRuleGrammarFactory(manager));
+  }
+
+  /*
+   * Consumes the first line if it is a "#JSGF" header (like the Sphinx loader)
+   * and gets its encoding ("" if it has none). Returns null and leaves the
+   * stream alone without a header.
+   */
+  private static String readHeaderEncoding(InputStream in) throws IOException {
+    in.mark(MAX_HEADER_BYTES + 1);
+
+    byte[] header = new byte[MAX_HEADER_BYTES];
+    int length = 0;
+    while (length < MAX_HEADER_BYTES) {
+      int b = in.read();
+      if (b < 0) {
+        break;
+      }
+
+      if ((b == '\n') || (b == '\r')) {
+        break;
+      }
+
+      header[length++] = (byte) b;
+    }
+
+    StringTokenizer fields = new StringTokenizer(
+        new String(header, 0, length, StandardCharsets.ISO_8859_1), " \t\n\r\f;");
+
+    if ((length < 2) || (header[0] != '#') || (header[1] != 'J')
+        || !fields.hasMoreTokens() || !fields.nextToken().equals("#JSGF")) {
+      in.reset();
+      logger.warning("Grammar is missing the self identifying #JSGF header");
+      return null;
+    }
+
+    // Version, then encoding
+    if (fields.hasMoreTokens()) {
+      fields.nextToken();
+    }
+
+    return fields.hasMoreTokens() ? fields.nextToken() : "";
+  }
+
+  // --------------------------------------------------------------------------
+  // Parser
+
+  private JSGFRuleGrammar grammarUnit(JSGFRuleGrammarFactory factory)
+      throws IOException, JSGFGrammarParseException {
+    if (peek().kind == Kind.IDENTIFIER) {
+      // Self identifying header that wasn't consumed with the encoding
+      expect(Kind.IDENTIFIER, "the #JSGF header");
+      expect(Kind.VERSION, "the JSGF version");
+      if (peek().kind == Kind.IDENTIFIER) {
+        take();
+        if (peek().kind == Kind.IDENTIFIER) {
+          take();
+        }
+      }
+
+      expect(Kind.SEMICOLON, "\";\" after the #JSGF header");
+    }
+
+    expect(Kind.GRAMMAR, "the grammar declaration");
+    String grammarName = name();
+    expect(Kind.SEMICOLON, "\";\" after the grammar name");
+
+    JSGFRuleGrammar grammar = factory.newGrammar(grammarName);
+
+    while (peek().kind == Kind.IMPORT) {
+      importDeclaration(grammar);
+    }
+
+    while ((peek().kind == Kind.PUBLIC) || (peek().kind == Kind.LT)) {
+      ruleDeclaration(grammar);
+    }
+
+    expect(Kind.EOF, "an import or rule declaration");
+    return grammar;
+  }
+
+  private void importDeclaration(JSGFRuleGrammar grammar)
+      throws IOException, JSGFGrammarParseException {
+    expect(Kind.IMPORT, "import");
+    expect(Kind.LT, "\"<\" before the imported name");
+    String importName = name();
+    if (peek().kind == Kind.DOT) {
+      take();
+      expect(Kind.STAR, "\"*\" or \">\" after the imported name");
+      importName += ".*";
+    }
+
+    expect(Kind.GT, "\">\" after the imported name");
+    expect(Kind.SEMICOLON, "\";\" after the import");
+
+    grammar.addImport(new JSGFRuleName(importName));
+  }
+
+  private void ruleDeclaration(JSGFRuleGrammar grammar)
+      throws IOException, JSGFGrammarParseException {
+    boolean isPublic = false;
+    if (peek().kind == Kind.PUBLIC) {
+      take();
+      isPublic = true;
+    }
+
+    expect(Kind.LT, "\"<\" before the rule name");
+    Token ruleName = take();
+    switch (ruleName.kind) {
+    case IDENTIFIER:
+    case INTEGER:
+    case PUBLIC:
+    case IMPORT:
+    case GRAMMAR:
+      break;
+    default:
+      throw unexpected(ruleName, "a rule name");
+    }
+
+    expect(Kind.GT, "\">\" after the rule name");
+    expect(Kind.EQUALS, "\"=\" after the rule name");
+    JSGFRuleAlternatives rule = alternatives();
+    expect(Kind.SEMICOLON, "\";\" or \"|\" at the end of the rule");
+
+    grammar.setRule(ruleName.text, rule, isPublic);
+  }
+
+  /* Dotted grammar, rule or import name */
+  private String name() throws IOException, JSGFGrammarParseException {
+    Token first = take();
+    switch (first.kind) {
+    case IDENTIFIER:
+    case PUBLIC:
+    case IMPORT:
+    case GRAMMAR:
+      break;
+    default:
+      throw unexpected(first, "a name");
+    }
+
+    String name = first.text;
+    while ((peek().kind == Kind.DOT) && (peekAfterNext().kind == Kind.IDENTIFIER)) {
+      take();
+      name += "." + take().text;
+    }
+
+    return name;
+  }
+
+  private JSGFRuleAlternatives alternatives() throws IOException, JSGFGrammarParseException {
+    Token first = peek();
+    List<JSGFRule> rules = new ArrayList<>();
+    List<Float> weights = new ArrayList<>();
+
+    if (first.kind == Kind.SLASH) {
+      // Either all alternatives are weighted (and there are at least two) or
+      // none of them are
+      weights.add(weight());
+      rules.add(sequence());
+
+      do {
+        expect(Kind.BAR, "\"|\" after a weighted alternative");
+        weights.add(weight());
+        rules.add(sequence());
+      } while (peek().kind == Kind.BAR);
+    } else {
+      rules.add(sequence());
+      while (peek().kind == Kind.BAR) {
+        take();
+        rules.add(sequence());
+      }
+    }
+
+    JSGFRuleAlternatives result = new JSGFRuleAlternatives(rules);
+    if (!weights.isEmpty()) {
+      try {
+        result.setWeights(weights);
+      } catch (IllegalArgumentException ex) {
+        throw error(first, ex.getMessage());
+      }
+    }
+
+    return result;
+  }
+
+  private float weight() throws IOException, JSGFGrammarParseException {
+    expect(Kind.SLASH, "\"/\" before a weight");
+    Token value = take();
+    if ((value.kind != Kind.FLOAT) && (value.kind != Kind.INTEGER)) {
+      throw unexpected(value, "a weight");
+    }
+
+    expect(Kind.SLASH, "\"/\" after a weight");
+    return Float.valueOf(value.text);
+  }
+
+  private JSGFRuleSequence sequence() throws IOException, JSGFGrammarParseException {
+    List<JSGFRule> items = new ArrayList<>();
+    do {
+      items.add(item());
+    } while (startsItem(peek().kind));
+
+    return new JSGFRuleSequence(items);
+  }
+
+  private static boolean startsItem(Kind kind) {
+    switch (kind) {
+    case GRAMMAR:
+    case IMPORT:
+    case PUBLIC:
+    case INTEGER:
+    case FLOAT:
+    case STRING:
+    case IDENTIFIER:
+    case LT:
+    case LPAREN:
+    case LBRACKET:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private JSGFRule item() throws IOException, JSGFGrammarParseException {
+    Token first = take();
+    JSGFRule rule = null;
+    int count = -1;
+
+    switch (first.kind) {
+    case GRAMMAR:
+    case IMPORT:
+    case PUBLIC:
+    case INTEGER:
+    case FLOAT:
+    case STRING:
+    case IDENTIFIER:
+      String text = first.text;
+      if (text.startsWith("\"") && text.endsWith("\"")) {
+        // Escapes stay as written
+        text = text.substring(1, text.length() - 1);
+      }
+
+      rule = new JSGFRuleToken(text);
+      count = repeatCount();
+      break;
+
+    case LT:
+      rule = new JSGFRuleName(name());
+      expect(Kind.GT, "\">\" after the rule reference");
+      count = repeatCount();
+      break;
+
+    case LPAREN:
+      rule = alternatives();
+      expect(Kind.RPAREN, "\")\" or \"|\"");
+      count = repeatCount();
+      break;
+
+    case LBRACKET:
+      rule = alternatives();
+      expect(Kind.RBRACKET, "\"]\" or \"|\"");
+      count = JSGFRuleCount.OPTIONAL;
+      break;
+
+    default:
+      throw unexpected(first, "a token, rule reference or group");
+    }
+
+    if (count != -1) {
+      rule = new JSGFRuleCount(rule, count);
+    }
+
+    while (peek().kind == Kind.TAG) {
+      String tag = take().text;
+      rule = new JSGFRuleTag(rule, tag.substring(1, tag.length() - 1).replace('\\', ' '));
+    }
+
+    return rule;
+  }
+
+  /* Optional * or + after an item */
+  private int repeatCount() throws IOException, JSGFGrammarParseException {
+    switch (peek().kind) {
+    case STAR:
+      take();
+      return JSGFRuleCount.ZERO_OR_MORE;
+    case PLUS:
+      take();
+      return JSGFRuleCount.ONCE_OR_MORE;
+    default:
+      return -1;
+    }
+  }
+
+  private Token peek() throws IOException, JSGFGrammarParseException {
+    if (next == null) {
+      next = scan();
+    }
+
+    return next;
+  }
+
+  private Token peekAfterNext() throws IOException, JSGFGrammarParseException {
+    peek();
+    if (afterNext == null) {
+      afterNext = scan();
+    }
+
+    return afterNext;
+  }
+
+  private Token take() throws IOException, JSGFGrammarParseException {
+    Token token = peek();
+    next = afterNext;
+    afterNext = null;
+    return token;
+  }
+
+  private Token expect(Kind kind, String expected) throws IOException, JSGFGrammarParseException {
+    Token token = take();
+    if (token.kind != kind) {
+      throw unexpected(token, expected);
+    }
+
+    return token;
+  }
+
+  private JSGFGrammarParseException unexpected(Token token, String expected) {
+    // Punctuation and keywords are described by their text
+    String found = token.kind.description;
+    if ((token.kind != Kind.EOF) && !found.startsWith("\"")) {
+      found = String.format("%s \"%s\"", found, token.text);
+    }
+
+    return error(token, String.format("Found %s where %s was expected", found, expected));
+  }
+
+  private JSGFGrammarParseException error(Token token, String problem) {
+    return error(token.line, token.column, problem);
+  }
+
+  private JSGFGrammarParseException error(int line, int column, String problem) {
+    return new JSGFGrammarParseException(
+        line, column, "Grammar Error", String.format("%s: %s", source, problem));
+  }
+
+  // --------------------------------------------------------------------------
+  // Lexer
+
+  private Token scan() throws IOException, JSGFGrammarParseException {
+    skipSpaceAndComments();
+
+    int tokenLine = line;
+    int tokenColumn = column;
+    int c = peekChar(0);
+    if (c < 0) {
+      return new Token(Kind.EOF, "", tokenLine, tokenColumn);
+    }
+
+    Kind kind = null;
+    int length = 1;
+    switch (c) {
+    case ';': kind = Kind.SEMICOLON; break;
+    case '<': kind = Kind.LT; break;
+    case '*': kind = Kind.STAR; break;
+    case '>': kind = Kind.GT; break;
+    case '=': kind = Kind.EQUALS; break;
+    case '|': kind = Kind.BAR; break;
+    case '/': kind = Kind.SLASH; break;
+    case '+': kind = Kind.PLUS; break;
+    case '(': kind = Kind.LPAREN; break;
+    case ')': kind = Kind.RPAREN; break;
+    case '[': kind = Kind.LBRACKET; break;
+    case ']': kind = Kind.RBRACKET; break;
+    case '"':
+      kind = Kind.STRING;
+      length = scanString();
+      break;
+    case '{':
+      kind = Kind.TAG;
+      length = scanTag();
+      break;
+    default:
+      // Longest match; on a tie the earlier kind wins
+      length = 0;
+      int integerLength = countDigits(0);
+      if (integerLength > length) {
+        kind = Kind.INTEGER;
+        length = integerLength;
+      }
+
+      int floatLength = scanFloat();
+      if (floatLength > length) {
+        kind = Kind.FLOAT;
+        length = floatLength;
+      }
+
+      int charLength = (c == '\'') ? scanCharLiteral() : 0;
+      if (charLength > length) {
+        kind = Kind.CHAR;
+        length = charLength;
+      }
+
+      int identifierLength = 0;
+      while (isIdentifierChar(peekChar(identifierLength))) {
+        identifierLength++;
+      }
+
+      if (identifierLength > length) {
+        kind = Kind.IDENTIFIER;
+        length = identifierLength;
+      }
+
+      if ((length < 4) && (c == 'V') && (peekChar(1) == '1') && (peekChar(2) == '.')
+          && (peekChar(3) == '0')) {
+        kind = Kind.VERSION;
+        length = 4;
+      }
+
+      if ((length == 0) && (c == '.')) {
+        kind = Kind.DOT;
+        length = 1;
+      }
+
+      if (length == 0) {
+        throw error(tokenLine, tokenColumn,
+                    String.format("Unexpected character '%c' (\\u%04x)", (char) c, c));
+      }
+    }
+
+    String text = new String(buffer, position, length);
+    if (kind == Kind.IDENTIFIER) {
+      if (text.equals("grammar")) {
+        kind = Kind.GRAMMAR;
+      } else if (text.equals("import")) {
+        kind = Kind.IMPORT;
+      } else if (text.equals("public")) {
+        kind = Kind.PUBLIC;
+      }
+    }
+
+    consume(length);
+    return new Token(kind, text, tokenLine, tokenColumn);
+  }
+
+  private void skipSpaceAndComments() throws IOException, JSGFGrammarParseException {
+    while (true) {
+      int c = peekChar(0);
+      if ((c == ' ') || (c == '\t') || (c == '\n') || (c == '\r') || (c == '\f')) {
+        consume(1);
+      } else if ((c == '/') && (peekChar(1) == '/')) {
+        while ((peekChar(0) >= 0) && (peekChar(0) != '\n') && (peekChar(0) != '\r')) {
+          consume(1);
+        }
+      } else if ((c == '/') && (peekChar(1) == '*')) {
+        int commentLine = line;
+        int commentColumn = column;
+        consume(2);
+        while (!((peekChar(0) == '*') && (peekChar(1) == '/'))) {
+          if (peekChar(0) < 0) {
+            throw error(commentLine, commentColumn, "Unterminated comment");
+          }
+
+          consume(1);
+        }
+
+        consume(2);
+      } else {
+        return;
+      }
+    }
+  }
+
+  /* Length of a quoted string with Java escapes */
+  private int scanString() throws IOException, JSGFGrammarParseException {
+    int length = 1;
+    while (true) {
+      int c = peekChar(length);
+      if (c == '"') {
+        return length + 1;
+      } else if ((c < 0) || (c == '\n') || (c == '\r')) {
+        throw error(line, column, "Unterminated quoted string");
+      } else if (c == '\\') {
+        int escapeLength = scanEscape(length);
+        if (escapeLength == 0) {
+          throw error(line, column, "Bad escape sequence in quoted string");
+        }
+
+        length += escapeLength;
+      } else {
+        length++;
+      }
+    }
+  }
+
+  /* Length of a 'c' literal, 0 if there is none */
+  private int scanCharLiteral() throws IOException {
+    int c = peekChar(1);
+    int length = 0;
+    if (c == '\\') {
+      length = scanEscape(1);
+      if (length == 0) {
+        return 0;
+      }
+    } else if ((c >= 0) && (c != '\'') && (c != '\n') && (c != '\r')) {
+      length = 1;
+    } else {
+      return 0;
+    }
+
+    return (peekChar(1 + length) == '\'') ? length + 2 : 0;
+  }
+
+  /* Length of a backslash escape at an offset, 0 if it is malformed */
+  private int scanEscape(int offset) throws IOException {
+    int c = peekChar(offset + 1);
+    switch (c) {
+    case 'n':
+    case 't':
+    case 'b':
+    case 'r':
+    case 'f':
+    case '\\':
+    case '\'':
+    case '"':
+      return 2;
+    default:
+      if ((c < '0') || (c > '7')) {
+        return 0;
+      }
+
+      // Octal: up to three digits, the first only 0-3 if there are three
+      int digits = 1;
+      while ((digits < 3) && (peekChar(offset + 1 + digits) >= '0')
+             && (peekChar(offset + 1 + digits) <= '7')) {
+        digits++;
+      }
+
+      if ((digits == 3) && (c > '3')) {
+        digits = 2;
+      }
+
+      return 1 + digits;
+    }
+  }
+
+  /*
+   * Length of a tag. A tag ends at the last "}" that only has escaped ("\}")
+   * braces before it, so the longest tag wins.
+   */
+  private int scanTag() throws IOException, JSGFGrammarParseException {
+    int end = 0;
+    for (int i = 1; ; i++) {
+      int c = peekChar(i);
+      if (c < 0) {
+        break;
+      }
+
+      if (c == '}') {
+        end = i + 1;
+        if ((i < 2) || (peekChar(i - 1) != '\\')) {
+          break;
+        }
+      }
+    }
+
+    if (end == 0) {
+      throw error(line, column, "Unterminated tag");
+    }
+
+    return end;
+  }
+
+  /* Length of a floating point number, 0 if there is none */
+  private int scanFloat() throws IOException {
+    int length = 0;
+    int integerDigits = countDigits(0);
+
+    if (integerDigits > 0) {
+      int i = integerDigits;
+      if (peekChar(i) == '.') {
+        i++;
+        i += countDigits(i);
+        length = i;
+      }
+
+      int exponent = scanExponent(i);
+      if (exponent > 0) {
+        i += exponent;
+        length = i;
+      }
+
+      if (isFloatSuffix(peekChar(i))) {
+        length = i + 1;
+      }
+    } else if ((peekChar(0) == '.') && (countDigits(1) > 0)) {
+      int i = 1 + countDigits(1);
+      length = i;
+
+      int exponent = scanExponent(i);
+      if (exponent > 0) {
+        i += exponent;
+        length = i;
+      }
+
+      if (isFloatSuffix(peekChar(i))) {
+        length = i + 1;
+      }
+    }
+
+    return length;
+  }
+
+  private int scanExponent(int offset) throws IOException {
+    int c = peekChar(offset);
+    if ((c != 'e') && (c != 'E')) {
+      return 0;
+    }
+
+    int i = offset + 1;
+    if ((peekChar(i) == '+') || (peekChar(i) == '-')) {
+      i++;
+    }
+
+    int digits = countDigits(i);
+    return (digits > 0) ? (i + digits - offset) : 0;
+  }
+
+  private static boolean isFloatSuffix(int c) {
+    return (c == 'f') || (c == 'F') || (c == 'd') || (c == 'D');
+  }
+
+  private int countDigits(int offset) throws IOException {
+    int count = 0;
+    while ((peekChar(offset + count) >= '0') && (peekChar(offset + count) <= '9')) {
+      count++;
+    }
+
+    return count;
+  }
+
+  /* Characters of the Sphinx lexer's IDENTIFIER token */
+  static boolean isIdentifierChar(int c) {
+    return (c == 0x21)
+        || ((c >= 0x23) && (c <= 0x27))
+        || (c == 0x2c) || (c == 0x2d)
+        || ((c >= 0x30) && (c <= 0x3a))
+        || ((c >= 0x40) && (c <= 0x5a))
+        || (c == 0x5c)
+        || (c == 0x5e) || (c == 0x5f)
+        || ((c >= 0x61) && (c <= 0x7a))
+        || (c == 0x7e)
+        || ((c >= 0xc0) && (c <= 0xd6))
+        || ((c >= 0xd8) && (c <= 0xf6))
+        || ((c >= 0xf8) && (c <= 0x1fff))
+        || ((c >= 0x3040) && (c <= 0x318f))
+        || ((c >= 0x3300) && (c <= 0x337f))
+        || ((c >= 0x3400) && (c <= 0x3d2d))
+        || ((c >= 0x4e00) && (c <= 0x9fff))
+        || ((c >= 0xf900) && (c <= 0xfaff));
+  }
+
+  // --------------------------------------------------------------------------
+  // Input buffer
+
+  /* Character at an offset from the current position, -1 at the end */
+  private int peekChar(int offset) throws IOException {
+    while (position + offset >= limit) {
+      if (endOfInput) {
+        return -1;
+      }
+
+      fill();
+    }
+
+    return buffer[position + offset];
+  }
+
+  private void fill() throws IOException {
+    if (position > 0) {
+      // Keep only the current token
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+
+    if (limit == buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+
+    int count = reader.read(buffer, limit, buffer.length - limit);
+    if (count < 0) {
+      endOfInput = true;
+    } else {
+      limit += count;
+    }
+  }
+
+  /* Moves past characters that have been peeked at, counting lines */
+  private void consume(int count) {
+    for (int i = 0; i < count; i++) {
+      char c = buffer[position++];
+      if (c == '\n') {
+        if (!afterCarriageReturn) {
+          line++;
+        }
+
+        column = 1;
+      } else if (c == '\r') {
+        line++;
+        column = 1;
+      } else {
+        column++;
+      }
+
+      afterCarriageReturn = (c == '\r');
+    }
+  }
+
+}  // class JsgfReader
@@ -0,0 +1,407 @@
+package com.synesthesiam.jsgf;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.GsonBuilder;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Counters, histograms and phase times of generation and parsing, for
+ * --stats and as JFR events.
+ *
+ * Nothing is collected until enable() is called. Every hook first checks a
+ * static flag, so a disabled hook costs a field read and a branch and
+ * allocates nothing. Metrics are global (summed over all grammars and
+ * threads of a run) and thread-safe.
+ *
+ * JFR events are defined at run time with jdk.jfr.EventFactory, because the
+ * code targets Java 8. On a JVM without it they are simply not emitted.
+ */
+class Metrics {
+  private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+  // Read by every hook
+  static boolean enabled = false;
+
+  public enum Counter {
+    NODES_VISITED("nodesVisited"),
+    ARCS_EVALUATED("arcsEvaluated"),
+    DEAD_ENDS("voidBackoffs"),
+    DUPLICATES("duplicates"),
+    PARSES("parses"),
+    PARSE_FAILURES("parseFailures"),
+    RULE_NAME_CALLS("ruleNameCalls"),
+    TOKEN_CALLS("tokenCalls"),
+    SEQUENCE_CALLS("sequenceCalls"),
+    ALTERNATIVES_CALLS("alternativesCalls"),
+    COUNT_CALLS("countCalls"),
+    TAG_CALLS("tagCalls"),
+    ALTERNATIVES_TRIED("alternativesTried");
+
+    final String key;
+
+    Counter(String key) {
+      this.key = key;
+    }
+  }
+
+  public enum Histogram {
+    // Nodes entered (including backed off ones) per random sentence
+    NODES_PER_SENTENCE("nodesPerRandomSentence"),
+    PARSE_MICROS("parseMicros");
+
+    final String key;
+
+    Histogram(String key) {
+      this.key = key;
+    }
+  }
+
+  public enum Phase {
+    // Reading and parsing grammar files (built-in loader only)
+    LOAD("load"),
+    // Resolving rules, building and optimizing the grammar graph
+    ALLOCATE("allocate"),
+    // Constraints, tokens and the rest of CompiledGrammar
+    COMPILE("compile"),
+    // Running the mode, without POST_PROCESS and OUTPUT (its JFR events
+    // span the whole run)
+    GENERATE("generate"),
+    // Parsing sentences to add tags or classes
+    POST_PROCESS("postProcess"),
+    // Writing to the output stream
+    OUTPUT("output");
+
+    final String key;
+
+    Phase(String key) {
+      this.key = key;
+    }
+  }
+
+  /* Timer of one phase; a no-op when metrics are disabled */
+  public interface Timer extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static final Timer NO_TIMER = () -> { };
+
+  // Powers of two: bucket i holds values v with 2^(i-1) <= v < 2^i
+  private static final int BUCKETS = 64;
+
+  private static final LongAdder[] counters = newAdders(Counter.values().length);
+  private static final LongAdder[] phaseNanos = newAdders(Phase.values().length);
+  private static final LongAdder[][] histograms = new LongAdder[Histogram.values().length][];
+  private static final LongAccumulator[] histogramMax =
+      new LongAccumulator[Histogram.values().length];
+
+  static {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = newAdders(BUCKETS);
+      histogramMax[i] = new LongAccumulator(Math::max, 0);
+    }
+  }
+
+  private static JfrEventType phaseEvent = null;
+  private static JfrEventType counterEvent = null;
+  private static JfrEventType parseFailureEvent = null;
+
+  private Metrics() {
+  }
+
+  /**
+   * Starts collecting metrics and defines the JFR events (if JFR is
+   * available).
+   */
+  public static synchronized void enable() {
+    if (enabled) {
+      return;
+    }
+
+    try {
+      phaseEvent = new JfrEventType("jsgf.Phase", "Phase",
+                                    new String[] { "grammar", "phase" },
+                                    new Class<?>[] { String.class, String.class });
+      counterEvent = new JfrEventType("jsgf.Counter", "Counter",
+                                      new String[] { "name", "value" },
+                                      new Class<?>[] { String.class, long.class });
+      parseFailureEvent = new JfrEventType("jsgf.ParseFailure", "Parse Failure",
+                                           new String[] { "sentence" },
+                                           new Class<?>[] { String.class });
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      // Java 8 without JFR
+      logger.log(Level.FINE, "JFR events are not available", ex);
+      phaseEvent = counterEvent = parseFailureEvent = null;
+    }
+
+    enabled = true;
+  }
+
+  /**
+   * Enables metrics if the JVM is recording with JFR (e.g. started with
+   * -XX:StartFlightRecording).
+   */
+  public static void enableIfRecording() {
+    try {
+      Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+      if (!(Boolean) recorderClass.getMethod("isInitialized").invoke(null)) {
+        return;
+      }
+
+      Object recorder = recorderClass.getMethod("getFlightRecorder").invoke(null);
+      List<?> recordings = (List<?>) recorderClass.getMethod("getRecordings").invoke(recorder);
+      if (!recordings.isEmpty()) {
+        enable();
+      }
+    } catch (ReflectiveOperationException | LinkageError ex) {
+      // No JFR
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  public static void count(Counter counter) {
+    if (enabled) {
+      counters[counter.ordinal()].increment();
+    }
+  }
+
+  public static void add(Counter counter, long amount) {
+    if (enabled) {
+      counters[counter.ordinal()].add(amount);
+    }
+  }
+
+  public static void record(Histogram histogram, long value) {
+    if (enabled) {
+      int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+      histograms[histogram.ordinal()][bucket].increment();
+      histogramMax[histogram.ordinal()].accumulate(value);
+    }
+  }
+
+  /**
+   * Starts timing a phase of a grammar, which ends when the timer is closed.
+   * A JFR event covers the phase.
+   */
+  public static Timer time(Phase phase, String grammarName) {
+    if (!enabled) {
+      return NO_TIMER;
+    }
+
+    long startTime = System.nanoTime();
+    Object event = (phaseEvent == null) ? null : phaseEvent.begin(grammarName, phase.key);
+    return () -> {
+      addTime(phase, System.nanoTime() - startTime);
+      if (event != null) {
+        phaseEvent.commit(event);
+      }
+    };
+  }
+
+  /**
+   * Adds time to a phase without a JFR event (for work done per sentence).
+   */
+  public static void addTime(Phase phase, long nanos) {
+    if (enabled) {
+      phaseNanos[phase.ordinal()].add(nanos);
+    }
+  }
+
+  public static void parseFailed(CharSequence sentence) {
+    if (enabled) {
+      counters[Counter.PARSE_FAILURES.ordinal()].increment();
+      if (parseFailureEvent != null) {
+        parseFailureEvent.commit(parseFailureEvent.begin(sentence.toString()));
+      }
+    }
+  }
+
+  /**
+   * Wraps an output stream so that the time spent writing to it counts as
+   * the OUTPUT phase (the same stream if metrics are disabled).
+   */
+  public static OutputStream timeOutput(OutputStream out) {
+    if (!enabled) {
+      return out;
+    }
+
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        long startTime = System.nanoTime();
+        out.write(b);
+        addTime(Phase.OUTPUT, System.nanoTime() - startTime);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        long startTime = System.nanoTime();
+        out.write(b, off, len);
+        addTime(Phase.OUTPUT, System.nanoTime() - startTime);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        long startTime = System.nanoTime();
+        out.flush();
+        addTime(Phase.OUTPUT, System.nanoTime() - startTime);
+      }
+    };
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Emits one JFR event per counter (if JFR is available) and describes
+   * everything collected as JSON. GENERATE is reported without the
+   * POST_PROCESS and OUTPUT time inside it; those are summed over threads, so
+   * with --threads it can come out as 0.
+   */
+  public static String report() {
+    Map<String, Object> counterValues = new LinkedHashMap<>();
+    for (Counter counter : Counter.values()) {
+      long value = counters[counter.ordinal()].sum();
+      counterValues.put(counter.key, value);
+      if (counterEvent != null) {
+        counterEvent.commit(counterEvent.begin(counter.key, value));
+      }
+    }
+
+    long perSentenceNanos = phaseNanos[Phase.POST_PROCESS.ordinal()].sum()
+        + phaseNanos[Phase.OUTPUT.ordinal()].sum();
+    Map<String, Object> phaseMillis = new LinkedHashMap<>();
+    for (Phase phase : Phase.values()) {
+      long nanos = phaseNanos[phase.ordinal()].sum();
+      if (phase == Phase.GENERATE) {
+        nanos = Math.max(0, nanos - perSentenceNanos);
+      }
+
+      phaseMillis.put(phase.key, Math.round(nanos / 1E3) / 1E3);
+    }
+
+    Map<String, Object> histogramValues = new LinkedHashMap<>();
+    for (Histogram histogram : Histogram.values()) {
+      histogramValues.put(histogram.key, describe(histogram));
+    }
+
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("phaseMillis", phaseMillis);
+    stats.put("counters", counterValues);
+    stats.put("histograms", histogramValues);
+
+    return new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(stats);
+  }
+
+  /* Count, max and the non-empty buckets as "<upper bound>": count */
+  private static Map<String, Object> describe(Histogram histogram) {
+    LongAdder[] buckets = histograms[histogram.ordinal()];
+    long count = 0;
+    Map<String, Long> bucketCounts = new LinkedHashMap<>();
+    for (int i = 0; i < buckets.length; i++) {
+      long bucketCount = buckets[i].sum();
+      if (bucketCount > 0) {
+        bucketCounts.put("<" + ((i == 0) ? 1 : (1L << i)), bucketCount);
+        count += bucketCount;
+      }
+    }
+
+    Map<String, Object> description = new LinkedHashMap<>();
+    description.put("count", count);
+    description.put("max", histogramMax[histogram.ordinal()].get());
+    description.put("buckets", bucketCounts);
+    return description;
+  }
+
+  private static LongAdder[] newAdders(int size) {
+    LongAdder[] adders = new LongAdder[size];
+    for (int i = 0; i < size; i++) {
+      adders[i] = new LongAdder();
+    }
+
+    return adders;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* JFR event type defined through reflection */
+  private static class JfrEventType {
+    private final Object factory;
+    private final Method newEvent;
+    private final Method set;
+    private final Method begin;
+    private final Method commit;
+
+    JfrEventType(String name, String label, String[] fieldNames, Class<?>[] fieldTypes)
+        throws ReflectiveOperationException {
+      Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+      Constructor<?> newAnnotation = annotationClass.getConstructor(Class.class, Object.class);
+      List<Object> annotations = Arrays.asList(
+          newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), name),
+          newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), label),
+          newAnnotation.newInstance(Class.forName("jdk.jfr.Category"),
+                                    new String[] { "jsgf-gen" }));
+
+      Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+      Constructor<?> newValue = valueClass.getConstructor(Class.class, String.class);
+      List<Object> values = new ArrayList<>();
+      for (int i = 0; i < fieldNames.length; i++) {
+        values.add(newValue.newInstance(fieldTypes[i], fieldNames[i]));
+      }
+
+      Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+      factory = factoryClass.getMethod("create", List.class, List.class)
+          .invoke(null, annotations, values);
+      newEvent = factoryClass.getMethod("newEvent");
+
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      set = eventClass.getMethod("set", int.class, Object.class);
+      begin = eventClass.getMethod("begin");
+      commit = eventClass.getMethod("commit");
+    }
+
+    /* New event with its fields set and its start time taken (null on error) */
+    Object begin(Object... fieldValues) {
+      try {
+        Object event = newEvent.invoke(factory);
+        for (int i = 0; i < fieldValues.length; i++) {
+          set.invoke(event, i, fieldValues[i]);
+        }
+
+        begin.invoke(event);
+        return event;
+      } catch (ReflectiveOperationException ex) {
+        logger.log(Level.FINE, "Failed to create JFR event", ex);
+        return null;
+      }
+    }
+
+    void commit(Object event) {
+      if (event == null) {
+        return;
+      }
+
+      try {
+        commit.invoke(event);
+      } catch (ReflectiveOperationException ex) {
+        logger.log(Level.FINE, "Failed to commit JFR event", ex);
+      }
+    }
+  }
+
+}  // class Metrics
@@ -0,0 +1,431 @@
+package com.synesthesiam.jsgf;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import edu.cmu.sphinx.jsgf.JSGFGrammar;
+import edu.cmu.sphinx.jsgf.JSGFGrammarException;
+import edu.cmu.sphinx.jsgf.JSGFGrammarParseException;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
+import edu.cmu.sphinx.jsgf.JSGFRuleGrammarManager;
+import edu.cmu.sphinx.jsgf.rule.JSGFRule;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleAlternatives;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleCount;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleToken;
+import edu.cmu.sphinx.linguist.dictionary.Dictionary;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+import edu.cmu.sphinx.util.LogMath;
+
+// --------------------------------------------------------------------------
+
+/**
+ * A JSGFGrammar that reads its rules with JsgfReader and builds the grammar
+ * graph itself.
+ *
+ * Imports (and grammars of fully qualified rule references) are loaded the
+ * way JSGFGrammar loads them, and the graph has the same nodes, ids, arcs and
+ * weights, so every mode sees the same grammar. What is left out is the work
+ * Sphinx does with rule strings: logging every rule's text while building the
+ * graph, scanning rule text for qualified names and indexing tags by rule
+ * text when linking. No global lock is needed to load.
+ */
+class NativeJsgfGrammar extends JSGFGrammar {
+  private JSGFRuleGrammar ruleGrammar = null;
+
+  // Subgraphs of the rules being expanded, by full rule name
+  private Map<String, Subgraph> ruleStack = null;
+
+  public NativeJsgfGrammar(URL baseURL, String grammarName, Dictionary dictionary) {
+    super(baseURL,
+          grammarName,
+          false, /* showGrammar */
+          true,  /* optimizeGrammar */
+          false, /* addSilenceWords */
+          false, /* addFillerWords */
+          dictionary);
+  }
+
+  /**
+   * Creates a grammar that stores its rule grammars in a given manager.
+   */
+  public NativeJsgfGrammar(URL baseURL, String grammarName, Dictionary dictionary,
+                           JSGFRuleGrammarManager manager) {
+    this(baseURL, grammarName, dictionary);
+    this.manager = manager;
+  }
+
+  @Override
+  public JSGFRuleGrammar getRuleGrammar() {
+    return ruleGrammar;
+  }
+
+  @Override
+  protected GrammarNode createGrammar() throws IOException {
+    try {
+      commitChanges();
+    } catch (JSGFGrammarException | JSGFGrammarParseException ex) {
+      throw new IOException(ex);
+    }
+
+    return firstNode;
+  }
+
+  /**
+   * Loads the grammar the first time, then links the rule grammars and
+   * rebuilds the grammar graph from the public rules.
+   */
+  @Override
+  public void commitChanges()
+      throws IOException, JSGFGrammarParseException, JSGFGrammarException {
+    JSGFRuleGrammarManager manager = getGrammarManager();
+    if (loadGrammar) {
+      Metrics.Timer timer = Metrics.time(Metrics.Phase.LOAD, getGrammarName());
+      try {
+        ruleGrammar = loadNamedGrammar(getGrammarName());
+        loadImports(ruleGrammar);
+      } finally {
+        timer.close();
+      }
+
+      loadGrammar = false;
+    }
+
+    Metrics.Timer timer = Metrics.time(Metrics.Phase.ALLOCATE, getGrammarName());
+    try {
+      buildGraph(manager);
+    } finally {
+      timer.close();
+    }
+  }
+
+  /* Links the rule grammars and builds the graph of the public rules */
+  private void buildGraph(JSGFRuleGrammarManager manager) throws JSGFGrammarException {
+    for (JSGFRuleGrammar grammar : manager.grammars()) {
+      resolveRules(grammar, manager);
+    }
+
+    ruleStack = new HashMap<>();
+    newGrammar();
+
+    firstNode = createGrammarNode("<sil>");
+    GrammarNode finalNode = createGrammarNode("<sil>");
+    finalNode.setFinalNode(true);
+
+    for (String ruleName : ruleGrammar.getRuleNames()) {
+      if (!ruleGrammar.isRulePublic(ruleName)) {
+        continue;
+      }
+
+      String fullName = ruleGrammar.resolve(new JSGFRuleName(ruleName)).getRuleName();
+      Subgraph publicGraph = new Subgraph();
+      ruleStack.put(fullName, publicGraph);
+      Subgraph ruleGraph = buildRule(ruleGrammar.getRule(ruleName));
+      ruleStack.remove(fullName);
+
+      firstNode.add(publicGraph.start, 0.0F);
+      publicGraph.end.add(finalNode, 0.0F);
+      publicGraph.start.add(ruleGraph.start, 0.0F);
+      ruleGraph.end.add(publicGraph.end, 0.0F);
+    }
+
+    ruleStack = null;
+    postProcessGrammar();
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Qualifies the rule references of a rule grammar with the grammars they
+   * resolve to, like JSGFRuleGrammar.resolveAllRules() but without indexing
+   * tags by rule text.
+   *
+   * @throws JSGFGrammarException if an import or rule can't be found
+   */
+  static void resolveRules(JSGFRuleGrammar grammar, JSGFRuleGrammarManager manager)
+      throws JSGFGrammarException {
+    StringBuilder undefined = new StringBuilder();
+    for (JSGFRuleName importName : grammar.getImports()) {
+      String grammarName = importName.getFullGrammarName();
+      if (manager.retrieveGrammar(grammarName) == null) {
+        undefined.append("Undefined grammar ").append(grammarName)
+            .append(" imported in ").append(grammar.getName()).append('\n');
+      }
+    }
+
+    if (undefined.length() > 0) {
+      throw new JSGFGrammarException(undefined.toString());
+    }
+
+    for (String ruleName : grammar.getRuleNames()) {
+      resolveRule(grammar, grammar.getRule(ruleName));
+    }
+  }
+
+  private static void resolveRule(JSGFRuleGrammar grammar, JSGFRule rule)
+      throws JSGFGrammarException {
+    if (rule instanceof JSGFRuleToken) {
+      return;
+    } else if (rule instanceof JSGFRuleAlternatives) {
+      for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+        resolveRule(grammar, child);
+      }
+    } else if (rule instanceof JSGFRuleSequence) {
+      for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+        resolveRule(grammar, child);
+      }
+    } else if (rule instanceof JSGFRuleCount) {
+      resolveRule(grammar, ((JSGFRuleCount) rule).getRule());
+    } else if (rule instanceof JSGFRuleTag) {
+      resolveRule(grammar, ((JSGFRuleTag) rule).getRule());
+    } else if (rule instanceof JSGFRuleName) {
+      JSGFRuleName ruleName = (JSGFRuleName) rule;
+      JSGFRuleName resolved = grammar.resolve(ruleName);
+      if (resolved == null) {
+        throw new JSGFGrammarException(
+            "Unresolvable rulename in grammar " + grammar.getName() + ": " + ruleName);
+      }
+
+      ruleName.resolvedRuleName = resolved.getRuleName();
+      ruleName.setRuleName(resolved.getRuleName());
+    } else {
+      throw new JSGFGrammarException("Unknown rule type");
+    }
+  }
+
+  /**
+   * Gets the names of the grammars that the rule references of a resolved
+   * rule grammar point into (including its own name if it has any local
+   * references).
+   */
+  static Set<String> getReferencedGrammars(JSGFRuleGrammar grammar) {
+    List<JSGFRuleName> references = new ArrayList<>();
+    for (String ruleName : grammar.getRuleNames()) {
+      collectRuleNames(grammar.getRule(ruleName), references);
+    }
+
+    Set<String> grammarNames = new TreeSet<>();
+    for (JSGFRuleName reference : references) {
+      String grammarName = reference.getFullGrammarName();
+      if (grammarName != null) {
+        grammarNames.add(grammarName);
+      }
+    }
+
+    return grammarNames;
+  }
+
+  // --------------------------------------------------------------------------
+
+  private JSGFRuleGrammar loadNamedGrammar(String grammarName)
+      throws IOException, JSGFGrammarParseException {
+    URL url = new URL(baseURL, grammarName.replace('.', '/') + ".gram");
+    JSGFRuleGrammar grammar = JsgfReader.read(url, getGrammarManager());
+    grammar.setEnabled(true);
+    return grammar;
+  }
+
+  /* Loads the imports of a grammar and the grammars of its qualified references */
+  private void loadImports(JSGFRuleGrammar grammar)
+      throws IOException, JSGFGrammarParseException {
+    for (JSGFRuleName importName : grammar.getImports()) {
+      loadGrammar(importName.getFullGrammarName());
+    }
+
+    List<JSGFRuleName> references = new ArrayList<>();
+    for (String ruleName : grammar.getRuleNames()) {
+      collectRuleNames(grammar.getRule(ruleName), references);
+    }
+
+    for (JSGFRuleName reference : references) {
+      String grammarName = reference.getFullGrammarName();
+      if (grammarName != null) {
+        loadGrammar(grammarName);
+      }
+    }
+  }
+
+  private void loadGrammar(String grammarName) throws IOException, JSGFGrammarParseException {
+    if (getGrammarManager().retrieveGrammar(grammarName) == null) {
+      loadImports(loadNamedGrammar(grammarName));
+    }
+  }
+
+  private static void collectRuleNames(JSGFRule rule, List<JSGFRuleName> ruleNames) {
+    if (rule instanceof JSGFRuleName) {
+      ruleNames.add((JSGFRuleName) rule);
+    } else if (rule instanceof JSGFRuleAlternatives) {
+      for (JSGFRule child : ((JSGFRuleAlternatives) rule).getRules()) {
+        collectRuleNames(child, ruleNames);
+      }
+    } else if (rule instanceof JSGFRuleSequence) {
+      for (JSGFRule child : ((JSGFRuleSequence) rule).getRules()) {
+        collectRuleNames(child, ruleNames);
+      }
+    } else if (rule instanceof JSGFRuleCount) {
+      collectRuleNames(((JSGFRuleCount) rule).getRule(), ruleNames);
+    } else if (rule instanceof JSGFRuleTag) {
+      collectRuleNames(((JSGFRuleTag) rule).getRule(), ruleNames);
+    }
+  }
+
+  // --------------------------------------------------------------------------
+  // Graph construction (node for node the same as JSGFGrammar's)
+
+  /* Entry and exit node of a rule's part of the graph */
+  private class Subgraph {
+    final GrammarNode start;
+    final GrammarNode end;
+
+    Subgraph() {
+      this(createGrammarNode(false), createGrammarNode(false));
+    }
+
+    Subgraph(GrammarNode start, GrammarNode end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private Subgraph buildRule(JSGFRule rule) throws JSGFGrammarException {
+    if (rule instanceof JSGFRuleAlternatives) {
+      return buildAlternatives((JSGFRuleAlternatives) rule);
+    } else if (rule instanceof JSGFRuleCount) {
+      return buildCount((JSGFRuleCount) rule);
+    } else if (rule instanceof JSGFRuleName) {
+      return buildRuleName((JSGFRuleName) rule);
+    } else if (rule instanceof JSGFRuleSequence) {
+      return buildSequence((JSGFRuleSequence) rule);
+    } else if (rule instanceof JSGFRuleTag) {
+      return buildRule(((JSGFRuleTag) rule).getRule());
+    } else if (rule instanceof JSGFRuleToken) {
+      GrammarNode node = createGrammarNode(((JSGFRuleToken) rule).getText());
+      return new Subgraph(node, node);
+    }
+
+    throw new IllegalArgumentException("Unsupported Rule type: " + rule);
+  }
+
+  private Subgraph buildRuleName(JSGFRuleName ruleName) throws JSGFGrammarException {
+    Subgraph onStack = ruleStack.get(ruleName.getRuleName());
+    if (onStack != null) {
+      // Recursive reference
+      return onStack;
+    }
+
+    Subgraph result = new Subgraph();
+    ruleStack.put(ruleName.getRuleName(), result);
+
+    JSGFRuleName resolved = ruleGrammar.resolve(ruleName);
+    if (resolved == JSGFRuleName.NULL) {
+      result.start.add(result.end, 0.0F);
+    } else if (resolved != JSGFRuleName.VOID) {
+      if (resolved == null) {
+        throw new JSGFGrammarException(
+            "Can't resolve " + ruleName + " g " + ruleName.getFullGrammarName());
+      }
+
+      JSGFRuleGrammar grammar = getGrammarManager().retrieveGrammar(resolved.getFullGrammarName());
+      if (grammar == null) {
+        throw new JSGFGrammarException(
+            "Can't resolve grammar name " + resolved.getFullGrammarName());
+      }
+
+      JSGFRule rule = grammar.getRule(resolved.getSimpleRuleName());
+      if (rule == null) {
+        throw new JSGFGrammarException("Can't resolve rule: " + resolved.getRuleName());
+      }
+
+      Subgraph ruleGraph = buildRule(rule);
+      if (ruleGraph != result) {
+        result.start.add(ruleGraph.start, 0.0F);
+        ruleGraph.end.add(result.end, 0.0F);
+      }
+    }
+
+    ruleStack.remove(ruleName.getRuleName());
+    return result;
+  }
+
+  private Subgraph buildCount(JSGFRuleCount rule) throws JSGFGrammarException {
+    Subgraph result = new Subgraph();
+    Subgraph inner = buildRule(rule.getRule());
+    result.start.add(inner.start, 0.0F);
+    inner.end.add(result.end, 0.0F);
+
+    int count = rule.getCount();
+    if ((count == JSGFRuleCount.ZERO_OR_MORE) || (count == JSGFRuleCount.OPTIONAL)) {
+      result.start.add(result.end, 0.0F);
+    }
+
+    if ((count == JSGFRuleCount.ONCE_OR_MORE) || (count == JSGFRuleCount.ZERO_OR_MORE)) {
+      inner.end.add(inner.start, 0.0F);
+    }
+
+    return result;
+  }
+
+  private Subgraph buildAlternatives(JSGFRuleAlternatives rule) throws JSGFGrammarException {
+    Subgraph result = new Subgraph();
+    List<JSGFRule> alternatives = rule.getRules();
+    float[] weights = getLogWeights(rule.getWeights());
+
+    for (int i = 0; i < alternatives.size(); i++) {
+      Subgraph alternative = buildRule(alternatives.get(i));
+      result.start.add(alternative.start, (weights == null) ? 0.0F : weights[i]);
+      alternative.end.add(result.end, 0.0F);
+    }
+
+    return result;
+  }
+
+  /* Normalized log weights of alternatives (null if they are unweighted) */
+  private static float[] getLogWeights(List<Float> weights) {
+    if (weights == null) {
+      return null;
+    }
+
+    double sum = 0.0;
+    for (float weight : weights) {
+      if (weight < 0.0F) {
+        throw new IllegalArgumentException("Negative weight " + weight);
+      }
+
+      sum += weight;
+    }
+
+    float[] logWeights = new float[weights.size()];
+    for (int i = 0; i < logWeights.length; i++) {
+      logWeights[i] = (sum == 0.0) ? LogMath.LOG_ZERO
+          : LogMath.getLogMath().linearToLog(weights.get(i) / sum);
+    }
+
+    return logWeights;
+  }
+
+  private Subgraph buildSequence(JSGFRuleSequence rule) throws JSGFGrammarException {
+    GrammarNode start = null;
+    Subgraph previous = null;
+    for (JSGFRule item : rule.getRules()) {
+      Subgraph itemGraph = buildRule(item);
+      if (previous == null) {
+        start = itemGraph.start;
+      } else {
+        previous.end.add(itemGraph.start, 0.0F);
+      }
+
+      previous = itemGraph;
+    }
+
+    return new Subgraph(start, (previous == null) ? null : previous.end);
+  }
+
+}  // class NativeJsgfGrammar
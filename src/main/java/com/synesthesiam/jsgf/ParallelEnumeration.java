@@ -0,0 +1,323 @@
+package com.synesthesiam.jsgf;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Enumerates every sentence of a grammar with fork-join tasks.
+ *
+ * Each task walks its own cursor depth-first. While other workers are idle,
+ * a task splits off the unexplored branches closest to its root into a new
+ * task. Sentences are post-processed inside the tasks.
+ *
+ * Unordered output is de-duplicated with a concurrent set (unless the
+ * grammar is unambiguous) and written from per-task buffers as they fill up.
+ * Ordered output is identical to sequential enumeration: the tasks are kept
+ * in a list in depth-first order, and the first unfinished one (the head)
+ * writes its sentences as it goes. The other tasks buffer theirs until they
+ * become the head. Once MAX_BUFFERED sentences are buffered in total, a task
+ * that isn't the head parks the rest of its cursor in a new task that is
+ * only forked when it becomes the head or the buffer has drained, so memory
+ * doesn't grow with the size of the output.
+ *
+ * All tasks share a ProgressMonitor; they stop once it is stopped by a budget.
+ * Instead of printing text, sentences can be passed to a thread-safe sink
+ * (e.g. a BinaryCorpusWriter) in the same order.
+ */
+class ParallelEnumeration {
+  private static final int FLUSH_SIZE = 64 * 1024;
+  private static final int SPLIT_INTERVAL = 64;
+  private static final int ORDERED_BATCH = 256;
+  private static final int MAX_BUFFERED = 64 * 1024;
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+  private final Function<String, String> postProcess;
+  private final boolean ordered;
+  private final boolean distinct;
+  private final PrintStream out;
+  private final Consumer<String> sink;
+  private final ProgressMonitor progress;
+  private final Set<String> usedSentences = ConcurrentHashMap.newKeySet();
+
+  // Ordered output: guards the task list, the pending sentences, the parked
+  // tasks and writing
+  private final Object orderLock = new Object();
+  private final Set<String> orderedSentences = new HashSet<>();
+  private final List<Task> parked = new ArrayList<>();
+  private Task head = null;
+  private int buffered = 0;
+
+  public ParallelEnumeration(Function<String, String> postProcess, boolean ordered,
+                             boolean distinct, PrintStream out, ProgressMonitor progress) {
+    this(postProcess, ordered, distinct, out, null, progress);
+  }
+
+  public ParallelEnumeration(Function<String, String> postProcess, boolean ordered,
+                             boolean distinct, Consumer<String> sink, ProgressMonitor progress) {
+    this(postProcess, ordered, distinct, null, sink, progress);
+  }
+
+  private ParallelEnumeration(Function<String, String> postProcess, boolean ordered,
+                              boolean distinct, PrintStream out, Consumer<String> sink,
+                              ProgressMonitor progress) {
+    this.postProcess = postProcess;
+    this.ordered = ordered;
+    this.distinct = distinct;
+    this.out = out;
+    this.sink = sink;
+    this.progress = progress;
+  }
+
+  public void run(GrammarWalker.Cursor cursor, int threads) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      Task root = new Task(cursor);
+      head = root;
+      pool.execute(root);
+      join(root);
+    } finally {
+      pool.shutdown();
+    }
+
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  /* Waits for a task and all of its splits */
+  private void join(Task root) {
+    Deque<Task> tasks = new ArrayDeque<>();
+    tasks.push(root);
+    while (!tasks.isEmpty()) {
+      Task task = tasks.pop();
+      task.join();
+      task.splits.forEach(tasks::push);
+    }
+  }
+
+  /* Writes ordered sentences; only called by or for the head */
+  private void writeOrdered(List<String> sentences) {
+    StringBuilder sb = new StringBuilder();
+    for (String sentence : sentences) {
+      if (distinct && !orderedSentences.add(sentence)) {
+        Metrics.count(Metrics.Counter.DUPLICATES);
+        continue;
+      }
+
+      if (sink != null) {
+        sink.accept(sentence);
+      } else if (progress.tryEmit(sentence)) {
+        sb.append(sentence).append(LINE_SEPARATOR);
+      }
+    }
+
+    if ((out != null) && (sb.length() > 0)) {
+      out.print(sb);
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  private class Task extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private GrammarWalker.Cursor cursor;
+    private final List<Task> splits = new ArrayList<>();
+    private final StringBuilder buffer = new StringBuilder();
+
+    // Ordered sentences not handed to publish() yet (owned by the task)
+    private final ArrayList<String> batch = new ArrayList<>();
+
+    // Guarded by orderLock: the next task in depth-first order, the
+    // sentences waiting for this task to become the head, and whether the
+    // task has finished
+    private Task next = null;
+    private final ArrayList<String> pending = new ArrayList<>();
+    private boolean done = false;
+
+    Task(GrammarWalker.Cursor cursor) {
+      this.cursor = cursor;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        enumerate();
+      } finally {
+        if (ordered) {
+          finishOrdered();
+        }
+
+        // Finished tasks stay reachable from the task that split them off
+        // until the end, so they keep nothing
+        cursor = null;
+        buffer.setLength(0);
+        buffer.trimToSize();
+        batch.trimToSize();
+      }
+    }
+
+    private void enumerate() {
+      if (ordered) {
+        synchronized (orderLock) {
+          if (parkIfFull()) {
+            return;
+          }
+        }
+      }
+
+      int count = 0;
+      while (!progress.isStopped() && cursor.hasNext()) {
+        String sentence = postProcess.apply(cursor.next()).trim();
+        progress.generated();
+
+        if (ordered) {
+          batch.add(sentence);
+          if ((batch.size() >= ORDERED_BATCH) && !publish()) {
+            break;
+          }
+        } else if (!distinct || usedSentences.add(sentence)) {
+          emit(sentence);
+        } else {
+          Metrics.count(Metrics.Counter.DUPLICATES);
+        }
+
+        if ((++count % SPLIT_INTERVAL == 0) && (getSurplusQueuedTaskCount() < 2)
+            && (!ordered || !isFull())) {
+          GrammarWalker.Cursor rest = cursor.split();
+          if (rest != null) {
+            Task task = new Task(rest);
+            if (ordered) {
+              // Comes after this task's own sentences and before its
+              // earlier splits
+              synchronized (orderLock) {
+                task.next = next;
+                next = task;
+              }
+            }
+
+            splits.add(task);
+            task.fork();
+          }
+        }
+      }
+
+      flush();
+    }
+
+    /*
+     * Writes the batch if this task is the head, otherwise buffers it and
+     * parks the rest of the cursor if too much is buffered.
+     *
+     * @return false if this task should stop
+     */
+    private boolean publish() {
+      synchronized (orderLock) {
+        if (head == this) {
+          writeOrdered(batch);
+          batch.clear();
+          return true;
+        }
+
+        pending.addAll(batch);
+        buffered += batch.size();
+        batch.clear();
+
+        return !parkIfFull();
+      }
+    }
+
+    /* Parks the rest of the cursor if too much is buffered (holding orderLock) */
+    private boolean parkIfFull() {
+      if ((head == this) || (buffered < MAX_BUFFERED) || !cursor.hasNext()) {
+        return false;
+      }
+
+      // Continues right after this task's own sentences
+      Task rest = new Task(cursor);
+      rest.next = next;
+      next = rest;
+      splits.add(rest);
+      parked.add(rest);
+      return true;
+    }
+
+    private boolean isFull() {
+      synchronized (orderLock) {
+        return buffered >= MAX_BUFFERED;
+      }
+    }
+
+    /* Buffers or writes what is left and moves the head past finished tasks */
+    private void finishOrdered() {
+      synchronized (orderLock) {
+        if (head == this) {
+          writeOrdered(batch);
+        } else {
+          pending.addAll(batch);
+          buffered += batch.size();
+        }
+
+        batch.clear();
+        done = true;
+
+        Task task = head;
+        while ((task != null) && task.done) {
+          task = task.next;
+          if (task != null) {
+            writeOrdered(task.pending);
+            buffered -= task.pending.size();
+            task.pending.clear();
+            task.pending.trimToSize();
+          }
+        }
+
+        head = task;
+
+        // A parked head has to run; the others once there is room again
+        if ((head != null) && parked.remove(head)) {
+          head.fork();
+        }
+
+        if (buffered < MAX_BUFFERED) {
+          parked.forEach(Task::fork);
+          parked.clear();
+        }
+      }
+    }
+
+    private void emit(String sentence) {
+      if (sink != null) {
+        sink.accept(sentence);
+      } else if (progress.tryEmit(sentence)) {
+        buffer.append(sentence).append(LINE_SEPARATOR);
+        if (buffer.length() >= FLUSH_SIZE) {
+          flush();
+        }
+      }
+    }
+
+    private void flush() {
+      if (buffer.length() > 0) {
+        synchronized (out) {
+          out.print(buffer);
+        }
+
+        buffer.setLength(0);
+      }
+    }
+  }
+
+}  // class ParallelEnumeration
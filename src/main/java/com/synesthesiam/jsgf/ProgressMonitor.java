@@ -0,0 +1,185 @@
+package com.synesthesiam.jsgf;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Reports the progress of sentence generation and enforces time and output
+ * budgets.
+ *
+ * Generation loops call generated() for each sentence they produce and
+ * tryEmit() before writing one that survived de-duplication. With reporting
+ * enabled, a line with the sentences written, their rate, the share of
+ * sentences rejected as duplicates and (if the total is known) the progress
+ * and remaining time goes to stderr at every interval and once at the end.
+ *
+ * Once the time or output budget is used up, tryEmit() refuses sentences and
+ * isStopped() is true, so loops (and parallel tasks) end after a whole line.
+ * Counters are atomic, so tasks can share a monitor.
+ */
+class ProgressMonitor implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(ProgressMonitor.class.getName());
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+  public static final long UNLIMITED = 0;
+
+  private final String name;
+  private final long reportMillis;
+  private final long deadline;
+  private final long maxOutputBytes;
+  private final Charset charset = Charset.defaultCharset();
+
+  private final long startTime = System.nanoTime();
+  private final LongAdder generated = new LongAdder();
+  private final LongAdder emitted = new LongAdder();
+  private final AtomicLong outputBytes = new AtomicLong();
+
+  private volatile String stopReason = null;
+  private double total = -1;
+  private ScheduledExecutorService reporter = null;
+
+  /**
+   * @param reportMillis   interval between reports or UNLIMITED for none
+   * @param maxMillis      time budget from now or UNLIMITED
+   * @param maxOutputBytes output budget (in the default charset) or UNLIMITED
+   */
+  public ProgressMonitor(String name, long reportMillis, long maxMillis, long maxOutputBytes) {
+    this.name = name;
+    this.reportMillis = reportMillis;
+    this.deadline = (maxMillis == UNLIMITED)
+        ? UNLIMITED : (startTime + TimeUnit.MILLISECONDS.toNanos(maxMillis));
+    this.maxOutputBytes = maxOutputBytes;
+  }
+
+  /**
+   * Starts reporting (if enabled).
+   *
+   * @param total number of generated() calls expected or -1 if unknown
+   */
+  public void start(double total) {
+    this.total = total;
+    if ((reportMillis == UNLIMITED) || (reporter != null)) {
+      return;
+    }
+
+    reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "progress-" + name);
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    reporter.scheduleAtFixedRate(
+        () -> System.err.println(describe()), reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void generated() {
+    generated.increment();
+  }
+
+  /**
+   * Accounts for a sentence about to be written as a line of text.
+   *
+   * @return false if a budget is used up and the sentence must not be written
+   */
+  public boolean tryEmit(String sentence) {
+    return tryEmit((maxOutputBytes == UNLIMITED)
+                   ? 0 : (sentence.getBytes(charset).length + LINE_SEPARATOR.length()));
+  }
+
+  /**
+   * Accounts for a sentence about to be written in some number of bytes.
+   *
+   * @return false if a budget is used up and the sentence must not be written
+   */
+  public boolean tryEmit(long bytes) {
+    if (isStopped()) {
+      return false;
+    }
+
+    if (maxOutputBytes != UNLIMITED) {
+      long used;
+      do {
+        used = outputBytes.get();
+        if (used + bytes > maxOutputBytes) {
+          stop("--max-output-bytes");
+          return false;
+        }
+      } while (!outputBytes.compareAndSet(used, used + bytes));
+    }
+
+    emitted.increment();
+    return true;
+  }
+
+  /**
+   * Checks if a budget is used up, so generation should end.
+   */
+  public boolean isStopped() {
+    if ((stopReason == null) && (deadline != UNLIMITED) && (System.nanoTime() - deadline > 0)) {
+      stop("--max-time");
+    }
+
+    return stopReason != null;
+  }
+
+  @Override
+  public void close() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+      System.err.println(describe());
+    }
+
+    if (stopReason != null) {
+      logger.info(String.format("%s: stopped by %s after %d sentence(s)",
+                                name, stopReason, emitted.sum()));
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  private synchronized void stop(String reason) {
+    if (stopReason == null) {
+      stopReason = reason;
+    }
+  }
+
+  /* One report line */
+  private String describe() {
+    double seconds = Math.max(1E-3, (System.nanoTime() - startTime) / 1E9);
+    long generatedCount = generated.sum();
+    long emittedCount = emitted.sum();
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%s: %d sentence(s) in %s (%.0f/s)",
+                            name, emittedCount, formatSeconds(seconds), emittedCount / seconds));
+
+    if (generatedCount > 0) {
+      sb.append(String.format(", %.1f%% duplicates rejected",
+                              100.0 * Math.max(0, generatedCount - emittedCount) / generatedCount));
+    }
+
+    if (total > 0) {
+      sb.append(String.format(", %.1f%% of an estimated %.0f",
+                              100.0 * generatedCount / total, total));
+      if ((generatedCount > 0) && (generatedCount < total)) {
+        double left = (total - generatedCount) * seconds / generatedCount;
+        sb.append(String.format(", %s left", formatSeconds(left)));
+      }
+    }
+
+    return sb.toString();
+  }
+
+  private static String formatSeconds(double seconds) {
+    long s = (long) Math.min(seconds, Long.MAX_VALUE / 2);
+    return String.format("%d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+  }
+
+}  // class ProgressMonitor
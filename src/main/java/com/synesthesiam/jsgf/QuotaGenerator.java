@@ -0,0 +1,730 @@
+package com.synesthesiam.jsgf;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Generates a balanced dataset from a quota spec: a number of sentences per
+ * public rule, tag or tag value.
+ *
+ * The spec is a JSON object with "rules" (rule name to count) and/or "tags"
+ * (tag name to an object of value to count, or to one count spread evenly
+ * over all values of the tag). Each combination of a rule and tag values is
+ * a bucket, loaded as a grammar pruned to its sentences (see
+ * GrammarConstraints), whose distinct paths are counted up front.
+ *
+ * The counts of every level (the rules if given, then the tags in order)
+ * are exact. A level splits the nodes of the level above that have its tag;
+ * its counts must add up to the quotas of the first level those sentences
+ * come from. The table of (node above, value) counts is filled so that both
+ * its rows and its columns add up (see transport()), starting from the
+ * proportional split. A bucket never gets more sentences than it has paths;
+ * the rest goes to the other buckets of the same level where possible.
+ * Buckets are then generated in parallel by uniform sampling without
+ * replacement, so each stops exactly at its quota, and written in order.
+ * Quotas that can't be met are reported by run().
+ */
+class QuotaGenerator {
+  private static final Logger logger = Logger.getLogger(QuotaGenerator.class.getName());
+
+  // Most values of a tag with one count for all of them
+  private static final int MAX_TAG_VALUES = 1000;
+
+  private final CompiledGrammar compiled;
+  private final List<Level> levels = new ArrayList<>();
+  private final Node root = new Node(new GrammarConstraints(), "");
+
+  /**
+   * @throws IllegalStateException if the spec is invalid or names a rule or
+   *         tag the grammar doesn't have
+   */
+  public QuotaGenerator(CompiledGrammar compiled, Reader specReader) {
+    this.compiled = compiled;
+
+    JsonElement spec;
+    try {
+      spec = new JsonParser().parse(specReader);
+    } catch (JsonParseException ex) {
+      Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+      throw new IllegalStateException("Invalid quota file: " + cause.getMessage());
+    }
+
+    if (!spec.isJsonObject()) {
+      throw new IllegalStateException("Expected an object with \"rules\" and/or \"tags\" in the quota file");
+    }
+
+    JsonObject specObject = spec.getAsJsonObject();
+    for (Map.Entry<String, JsonElement> entry : specObject.entrySet()) {
+      if (!entry.getKey().equals("rules") && !entry.getKey().equals("tags")) {
+        throw new IllegalStateException(String.format(
+            "Unknown key \"%s\" in the quota file (expected \"rules\" or \"tags\")",
+            entry.getKey()));
+      }
+    }
+
+    // Rules always come first
+    if (specObject.has("rules")) {
+      Level rules = new Level(null);
+      for (Map.Entry<String, JsonElement> rule : objectOf(specObject, "rules").entrySet()) {
+        String ruleName = rule.getKey();
+        if (compiled.getGrammar().getRuleGrammar().getRule(ruleName) == null) {
+          throw new IllegalStateException(String.format("No rule named <%s>", ruleName));
+        }
+
+        rules.add(ruleName, countOf(rule.getValue(), "<" + ruleName + ">"));
+      }
+
+      levels.add(rules);
+    }
+
+    if (specObject.has("tags")) {
+      for (Map.Entry<String, JsonElement> tag : objectOf(specObject, "tags").entrySet()) {
+        Level values = new Level(tag.getKey());
+        if (tag.getValue().isJsonObject()) {
+          for (Map.Entry<String, JsonElement> value : tag.getValue().getAsJsonObject().entrySet()) {
+            values.add(value.getKey(), countOf(value.getValue(), values.describe(value.getKey())));
+          }
+        } else {
+          // Same weight for every value
+          values.total = countOf(tag.getValue(), "{" + tag.getKey() + "}");
+          for (String value : GrammarConstraints.findTagValues(
+                   compiled.getGrammar(), tag.getKey(), MAX_TAG_VALUES)) {
+            values.add(value, 1);
+          }
+
+          if (values.keys.isEmpty()) {
+            throw new IllegalStateException(String.format(
+                "No rule contains the tag {%s}", tag.getKey()));
+          }
+        }
+
+        levels.add(values);
+      }
+    }
+
+    if (levels.isEmpty()) {
+      throw new IllegalStateException("The quota file has no \"rules\" or \"tags\"");
+    }
+
+    for (Level level : levels) {
+      if (level.keys.isEmpty()) {
+        throw new IllegalStateException((level.tagName == null)
+            ? "No rules in the quota file"
+            : String.format("No values for the tag {%s} in the quota file", level.tagName));
+      }
+    }
+
+    addChildren(root, 0);
+  }
+
+  /**
+   * Allocates the quotas and generates the buckets with a number of threads.
+   * Sentences are post-processed in the threads and passed to the sink in
+   * bucket order.
+   *
+   * @return the number of sentences short of the quotas (0 if they were met
+   *         or a budget stopped generation)
+   * @throws IllegalStateException if a bucket has a * or + repetition that
+   *         the limits don't bound, or the counts of a tag don't add up
+   *         to the quotas above it
+   */
+  public long run(Random randomizer, int threads, Function<String, String> postProcess,
+                  Consumer<String> sink, ProgressMonitor progress) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      // Count the paths of every bucket
+      List<Node> buckets = new ArrayList<>();
+      collectBuckets(root, buckets);
+
+      List<Future<?>> loads = new ArrayList<>();
+      for (Node bucket : buckets) {
+        loads.add(executor.submit(() -> {
+          load(bucket);
+          return null;
+        }));
+      }
+
+      for (Future<?> load : loads) {
+        await(load);
+      }
+
+      sumCapacities(root);
+      long requested = allocate();
+
+      // Buckets may have been merged into the nodes above
+      buckets.clear();
+      collectBuckets(root, buckets);
+
+      long total = 0;
+      for (Node bucket : buckets) {
+        logger.fine(String.format("%s: %d of %d path(s)",
+                                  bucket.description, bucket.quota, bucket.capacity));
+        total += bucket.quota;
+      }
+
+      // Seeds are drawn in bucket order, so output doesn't depend on threads
+      progress.start(total);
+      List<Future<List<String>>> generated = new ArrayList<>();
+      for (Node bucket : buckets) {
+        long seed = randomizer.nextLong();
+        generated.add(executor.submit(() -> generate(bucket, seed, postProcess, progress)));
+      }
+
+      long written = 0;
+      for (int i = 0; i < buckets.size(); i++) {
+        List<String> sentences = await(generated.get(i));
+        for (String sentence : sentences) {
+          sink.accept(sentence);
+        }
+
+        written += sentences.size();
+
+        Node bucket = buckets.get(i);
+        if ((sentences.size() < bucket.quota) && !progress.isStopped()) {
+          // Several paths made the same sentence
+          logger.warning(String.format("Only %d distinct sentence(s) for %s (quota %d)",
+                                       sentences.size(), bucket.description, bucket.quota));
+        }
+      }
+
+      return progress.isStopped() ? 0 : Math.max(0, requested - written);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* One way to divide sentences: by rule (no tag name) or by tag value */
+  private static class Level {
+    final String tagName;
+    final List<String> keys = new ArrayList<>();
+    final List<Long> counts = new ArrayList<>();
+
+    // Split between the keys by weight if set (a tag with one count)
+    long total = -1;
+
+    Level(String tagName) {
+      this.tagName = tagName;
+    }
+
+    void add(String key, long count) {
+      keys.add(key);
+      counts.add(count);
+    }
+
+    String describe(String key) {
+      return (tagName == null) ? ("<" + key + ">") : ("{" + tagName + "}=" + key);
+    }
+
+    GrammarConstraints constrain(GrammarConstraints constraints, String key) {
+      GrammarConstraints keyConstraints = new GrammarConstraints();
+      if (tagName == null) {
+        keyConstraints.setRule(key);
+      } else {
+        keyConstraints.addTagValue(tagName, key);
+      }
+
+      return constraints.and(keyConstraints);
+    }
+  }
+
+  /*
+   * The sentences that satisfy some constraints, split by the keys of the
+   * next level. Nodes without children are the buckets that are generated.
+   */
+  private static class Node {
+    final GrammarConstraints constraints;
+    final String description;
+    final List<Node> children = new ArrayList<>();
+
+    // Node of the first level this one is under (itself on the first level)
+    Node top = null;
+
+    // Sentences the spec asks for (first level only)
+    long requested = 0;
+
+    UniformSampler sampler = null;  // null if there are no sentences
+    long capacity = 0;              // paths, of all children if there are any
+    long quota = 0;
+
+    Node(GrammarConstraints constraints, String description) {
+      this.constraints = constraints;
+      this.description = description;
+    }
+  }
+
+  private void addChildren(Node node, int level) {
+    if (level == levels.size()) {
+      return;
+    }
+
+    Level current = levels.get(level);
+    for (String key : current.keys) {
+      String description = current.describe(key);
+      Node child = new Node(current.constrain(node.constraints, key),
+                            node.description.isEmpty()
+                            ? description : (node.description + " " + description));
+
+      child.top = (node == root) ? child : node.top;
+      node.children.add(child);
+      addChildren(child, level + 1);
+    }
+  }
+
+  private static void collectBuckets(Node node, List<Node> buckets) {
+    if (node.children.isEmpty()) {
+      buckets.add(node);
+    }
+
+    for (Node child : node.children) {
+      collectBuckets(child, buckets);
+    }
+  }
+
+  private void load(Node node) throws IOException {
+    CompiledGrammar grammar;
+    try {
+      grammar = compiled.constrain(node.constraints);
+    } catch (IllegalStateException ex) {
+      logger.fine(String.format("%s: %s", node.description, ex.getMessage()));
+      return;
+    }
+
+    node.sampler = grammar.newUniformSampler();
+    node.capacity = node.sampler.getPathCount()
+        .min(BigInteger.valueOf(Long.MAX_VALUE)).longValue();
+  }
+
+  /* Sums the paths of the children up the tree */
+  private long sumCapacities(Node node) throws IOException {
+    if (node.children.isEmpty()) {
+      return node.capacity;
+    }
+
+    node.capacity = 0;
+    for (Node child : node.children) {
+      long capacity = sumCapacities(child);
+      node.capacity = (node.capacity > Long.MAX_VALUE - capacity)
+          ? Long.MAX_VALUE : (node.capacity + capacity);
+    }
+
+    if ((node.capacity == 0) && (node != root)) {
+      // None of the sentences has the tag, so they aren't split by it
+      node.children.clear();
+      load(node);
+    }
+
+    return node.capacity;
+  }
+
+  /*
+   * Sets the quota of every node level by level and returns the number of
+   * sentences the spec asks for.
+   */
+  private long allocate() {
+    Level first = levels.get(0);
+    int numKeys = first.keys.size();
+    long[] capacities = new long[numKeys];
+    long[] counts = new long[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      capacities[i] = root.children.get(i).capacity;
+      counts[i] = first.counts.get(i);
+    }
+
+    long requested = 0;
+    if (first.total < 0) {
+      // Exact quotas
+      for (int i = 0; i < numKeys; i++) {
+        Node child = root.children.get(i);
+        child.requested = counts[i];
+        child.quota = Math.min(counts[i], capacities[i]);
+        requested += counts[i];
+        if (child.quota < counts[i]) {
+          logger.warning(String.format("Only %d sentence(s) for %s (quota %d)",
+                                       capacities[i], child.description, counts[i]));
+        }
+      }
+    } else {
+      long[] targets = split(first.total, counts, capacities);
+      long allocated = 0;
+      for (int i = 0; i < numKeys; i++) {
+        Node child = root.children.get(i);
+        child.requested = targets[i];
+        child.quota = targets[i];
+        allocated += targets[i];
+      }
+
+      requested = first.total;
+      if (allocated < first.total) {
+        logger.warning(String.format("Only %d sentence(s) for {%s} (quota %d)",
+                                     allocated, first.tagName, first.total));
+      }
+    }
+
+    List<Node> nodes = root.children;
+    for (int level = 1; level < levels.size(); level++) {
+      // Nodes without children don't have the tag and keep their quota
+      List<Node> rows = new ArrayList<>();
+      for (Node node : nodes) {
+        if (!node.children.isEmpty()) {
+          rows.add(node);
+        }
+      }
+
+      if (!rows.isEmpty()) {
+        allocateLevel(levels.get(level), rows);
+      }
+
+      List<Node> children = new ArrayList<>();
+      for (Node row : rows) {
+        children.addAll(row.children);
+      }
+
+      nodes = children;
+    }
+
+    return requested;
+  }
+
+  /* Divides the quotas of the nodes above a tag between its values */
+  private void allocateLevel(Level current, List<Node> rows) {
+    int numRows = rows.size();
+    int numKeys = current.keys.size();
+
+    long[] rowTotals = new long[numRows];
+    long[][] capacities = new long[numRows][numKeys];
+    long[] columnCapacities = new long[numKeys];
+    for (int i = 0; i < numRows; i++) {
+      rowTotals[i] = rows.get(i).quota;
+      for (int j = 0; j < numKeys; j++) {
+        capacities[i][j] = rows.get(i).children.get(j).capacity;
+        columnCapacities[j] = (columnCapacities[j] > Long.MAX_VALUE - capacities[i][j])
+            ? Long.MAX_VALUE : (columnCapacities[j] + capacities[i][j]);
+      }
+    }
+
+    // The counts of a tag are for the sentences that have it, so they have
+    // to add up to the quotas those sentences come from
+    Set<Node> tops = new LinkedHashSet<>();
+    for (Node row : rows) {
+      tops.add(row.top);
+    }
+
+    long requested = 0;
+    List<String> topDescriptions = new ArrayList<>();
+    for (Node top : tops) {
+      requested += top.requested;
+      topDescriptions.add(top.description);
+    }
+
+    long total = 0;
+    long[] counts = new long[numKeys];
+    for (int j = 0; j < numKeys; j++) {
+      counts[j] = current.counts.get(j);
+      total += counts[j];
+    }
+
+    if (current.total >= 0) {
+      total = current.total;
+    }
+
+    if (total != requested) {
+      throw new IllegalStateException(String.format(
+          "The counts for {%s} add up to %d, but the quotas of the sentences with the tag (%s) add up to %d",
+          current.tagName, total, String.join(", ", topDescriptions), requested));
+    }
+
+    long[] columnTotals = (current.total >= 0)
+        ? split(current.total, counts, columnCapacities) : counts;
+
+    long[][] table = transport(rowTotals, columnTotals, capacities);
+
+    long[] columnSums = new long[numKeys];
+    for (int i = 0; i < numRows; i++) {
+      for (int j = 0; j < numKeys; j++) {
+        rows.get(i).children.get(j).quota = table[i][j];
+        columnSums[j] += table[i][j];
+      }
+    }
+
+    long allocated = 0;
+    for (int j = 0; j < numKeys; j++) {
+      allocated += columnSums[j];
+      if ((current.total < 0) && (columnSums[j] < counts[j])) {
+        logger.warning(String.format("Only %d sentence(s) for %s (quota %d)",
+                                     columnSums[j], current.describe(current.keys.get(j)),
+                                     counts[j]));
+      }
+    }
+
+    if ((current.total >= 0) && (allocated < total)) {
+      logger.warning(String.format("Only %d sentence(s) for {%s} (quota %d)",
+                                   allocated, current.tagName, total));
+    }
+  }
+
+  /**
+   * Fills a table of counts whose rows add up to the row totals and whose
+   * columns add up to the column totals, without going over the capacity of
+   * any cell. The table starts as the proportional split rounded down; the
+   * rest is placed along augmenting paths (max flow), which may move counts
+   * that were already placed, so the totals are met whenever the capacities
+   * allow it.
+   */
+  static long[][] transport(long[] rowTotals, long[] columnTotals, long[][] capacities) {
+    int numRows = rowTotals.length;
+    int numColumns = columnTotals.length;
+    long[][] table = new long[numRows][numColumns];
+    long[] rowsLeft = rowTotals.clone();
+    long[] columnsLeft = columnTotals.clone();
+
+    long total = 0;
+    for (long columnTotal : columnTotals) {
+      total += columnTotal;
+    }
+
+    if (total > 0) {
+      for (int i = 0; i < numRows; i++) {
+        for (int j = 0; j < numColumns; j++) {
+          long share = (long) Math.floor((double) rowTotals[i] * columnTotals[j] / total);
+          table[i][j] = Math.min(Math.min(share, capacities[i][j]),
+                                 Math.min(rowsLeft[i], columnsLeft[j]));
+          rowsLeft[i] -= table[i][j];
+          columnsLeft[j] -= table[i][j];
+        }
+      }
+    }
+
+    // Breadth-first search from the rows with counts left. A row reaches a
+    // column through a cell with room, a column reaches a row through a cell
+    // with a count that can move. The path ends at a column with count left.
+    int[] rowFrom = new int[numRows];
+    int[] columnFrom = new int[numColumns];
+    while (true) {
+      Arrays.fill(rowFrom, -2);
+      Arrays.fill(columnFrom, -1);
+      Deque<Integer> queue = new ArrayDeque<>();
+      for (int i = 0; i < numRows; i++) {
+        if (rowsLeft[i] > 0) {
+          rowFrom[i] = -1;
+          queue.add(i);
+        }
+      }
+
+      int end = -1;
+      while (!queue.isEmpty() && (end < 0)) {
+        int i = queue.poll();
+        for (int j = 0; (j < numColumns) && (end < 0); j++) {
+          if ((columnFrom[j] >= 0) || (table[i][j] >= capacities[i][j])) {
+            continue;
+          }
+
+          columnFrom[j] = i;
+          if (columnsLeft[j] > 0) {
+            end = j;
+            break;
+          }
+
+          for (int k = 0; k < numRows; k++) {
+            if ((rowFrom[k] == -2) && (table[k][j] > 0)) {
+              rowFrom[k] = j;
+              queue.add(k);
+            }
+          }
+        }
+      }
+
+      if (end < 0) {
+        return table;
+      }
+
+      // Bottleneck along the path, then move it
+      long amount = columnsLeft[end];
+      int j = end;
+      int i = columnFrom[j];
+      while (true) {
+        amount = Math.min(amount, capacities[i][j] - table[i][j]);
+        if (rowFrom[i] < 0) {
+          amount = Math.min(amount, rowsLeft[i]);
+          break;
+        }
+
+        j = rowFrom[i];
+        amount = Math.min(amount, table[i][j]);
+        i = columnFrom[j];
+      }
+
+      j = end;
+      i = columnFrom[j];
+      columnsLeft[end] -= amount;
+      while (true) {
+        table[i][j] += amount;
+        if (rowFrom[i] < 0) {
+          rowsLeft[i] -= amount;
+          break;
+        }
+
+        j = rowFrom[i];
+        table[i][j] -= amount;
+        i = columnFrom[j];
+      }
+    }
+  }
+
+  /**
+   * Splits a total in proportion to the weights without giving anyone more
+   * than its capacity. Shares that would be too big are set to the capacity
+   * and the rest is split again between the others, until all fit; the
+   * shares are then rounded by largest remainder.
+   */
+  private static long[] split(long total, long[] weights, long[] capacities) {
+    int n = weights.length;
+    long[] shares = new long[n];
+    boolean[] full = new boolean[n];
+
+    double[] exact = new double[n];
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+
+      long left = total;
+      double weightSum = 0;
+      for (int i = 0; i < n; i++) {
+        if (full[i]) {
+          left -= shares[i];
+        } else {
+          weightSum += weights[i];
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        if (!full[i]) {
+          exact[i] = (weightSum > 0) ? (Math.max(0, left) * (weights[i] / weightSum)) : 0;
+          if (exact[i] >= capacities[i]) {
+            shares[i] = capacities[i];
+            full[i] = true;
+            changed = true;
+          }
+        }
+      }
+    }
+
+    long given = 0;
+    for (int i = 0; i < n; i++) {
+      if (!full[i]) {
+        shares[i] = (long) exact[i];
+      }
+
+      given += shares[i];
+    }
+
+    // Largest remainders first (the first one on a tie)
+    for (; given < total; given++) {
+      int best = -1;
+      for (int i = 0; i < n; i++) {
+        if (!full[i] && (exact[i] > shares[i])
+            && ((best < 0) || ((exact[i] - shares[i]) > (exact[best] - shares[best])))) {
+          best = i;
+        }
+      }
+
+      if (best < 0) {
+        break;
+      }
+
+      shares[best]++;
+      full[best] = true;
+    }
+
+    return shares;
+  }
+
+  private static List<String> generate(Node bucket, long seed,
+                                       Function<String, String> postProcess,
+                                       ProgressMonitor progress) {
+    List<String> sentences = new ArrayList<>();
+    if (bucket.quota == 0) {
+      return sentences;
+    }
+
+    Set<String> usedSentences = new HashSet<>();
+    Iterator<String> paths = bucket.sampler.unique(new Random(seed));
+    while ((sentences.size() < bucket.quota) && !progress.isStopped() && paths.hasNext()) {
+      String sentence = postProcess.apply(paths.next());
+      progress.generated();
+      if (usedSentences.add(sentence)) {
+        sentences.add(sentence);
+      } else {
+        Metrics.count(Metrics.Counter.DUPLICATES);
+      }
+    }
+
+    return sentences;
+  }
+
+  // --------------------------------------------------------------------------
+
+  private static JsonObject objectOf(JsonObject spec, String key) {
+    if (!spec.get(key).isJsonObject()) {
+      throw new IllegalStateException(String.format(
+          "Expected an object for \"%s\" in the quota file", key));
+    }
+
+    return spec.getAsJsonObject(key);
+  }
+
+  private static long countOf(JsonElement element, String description) {
+    if (!element.isJsonPrimitive() || !element.getAsJsonPrimitive().isNumber()
+        || (element.getAsDouble() < 0) || (element.getAsDouble() != element.getAsLong())) {
+      throw new IllegalStateException(String.format(
+          "Expected a count for %s in the quota file, got %s", description, element));
+    }
+
+    return element.getAsLong();
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) ex.getCause();
+      } else if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+
+      throw new IOException(ex.getCause());
+    }
+  }
+
+}  // class QuotaGenerator
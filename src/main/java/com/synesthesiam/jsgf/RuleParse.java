@@ -27,8 +27,11 @@ package com.synesthesiam.jsgf;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.ToIntFunction;
 
 import edu.cmu.sphinx.jsgf.rule.JSGFRule;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleAlternatives;
@@ -36,66 +39,355 @@ import edu.cmu.sphinx.jsgf.rule.JSGFRuleCount;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleName;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleSequence;
 import edu.cmu.sphinx.jsgf.rule.JSGFRuleTag;
+import edu.cmu.sphinx.jsgf.rule.JSGFRuleToken;
 
 //Comp. 2.0.6
 
-class RuleParse extends JSGFRule {
+public class RuleParse extends JSGFRule {
+	/* kinds of spans */
+	static final int RULE = 0;
+
+	static final int TAG = 1;
+
+	static final int TOKEN = 2;
+
+	static final int SEQUENCE = 3;
+
+	/*
+	 * ints per span: kind, id of the rule name, tag or token text (-1 for a
+	 * sequence), first input token, input token after the last one, and offset
+	 * of the next span that is not inside this one
+	 */
+	static final int SPAN_SIZE = 5;
+
 	private JSGFRuleName ruleReference;
 
-	private JSGFRule parse;
+	private volatile JSGFRule parse;
+
+	private Tokenization tokenization;
+
+	/*
+	 * a parse of RuleParser is a flat array of spans in pre-order (rule
+	 * references, tags, sequences and tokens) from spansStart up to spansEnd, with the
+	 * symbols that their ids refer to; it is null for a parse tree built by a
+	 * caller
+	 */
+	private int spans[];
+
+	private String symbols[];
+
+	private int spansStart;
+
+	private int spansEnd;
 
 	public RuleParse(JSGFRuleName ruleReference, JSGFRule parse) {
 		this.ruleReference = ruleReference;
 		this.parse = parse;
 	}
 
-	private void addTags(List<String> tags, JSGFRule component) {
-		if (component instanceof JSGFRuleTag) {
-			final JSGFRuleTag tag = (JSGFRuleTag) component;
-			final String tagName = tag.getTag();
-			tags.add(tagName);
-		} else if (component instanceof JSGFRuleAlternatives) {
-			final JSGFRuleAlternatives alternatives = (JSGFRuleAlternatives) component;
-			for (JSGFRule rule : alternatives.getRules()) {
-				addTags(tags, rule);
-			}
-		} else if (component instanceof JSGFRuleCount) {
-			final JSGFRuleCount count = (JSGFRuleCount) component;
-			final JSGFRule actComponent = count.getRule();
-			addTags(tags, actComponent);
-		} else if (component instanceof RuleParse) {
-			final RuleParse parse = (RuleParse) component;
-			final JSGFRule actComponent = parse.getParse();
-			addTags(tags, actComponent);
-		} else if (component instanceof JSGFRuleSequence) {
-			final JSGFRuleSequence sequence = (JSGFRuleSequence) component;
-			for (JSGFRule rule : sequence.getRules()) {
-				addTags(tags, rule);
-			}
-		}
+	/*
+	 * a parse of RuleParser, whose rule tree is only built if it is asked for
+	 */
+	RuleParse(JSGFRuleName ruleReference, int spans[], String symbols[]) {
+		this(ruleReference, spans, symbols, 0, spans.length, null);
+	}
+
+	/*
+	 * a complete parse of a tokenized text, whose tokens and tags know the
+	 * characters of the text they cover
+	 */
+	RuleParse(RuleParse parse, Tokenization tokenization) {
+		this(parse.ruleReference, parse.spans, parse.symbols, parse.spansStart, parse.spansEnd, tokenization);
+	}
+
+	RuleParse(JSGFRuleName ruleReference, int spans[], String symbols[], int spansStart, int spansEnd,
+			Tokenization tokenization) {
+		this.ruleReference = ruleReference;
+		this.spans = spans;
+		this.symbols = symbols;
+		this.spansStart = spansStart;
+		this.spansEnd = spansEnd;
+		this.tokenization = tokenization;
 	}
 
+	/**
+	 * Gets the parse as a rule tree (built the first time it is asked for).
+	 */
 	public JSGFRule getParse() {
-		return parse;
+		JSGFRule tree = parse;
+		if (tree == null && spans != null) {
+			// threads that get here at the same time build equal trees
+			tree = makeTree(spansStart, spansEnd);
+			parse = tree;
+		}
+		return tree;
 	}
 
 	public JSGFRuleName getRuleReference() {
 		return ruleReference;
 	}
 
+	/**
+	 * Gets the parsed text (null if this is not a complete parse).
+	 */
+	public CharSequence getText() {
+		return tokenization == null ? null : tokenization.getText();
+	}
+
+	/**
+	 * Gets the offset in the parsed text of the first character covered by a
+	 * token, tag or rule reference of this parse, or -1 if the component has
+	 * no span. A component that covers no tokens starts (and ends) where the
+	 * next token starts.
+	 */
+	public int getStart(JSGFRule component) {
+		if (tokenization == null || !(component instanceof RuleParser.TokenSpan)) {
+			return -1;
+		}
+		return getOffset(((RuleParser.TokenSpan) component).getStartToken());
+	}
+
+	/**
+	 * Gets the offset in the parsed text after the last character covered by
+	 * a token, tag or rule reference of this parse, or -1 if the component has
+	 * no span.
+	 */
+	public int getEnd(JSGFRule component) {
+		if (tokenization == null || !(component instanceof RuleParser.TokenSpan)) {
+			return -1;
+		}
+		RuleParser.TokenSpan span = (RuleParser.TokenSpan) component;
+		if (span.getEndToken() == span.getStartToken()) {
+			return getOffset(span.getStartToken());
+		}
+		return tokenization.getEnd(span.getEndToken() - 1);
+	}
+
+	private int getOffset(int token) {
+		if (token < tokenization.size()) {
+			return tokenization.getStart(token);
+		}
+		return tokenization.getText().length();
+	}
+
+	/**
+	 * Gets the names of the tags of this parse in order, without the tags
+	 * inside other tags.
+	 */
 	public List<String> getTags() {
-		if (parse == null) {
+		Spans s = getSpans();
+		if (s == null) {
 			return null;
 		}
 
 		final List<String> parseTags = new ArrayList<>();
-		addTags(parseTags, parse);
+		for (int span = s.start; span < s.end;) {
+			if (s.spans[span] == TAG) {
+				parseTags.add(s.symbols[s.spans[span + 1]]);
+				span = s.spans[span + 4];
+			} else {
+				span += SPAN_SIZE;
+			}
+		}
 		return Collections.unmodifiableList(parseTags);
 	}
 
+	/**
+	 * Makes the sentence of this parse (in the spelling of the grammar) with
+	 * the text of each tag replaced by tagFormat(tag name, tagged text). Tags
+	 * inside other tags are part of the tagged text.
+	 */
+	public String makeTaggedSentence(BiFunction<String, String, String> tagFormat) {
+		Spans s = getSpans();
+		if (s == null) {
+			return "";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		s.appendTagged(s.start, s.end, sb, tagFormat);
+		return sb.toString().trim();
+	}
+
+	/*
+	 * the (tag id, first token, token after the last one) of every tag in
+	 * pre-order, tags inside other tags included
+	 */
+	int[] getTagSpans(ToIntFunction<String> tagIds) {
+		Spans s = getSpans();
+		if (s == null) {
+			return new int[0];
+		}
+
+		int tagSpans[] = new int[12];
+		int size = 0;
+		for (int span = s.start; span < s.end; span += SPAN_SIZE) {
+			if (s.spans[span] == TAG) {
+				if (size + 3 > tagSpans.length) {
+					tagSpans = Arrays.copyOf(tagSpans, tagSpans.length * 2);
+				}
+				tagSpans[size++] = tagIds.applyAsInt(s.symbols[s.spans[span + 1]]);
+				tagSpans[size++] = s.spans[span + 2];
+				tagSpans[size++] = s.spans[span + 3];
+			}
+		}
+		return Arrays.copyOf(tagSpans, size);
+	}
+
+	/*
+	 * the spans of this parse, converted from the rule tree if a caller built
+	 * it (null if there is no parse)
+	 */
+	private Spans getSpans() {
+		if (spans != null) {
+			return new Spans(spans, symbols, spansStart, spansEnd);
+		}
+		if (parse == null) {
+			return null;
+		}
+
+		SpanBuilder builder = new SpanBuilder();
+		builder.add(parse);
+		return new Spans(builder.spans, builder.symbols.toArray(new String[0]), 0, builder.size);
+	}
+
+	private JSGFRule makeTree(int from, int to) {
+		List<JSGFRule> rules = new ArrayList<>();
+		for (int span = from; span < to; span = spans[span + 4]) {
+			rules.add(makeRule(span));
+		}
+		if (rules.isEmpty()) {
+			return JSGFRuleName.NULL;
+		}
+		return rules.size() == 1 ? rules.get(0) : new JSGFRuleSequence(rules);
+	}
+
+	private JSGFRule makeRule(int span) {
+		String symbol = spans[span + 1] < 0 ? null : symbols[spans[span + 1]];
+		int start = spans[span + 2];
+		int end = spans[span + 3];
+		switch (spans[span]) {
+		case SEQUENCE:
+			List<JSGFRule> rules = new ArrayList<>();
+			for (int child = span + SPAN_SIZE; child < spans[span + 4]; child = spans[child + 4]) {
+				rules.add(makeRule(child));
+			}
+			return new JSGFRuleSequence(rules);
+		case RULE:
+			return new RuleParser.ParsedRuleParse(new JSGFRuleName(symbol), spans, symbols, span + SPAN_SIZE,
+					spans[span + 4], tokenization, start, end);
+		case TAG:
+			return new RuleParser.ParsedRuleTag(makeTree(span + SPAN_SIZE, spans[span + 4]), symbol, start, end);
+		default:
+			return new RuleParser.ParsedRuleToken(symbol, start, end);
+		}
+	}
+
+	/* a range of spans and their symbols */
+	private static class Spans {
+		final int spans[];
+
+		final String symbols[];
+
+		final int start;
+
+		final int end;
+
+		Spans(int spans[], String symbols[], int start, int end) {
+			this.spans = spans;
+			this.symbols = symbols;
+			this.start = start;
+			this.end = end;
+		}
+
+		void appendTagged(int from, int to, StringBuilder sb, BiFunction<String, String, String> tagFormat) {
+			for (int span = from; span < to;) {
+				int next = spans[span + 4];
+				if (spans[span] == TOKEN) {
+					sb.append(symbols[spans[span + 1]]).append(' ');
+				} else if (spans[span] == TAG) {
+					StringBuilder tagSB = new StringBuilder();
+					appendTagged(span + SPAN_SIZE, next, tagSB, null);
+					String taggedText = tagSB.toString().trim();
+					if (tagFormat != null) {
+						sb.append(tagFormat.apply(symbols[spans[span + 1]], taggedText)).append(' ');
+					} else {
+						sb.append(taggedText);
+					}
+					span = next;
+					continue;
+				}
+				span += SPAN_SIZE;
+			}
+		}
+	}
+
+	/* spans of a rule tree, counting tokens by their words */
+	private static class SpanBuilder {
+		int spans[] = new int[8 * SPAN_SIZE];
+
+		int size = 0;
+
+		List<String> symbols = new ArrayList<>();
+
+		int tokens = 0;
+
+		void add(JSGFRule component) {
+			if (component instanceof RuleParse) {
+				final RuleParse parse = (RuleParse) component;
+				final JSGFRuleName reference = parse.getRuleReference();
+				int span = open(RULE, reference == null ? "" : reference.getRuleName());
+				add(parse.getParse());
+				close(span);
+			} else if (component instanceof JSGFRuleTag) {
+				final JSGFRuleTag tag = (JSGFRuleTag) component;
+				int span = open(TAG, tag.getTag());
+				add(tag.getRule());
+				close(span);
+			} else if (component instanceof JSGFRuleAlternatives) {
+				for (JSGFRule rule : ((JSGFRuleAlternatives) component).getRules()) {
+					add(rule);
+				}
+			} else if (component instanceof JSGFRuleCount) {
+				add(((JSGFRuleCount) component).getRule());
+			} else if (component instanceof JSGFRuleSequence) {
+				for (JSGFRule rule : ((JSGFRuleSequence) component).getRules()) {
+					add(rule);
+				}
+			} else if (component instanceof JSGFRuleToken) {
+				final String text = ((JSGFRuleToken) component).getText();
+				int span = open(TOKEN, text);
+				for (String word : text.trim().split(" +")) {
+					if (!word.isEmpty()) {
+						tokens++;
+					}
+				}
+				close(span);
+			}
+		}
+
+		private int open(int kind, String symbol) {
+			if (size + SPAN_SIZE > spans.length) {
+				spans = Arrays.copyOf(spans, spans.length * 2);
+			}
+			int span = size;
+			spans[span] = kind;
+			spans[span + 1] = symbols.size();
+			spans[span + 2] = tokens;
+			symbols.add(symbol);
+			size += SPAN_SIZE;
+			return span;
+		}
+
+		private void close(int span) {
+			spans[span + 3] = tokens;
+			spans[span + 4] = size;
+		}
+	}
+
 	@Override
 	public String toString() {
-		if (parse == null) {
+		JSGFRule tree = getParse();
+		if (tree == null) {
 			return "";
 		}
 
@@ -105,7 +397,7 @@ class RuleParse extends JSGFRule {
 			str.append(ruleReference);
 		}
 
-		str.append(parse.toString());
+		str.append(tree.toString());
 
 		if (ruleReference != null) {
 			str.append("</ruleref>");
@@ -6,14 +6,18 @@
  * WARRANTIES.
  */
 
+
 package com.synesthesiam.jsgf;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.Map;
 
 import edu.cmu.sphinx.jsgf.JSGFGrammar;
 import edu.cmu.sphinx.jsgf.JSGFRuleGrammar;
@@ -28,133 +32,247 @@ import edu.cmu.sphinx.jsgf.rule.JSGFRuleToken;
 /**
  * Implementation of the parse method(s) on
  * javax.speech.recognition.RuleGrammar.
+ *
+ * Partial parses are records in an int arena rather than rule objects, and a
+ * complete parse is flattened into spans (see RuleParse), whose rule tree is
+ * only built if it is asked for. The arena and the other buffers belong to
+ * one parser per thread and are reused by every parse on that thread.
  */
 class RuleParser {
 
-	class ParsedEmptyToken extends ParsedRuleToken {
+	/* extension of RuleParse with tokenSpan interface */
+	static class ParsedRuleParse extends RuleParse implements TokenSpan {
 
-		public ParsedEmptyToken(int pos) {
-			super("EMPTY", pos);
-		}
-	}
+		int start;
 
-	/* extension of RuleParse with tokenPos interface */
-	class ParsedRuleParse extends RuleParse implements TokenPos {
+		int end;
 
-		int pos;
+		ParsedRuleParse(JSGFRuleName rn, int spans[], String symbols[], int spansStart, int spansEnd,
+				Tokenization tokenization, int start, int end) {
+			super(rn, spans, symbols, spansStart, spansEnd, tokenization);
+			this.start = start;
+			this.end = end;
+		}
 
-		public ParsedRuleParse(JSGFRuleName rn, JSGFRule r, int pos) throws IllegalArgumentException {
-			super(rn, r);
-			this.pos = pos;
+		@Override
+		public int getStartToken() {
+			return start;
 		}
 
 		@Override
-		public int getPos() {
-			return pos;
+		public int getEndToken() {
+			return end;
 		}
 	}
 
-	/* extension of RuleSequence with tokenPos interface */
-	class ParsedRuleSequence extends JSGFRuleSequence implements TokenPos {
+	/* extension of RuleTag with tokenSpan interface */
+	static class ParsedRuleTag extends JSGFRuleTag implements TokenSpan {
+
+		int start;
+
+		int end;
 
-		int pos;
+		public ParsedRuleTag(JSGFRule r, String x, int start, int end) {
+			super(r, x);
+			this.start = start;
+			this.end = end;
+		}
 
-		public ParsedRuleSequence(List<JSGFRule> rules, int pos) {
-			super(rules);
-			this.pos = pos;
+		@Override
+		public int getStartToken() {
+			return start;
 		}
 
 		@Override
-		public int getPos() {
-			return pos;
+		public int getEndToken() {
+			return end;
 		}
 
 	}
 
-	/* extension of RuleTag with tokenPos interface */
-	class ParsedRuleTag extends JSGFRuleTag implements TokenPos {
+	/* extension of RuleToken with tokenSpan interface */
+	static class ParsedRuleToken extends JSGFRuleToken implements TokenSpan {
 
-		int pos;
+		int start;
 
-		public ParsedRuleTag(JSGFRule r, String x, int pos) {
-			super(r, x);
-			this.pos = pos;
+		int end;
+
+		public ParsedRuleToken(String x, int start, int end) {
+			super(x);
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int getStartToken() {
+			return start;
 		}
 
 		@Override
-		public int getPos() {
-			return pos;
+		public int getEndToken() {
+			return end;
 		}
 
 	}
 
-	/* extension of RuleToken with tokenPos interface */
-	class ParsedRuleToken extends JSGFRuleToken implements TokenPos {
+	/*
+	 * interface for the input tokens that a parsed token, tag or rule covers,
+	 * from the index of the first token up to (excluding) the end index. The
+	 * indexes are trie depths, so they are the same for every sentence that
+	 * shares the parse.
+	 */
+	interface TokenSpan {
+		public int getStartToken();
+
+		public int getEndToken();
+	}
+
+	/* record of a partial parse that matched nothing */
+	private static final int EMPTY = -1;
 
-		int pos;
+	/*
+	 * ints per arena record: kind (of RuleParse spans), symbol, start and end
+	 * token, and the record inside it; a sequence is a list of records with
+	 * the first one instead of the symbol and the rest inside it
+	 */
+	private static final int RECORD_SIZE = 5;
 
-		public ParsedRuleToken(String x, int pos) {
-			super(x);
-			this.pos = pos;
-		}
+	/* buffers that grew bigger than this (in ints) are not kept */
+	private static final int MAX_KEPT_SIZE = 1 << 16;
 
-		@Override
-		public int getPos() {
-			return pos;
-		}
+	private static final ThreadLocal<RuleParser> PARSERS = ThreadLocal.withInitial(RuleParser::new);
+
+	public static List<RuleParse> mparse(CharSequence text, JSGFGrammar jsgfGrammar, String ruleName) {
+		return mparse(new Tokenization(text), jsgfGrammar, ruleName, null, false);
+	}
 
+	public static List<RuleParse> mparse(String inputTokens[], JSGFGrammar jsgfGrammar, String ruleName) {
+		return mparse(inputTokens, jsgfGrammar, ruleName, null);
 	}
 
 	/*
-	 * interface for keeping track of where a token occurs in the tokenized
-	 * input string
+	 * parse with a FIRST set index of the grammar so that only the rules and
+	 * alternatives that can start with the next token are tried
 	 */
-	interface TokenPos {
-		public int getPos();
+	public static List<RuleParse> mparse(String inputTokens[], JSGFGrammar jsgfGrammar, String ruleName,
+			FirstSetIndex index) {
+		return mparse(new Tokenization(String.join(" ", inputTokens)), jsgfGrammar, ruleName, index, false);
 	}
 
-	public static List<RuleParse> mparse(String text, JSGFGrammar jsgfGrammar, String ruleName) {
-		String inputTokens[] = tokenize(text);
-		return mparse(inputTokens, jsgfGrammar, ruleName);
+	private static List<RuleParse> mparse(Tokenization tokenization, JSGFGrammar jsgfGrammar, String ruleName,
+			FirstSetIndex index, boolean firstPublic) {
+		TokenTrie input = new TokenTrie();
+		BitSet ends = new BitSet();
+		int end = input.add(tokenization.getTokens());
+		ends.set(end);
+		return withSpans(mparse(input, ends, jsgfGrammar, ruleName, index, firstPublic).get(end), tokenization);
 	}
 
-	public static List<RuleParse> mparse(String inputTokens[], JSGFGrammar jsgfGrammar, String ruleName) {
-		RuleParser rp = new RuleParser();
-		rp.jsgfGrammar = jsgfGrammar;
-		List<RuleParse> res = new ArrayList<RuleParse>();
-		JSGFRuleGrammar grammar = jsgfGrammar.getRuleGrammar();
-		Set<String> rNames = ruleName == null ? grammar.getRuleNames() : new HashSet<>(Arrays.asList(ruleName));
-		for (String rName : rNames) {
-			if (ruleName == null && !grammar.isEnabled(rName)) {
-				continue;
-			}
-			JSGFRule startRule = grammar.getRule(rName);
-			if (startRule == null) {
-				throw new IllegalStateException("BAD RULENAME " + rName);
+	/*
+	 * parse every sentence of a token trie in one pass, sharing the work on
+	 * common prefixes, and return the complete parses that end at one of the
+	 * given trie nodes by node (only the first one of a public rule if
+	 * firstPublic is set, since the others would be flattened for nothing)
+	 */
+	private static Map<Integer, List<RuleParse>> mparse(TokenTrie input, BitSet ends, JSGFGrammar jsgfGrammar,
+			String ruleName, FirstSetIndex index, boolean firstPublic) {
+		RuleParser rp = PARSERS.get();
+		rp.reset(jsgfGrammar, index);
+		try {
+			Map<Integer, List<RuleParse>> res = new HashMap<Integer, List<RuleParse>>();
+			JSGFRuleGrammar grammar = jsgfGrammar.getRuleGrammar();
+			Collection<String> rNames = ruleName == null ? grammar.getRuleNames()
+					: new HashSet<>(Arrays.asList(ruleName));
+			if (ruleName == null && index != null) {
+				rNames = index.viableRuleNames(input);
 			}
-			List<TokenPos> p = rp.parse(grammar, startRule, inputTokens, 0);
-			if (p != null && !p.isEmpty()) {
-				for (TokenPos tp : p) {
-					if (tp.getPos() == inputTokens.length) {
-						res.add(new RuleParse(new JSGFRuleName(rName), (JSGFRule) tp));
+			for (String rName : rNames) {
+				if (ruleName == null && !grammar.isEnabled(rName)) {
+					continue;
+				}
+				JSGFRule startRule = grammar.getRule(rName);
+				if (startRule == null) {
+					throw new IllegalStateException("BAD RULENAME " + rName);
+				}
+				rp.arenaSize = 0;
+				rp.resultsSize = 0;
+				int p = rp.parse(grammar, startRule, input, TokenTrie.ROOT);
+				boolean keep = !firstPublic || grammar.isRulePublic(rName);
+				for (int i = 0; i < 2 * p && keep; i += 2) {
+					int pos = rp.results[i];
+					if (!ends.get(pos) || (firstPublic && res.containsKey(pos))) {
+						continue;
+					}
+					List<RuleParse> parses = res.get(pos);
+					if (parses == null) {
+						parses = new ArrayList<RuleParse>();
+						res.put(pos, parses);
 					}
+					parses.add(new RuleParse(new JSGFRuleName(rName), rp.flatten(rp.results[i + 1]), rp.symbols));
 				}
 			}
+			return res;
+		} finally {
+			rp.release();
 		}
-		return res.isEmpty() ? null : res;
 	}
 
 	/*
 	 * parse a text string against a particular rule from a particular grammar
 	 * returning a RuleParse data structure is successful and null otherwise
 	 */
-	public static RuleParse parse(String text, JSGFGrammar jsgfGrammar, String ruleName) {
-		String inputTokens[] = tokenize(text);
-		return parse(inputTokens, jsgfGrammar, ruleName);
+	public static RuleParse parse(CharSequence text, JSGFGrammar jsgfGrammar, String ruleName) {
+		return parse(text, jsgfGrammar, ruleName, null);
 	}
 
 	public static RuleParse parse(String inputTokens[], JSGFGrammar jsgfGrammar, String ruleName) {
-		List<RuleParse> list = mparse(inputTokens, jsgfGrammar, ruleName);
+		return parse(inputTokens, jsgfGrammar, ruleName, null);
+	}
+
+	public static RuleParse parse(CharSequence text, JSGFGrammar jsgfGrammar, String ruleName,
+			FirstSetIndex index) {
+		return firstPublic(mparse(new Tokenization(text), jsgfGrammar, ruleName, index, true), jsgfGrammar);
+	}
+
+	public static RuleParse parse(String inputTokens[], JSGFGrammar jsgfGrammar, String ruleName,
+			FirstSetIndex index) {
+		return firstPublic(mparse(new Tokenization(String.join(" ", inputTokens)), jsgfGrammar, ruleName, index,
+				true), jsgfGrammar);
+	}
+
+	/*
+	 * parse a group of text strings (e.g. the N-best hypotheses of a
+	 * recognizer) at once, returning a RuleParse or null for each of them
+	 */
+	public static List<RuleParse> parseAll(List<? extends CharSequence> texts, JSGFGrammar jsgfGrammar,
+			FirstSetIndex index) {
+		TokenTrie input = new TokenTrie();
+		BitSet allEnds = new BitSet();
+		Tokenization tokenizations[] = new Tokenization[texts.size()];
+		int ends[] = new int[texts.size()];
+		for (int i = 0; i < ends.length; i++) {
+			tokenizations[i] = new Tokenization(texts.get(i));
+			String inputTokens[] = tokenizations[i].getTokens();
+			// a "*" can stay at its position, which is only valid on its own
+			// branch of the trie, so such hypotheses are parsed separately
+			ends[i] = Arrays.asList(inputTokens).contains("*") ? TokenTrie.NONE : input.add(inputTokens);
+			if (ends[i] != TokenTrie.NONE) {
+				allEnds.set(ends[i]);
+			}
+		}
+		Map<Integer, List<RuleParse>> parses = mparse(input, allEnds, jsgfGrammar, null, index, true);
+		List<RuleParse> res = new ArrayList<RuleParse>(ends.length);
+		for (int i = 0; i < ends.length; i++) {
+			if (ends[i] == TokenTrie.NONE) {
+				res.add(firstPublic(mparse(tokenizations[i], jsgfGrammar, null, index, true), jsgfGrammar));
+			} else {
+				res.add(firstPublic(withSpans(parses.get(ends[i]), tokenizations[i]), jsgfGrammar));
+			}
+		}
+		return res;
+	}
+
+	private static RuleParse firstPublic(List<RuleParse> list, JSGFGrammar jsgfGrammar) {
 		if (list != null) {
 			for (RuleParse rp : list) {
 				if (jsgfGrammar.getRuleGrammar().isRulePublic(rp.getRuleReference().getRuleName())) {
@@ -166,46 +284,194 @@ class RuleParser {
 	}
 
 	/*
-	 * tokenize a string
+	 * give the complete parses of a sentence its character offsets
 	 */
-	static String[] tokenize(String text) {
-		StringTokenizer st = new StringTokenizer(text);
-		int size = st.countTokens();
-		String res[] = new String[size];
-		int i = 0;
-		while (st.hasMoreTokens()) {
-			res[i++] = st.nextToken().toLowerCase();
+	private static List<RuleParse> withSpans(List<RuleParse> list, Tokenization tokenization) {
+		if (list == null) {
+			return null;
+		}
+		List<RuleParse> res = new ArrayList<RuleParse>(list.size());
+		for (RuleParse rp : list) {
+			res.add(new RuleParse(rp, tokenization));
 		}
 		return res;
 	}
 
+	/*
+	 * tokenize a string (case-folded independently of the default locale)
+	 */
+	static String[] tokenize(CharSequence text) {
+		return new Tokenization(text).getTokens();
+	}
+
 	private JSGFGrammar jsgfGrammar;
 
+	private FirstSetIndex index;
+
+	/* partial parses as records of RECORD_SIZE ints, by offset */
+	private int arena[] = new int[1024];
+
+	private int arenaSize = 0;
+
 	/*
-	 * Parse routine called recursively while traversing the Rule structure in a
-	 * depth first manner. Returns a list of valid parses.
+	 * (trie node, record) pairs of the partial parses found so far; each
+	 * parse method adds its parses at the end and returns their number, or
+	 * -1 if the rule can't match here
+	 */
+	private int results[] = new int[256];
+
+	private int resultsSize = 0;
+
+	/* spans of the complete parse being flattened */
+	private int spans[] = new int[64];
+
+	private int spansSize = 0;
+
+	/*
+	 * rule names, tags and token texts of the spans by id; a full table is
+	 * copied to a bigger one, so parses can keep referring to the old one
+	 */
+	private String symbols[] = new String[64];
+
+	private int symbolCount = 0;
+
+	private Map<String, Integer> symbolIds = new HashMap<String, Integer>();
+
+	private Object symbolGrammar = null;
+
+	private void reset(JSGFGrammar jsgfGrammar, FirstSetIndex index) {
+		// symbol ids are only shared between parses of the same grammar
+		if (symbolGrammar != jsgfGrammar.getRuleGrammar()) {
+			symbols = new String[64];
+			symbolCount = 0;
+			symbolIds = new HashMap<String, Integer>();
+			symbolGrammar = jsgfGrammar.getRuleGrammar();
+		}
+		this.jsgfGrammar = jsgfGrammar;
+		this.index = index;
+		arenaSize = 0;
+		resultsSize = 0;
+	}
+
+	/* keep the buffers for the next parse unless this one made them huge */
+	private void release() {
+		jsgfGrammar = null;
+		index = null;
+		if (arena.length > MAX_KEPT_SIZE) {
+			arena = new int[1024];
+		}
+		if (results.length > MAX_KEPT_SIZE) {
+			results = new int[256];
+		}
+		if (spans.length > MAX_KEPT_SIZE) {
+			spans = new int[64];
+		}
+	}
+
+	private int newRecord(int kind, int symbol, int start, int end, int inner) {
+		if (arenaSize + RECORD_SIZE > arena.length) {
+			arena = Arrays.copyOf(arena, arena.length * 2);
+		}
+		int record = arenaSize;
+		arena[record] = kind;
+		arena[record + 1] = symbol;
+		arena[record + 2] = start;
+		arena[record + 3] = end;
+		arena[record + 4] = inner;
+		arenaSize += RECORD_SIZE;
+		return record;
+	}
+
+	/* a record in front of a sequence (or of no records) */
+	private int newSequence(int first, int rest) {
+		int end = rest == EMPTY ? arena[first + 3] : arena[rest + 3];
+		return newRecord(RuleParse.SEQUENCE, first, arena[first + 2], end, rest);
+	}
+
+	private void addResult(int pos, int record) {
+		if (resultsSize + 2 > results.length) {
+			results = Arrays.copyOf(results, results.length * 2);
+		}
+		results[resultsSize++] = pos;
+		results[resultsSize++] = record;
+	}
+
+	/* number of results added since base */
+	private int count(int base) {
+		return (resultsSize - base) / 2;
+	}
+
+	private int symbolId(String symbol) {
+		Integer id = symbolIds.get(symbol);
+		if (id == null) {
+			if (symbolCount == symbols.length) {
+				symbols = Arrays.copyOf(symbols, symbolCount * 2);
+			}
+			id = symbolCount;
+			symbols[symbolCount++] = symbol;
+			symbolIds.put(symbol, id);
+		}
+		return id;
+	}
+
+	/*
+	 * flatten the records of a complete parse into RuleParse spans
 	 */
-	private List<TokenPos> parse(JSGFRuleGrammar grammar, JSGFRule r, String[] input, int pos) {
+	private int[] flatten(int record) {
+		spansSize = 0;
+		addSpans(record);
+		return Arrays.copyOf(spans, spansSize);
+	}
 
-		// System.out.println("PARSE " + r.getClass().getName() + ' ' + pos +
-		// ' ' + r);
+	private void addSpans(int record) {
+		if (record == EMPTY) {
+			return;
+		}
+		if (spansSize + RuleParse.SPAN_SIZE > spans.length) {
+			spans = Arrays.copyOf(spans, spans.length * 2);
+		}
+		int span = spansSize;
+		spansSize += RuleParse.SPAN_SIZE;
+		System.arraycopy(arena, record, spans, span, 4);
+		if (arena[record] == RuleParse.SEQUENCE) {
+			spans[span + 1] = -1;
+			for (int rest = record; rest != EMPTY; rest = arena[rest + 4]) {
+				addSpans(arena[rest + 1]);
+			}
+		} else if (arena[record] != RuleParse.TOKEN) {
+			addSpans(arena[record + 4]);
+		}
+		spans[span + 4] = spansSize;
+	}
+
+	/*
+	 * Parse routine called recursively while traversing the Rule structure in a
+	 * depth first manner. Adds the valid parses to the results.
+	 */
+	private int parse(JSGFRuleGrammar grammar, JSGFRule r, TokenTrie input, int pos) {
 
 		if (r instanceof JSGFRuleName) {
+			Metrics.count(Metrics.Counter.RULE_NAME_CALLS);
 			return parse(grammar, (JSGFRuleName) r, input, pos);
 		}
 		if (r instanceof JSGFRuleToken) {
+			Metrics.count(Metrics.Counter.TOKEN_CALLS);
 			return parse(grammar, (JSGFRuleToken) r, input, pos);
 		}
 		if (r instanceof JSGFRuleCount) {
+			Metrics.count(Metrics.Counter.COUNT_CALLS);
 			return parse(grammar, (JSGFRuleCount) r, input, pos);
 		}
 		if (r instanceof JSGFRuleTag) {
+			Metrics.count(Metrics.Counter.TAG_CALLS);
 			return parse(grammar, (JSGFRuleTag) r, input, pos);
 		}
 		if (r instanceof JSGFRuleSequence) {
+			Metrics.count(Metrics.Counter.SEQUENCE_CALLS);
 			return parse(grammar, (JSGFRuleSequence) r, input, pos);
 		}
 		if (r instanceof JSGFRuleAlternatives) {
+			Metrics.count(Metrics.Counter.ALTERNATIVES_CALLS);
 			return parse(grammar, (JSGFRuleAlternatives) r, input, pos);
 		} else {
 			throw new IllegalStateException("ERROR UNKNOWN OBJECT " + r);
@@ -215,65 +481,69 @@ class RuleParser {
 	/*
 	 * ALTERNATIVES
 	 */
-	private List<TokenPos> parse(JSGFRuleGrammar grammar, JSGFRuleAlternatives ra, String[] input, int pos) {
-		List<TokenPos> res = new ArrayList<TokenPos>();
-		for (JSGFRule rule : ra.getRules()) {
-			List<TokenPos> p = parse(grammar, rule, input, pos);
-			if (p != null) {
-				res.addAll(p);
+	private int parse(JSGFRuleGrammar grammar, JSGFRuleAlternatives ra, TokenTrie input, int pos) {
+		// the parses of the alternatives follow each other in the results
+		int base = resultsSize;
+		int[] viable = index == null ? null : index.viableAlternatives(ra, input, pos);
+		if (viable != null) {
+			// only the alternatives that can start with the next token
+			List<JSGFRule> rules = ra.getRules();
+			Metrics.add(Metrics.Counter.ALTERNATIVES_TRIED, viable.length);
+			for (int i : viable) {
+				parse(grammar, rules.get(i), input, pos);
 			}
+			return count(base);
 		}
-		return res;
+		Metrics.add(Metrics.Counter.ALTERNATIVES_TRIED, ra.getRules().size());
+		for (JSGFRule rule : ra.getRules()) {
+			parse(grammar, rule, input, pos);
+		}
+		return count(base);
 	}
 
 	/*
 	 * RULECOUNT (e.g. [], *, or + )
 	 */
-	private List<TokenPos> parse(JSGFRuleGrammar grammar, JSGFRuleCount rc, String[] input, int pos) {
+	private int parse(JSGFRuleGrammar grammar, JSGFRuleCount rc, TokenTrie input, int pos) {
 		int rcount = rc.getCount();
-		ParsedEmptyToken empty = new ParsedEmptyToken(pos);
-		List<TokenPos> p = parse(grammar, rc.getRule(), input, pos);
-		if (p == null) {
+		int base = resultsSize;
+		int p = parse(grammar, rc.getRule(), input, pos);
+		if (p < 0) {
 			if (rcount == JSGFRuleCount.ONCE_OR_MORE) {
-				return null;
+				return -1;
 			}
-			List<TokenPos> res = new ArrayList<TokenPos>();
-			res.add(empty);
-			return res;
+			addResult(pos, EMPTY);
+			return 1;
 		}
 		if (rcount != JSGFRuleCount.ONCE_OR_MORE) {
-			p.add(empty);
+			addResult(pos, EMPTY);
 		}
 		if (rcount == JSGFRuleCount.OPTIONAL) {
-			return p;
+			return count(base);
 		}
-		for (int m = 2; m <= input.length - pos; m++) {
-			JSGFRule[] ar = new JSGFRule[m];
-			Arrays.fill(ar, rc.getRule());
-			List<TokenPos> q = parse(grammar, new JSGFRuleSequence(Arrays.asList(ar)), input, pos);
-			if (q == null) {
-				return p;
+		for (int m = 2; m <= input.getHeight(pos); m++) {
+			if (parse(grammar, Collections.nCopies(m, rc.getRule()), 0, input, pos) < 0) {
+				break;
 			}
-			p.addAll(q);
 		}
-		return p;
+		return count(base);
 	}
 
 	/*
 	 * RULE REFERENCES
 	 */
-	private List<TokenPos> parse(JSGFRuleGrammar grammar, JSGFRuleName rn, String[] input, int pos) {
+	private int parse(JSGFRuleGrammar grammar, JSGFRuleName rn, TokenTrie input, int pos) {
 		if (rn.getFullGrammarName() == null) {
 			rn.setRuleName(grammar.getName() + '.' + rn.getSimpleRuleName());
 		}
 		String simpleName = rn.getSimpleRuleName();
 		if (simpleName.equals("VOID")) {
-			return null;
+			return -1;
 		}
 		if (simpleName.equals("NULL")) {
-			List<TokenPos> res = new ArrayList<TokenPos>();
-			res.add(new ParsedRuleParse(rn, JSGFRuleName.NULL, pos));
-			return res;
+			int start = input.getDepth(pos);
+			addResult(pos, newRecord(RuleParse.RULE, symbolId(rn.getRuleName()), start, start, EMPTY));
+			return 1;
 		}
 		JSGFRule ruleref = grammar.getRule(simpleName);
 		if (rn.getFullGrammarName() != grammar.getName()) {
@@ -281,13 +551,10 @@ class RuleParser {
 		}
 		if (ruleref == null) {
 			String gname = rn.getFullGrammarName();
-			// System.out.println("gname=" + gname);
 			if (gname != null && !gname.isEmpty()) {
 				JSGFRuleGrammar RG1 = jsgfGrammar.getGrammarManager().retrieveGrammar(gname);
 				if (RG1 != null) {
-					// System.out.println("simpleName=" + simpleName);
 					ruleref = RG1.getRule(simpleName);
-					// System.out.println("ruleRef=" + ruleref);
 					grammar = RG1;
 				} else {
 					throw new IllegalStateException("ERROR: UNKNOWN GRAMMAR " + gname);
@@ -297,146 +564,140 @@ class RuleParser {
 				throw new IllegalStateException("ERROR: UNKNOWN RULE NAME " + rn.getRuleName() + ' ' + rn);
 			}
 		}
-		List<TokenPos> p = parse(grammar, ruleref, input, pos);
-		if (p == null) {
-			return null;
+		if (index != null && !index.canStart(ruleref, input, pos)) {
+			return -1;
 		}
-		List<TokenPos> res = new ArrayList<TokenPos>();
-		for (TokenPos tp : p) {
-			if (tp instanceof ParsedEmptyToken) {
-				res.add(tp);
-				continue;
-			}
-			res.add(new ParsedRuleParse(rn, (JSGFRule) tp, tp.getPos()));
+		int base = resultsSize;
+		int p = parse(grammar, ruleref, input, pos);
+		if (p < 0) {
+			return -1;
 		}
-		return res;
+		wrap(base, RuleParse.RULE, rn.getRuleName(), input, pos);
+		return p;
 	}
 
 	/*
 	 * RULESEQUENCE
 	 */
-	private List<TokenPos> parse(JSGFRuleGrammar grammar, JSGFRuleSequence rs, String[] input, int pos) {
+	private int parse(JSGFRuleGrammar grammar, JSGFRuleSequence rs, TokenTrie input, int pos) {
 		List<JSGFRule> rarry = rs.getRules();
-		if (rarry == null || rarry.size() == 0) {
-			return null;
-		}
-		List<TokenPos> p = parse(grammar, rarry.get(0), input, pos);
-		if (p == null) {
-			return null;
+		if (rarry == null) {
+			return -1;
 		}
-		List<TokenPos> res = new ArrayList<TokenPos>();
-		// System.out.println("seq sz" + p.size());
-		for (TokenPos tp : p) {
-			// System.out.println("seq " + p.get(j));
-			int nPos = tp.getPos();
-			if (rarry.size() == 1) {
-				if (tp instanceof ParsedEmptyToken) {
-					res.add(tp);
-					continue;
+		return parse(grammar, rarry, 0, input, pos);
+	}
+
+	/*
+	 * the rules of a sequence from index first on, without copying the rest
+	 */
+	private int parse(JSGFRuleGrammar grammar, List<JSGFRule> rarry, int first, TokenTrie input, int pos) {
+		if (first >= rarry.size()) {
+			return -1;
+		}
+		int base = resultsSize;
+		int p = parse(grammar, rarry.get(first), input, pos);
+		if (p < 0) {
+			return -1;
+		}
+		if (first == rarry.size() - 1) {
+			for (int i = base; i < resultsSize; i += 2) {
+				if (results[i + 1] != EMPTY) {
+					results[i + 1] = newSequence(results[i + 1], EMPTY);
 				}
-				res.add(new ParsedRuleSequence(Arrays.asList((JSGFRule) tp), tp.getPos()));
-				continue;
 			}
-			JSGFRule[] nra = Arrays.copyOfRange(rarry.toArray(new JSGFRule[rarry.size()]), 1, rarry.size());
-			JSGFRuleSequence nrs = new JSGFRuleSequence(Arrays.asList(nra));
-			// System.out.println("2parse " + nPos + nrs);
-			List<TokenPos> q = parse(grammar, nrs, input, nPos);
-			if (q == null) {
+			return p;
+		}
+		// the parses of the rest are added after those of the first rule,
+		// joined with them in place and moved down over them at the end
+		int rest = resultsSize;
+		for (int i = base; i < rest; i += 2) {
+			int tp = results[i + 1];
+			int from = resultsSize;
+			if (parse(grammar, rarry, first + 1, input, results[i]) < 0) {
 				continue;
 			}
-			// System.out.println("2 seq sz " + p.size());
-			for (TokenPos tp1 : q) {
-				// System.out.println("2 seq " + q.get(k));
-				// System.out.println("tp " + tp);
-				// System.out.println("tp1 " + tp1);
-				if (tp1 instanceof ParsedEmptyToken) {
-					res.add(tp);
-					continue;
+			for (int j = from; j < resultsSize; j += 2) {
+				int tp1 = results[j + 1];
+				if (tp1 == EMPTY) {
+					results[j + 1] = tp;
+				} else if (tp != EMPTY) {
+					// a sequence is continued, anything else starts one
+					results[j + 1] = newSequence(tp,
+							arena[tp1] == RuleParse.SEQUENCE ? tp1 : newSequence(tp1, EMPTY));
 				}
-				if (tp instanceof ParsedEmptyToken) {
-					res.add(tp1);
-					continue;
-				}
-				List<JSGFRule> ra;
-				if (tp1 instanceof JSGFRuleSequence) {
-					JSGFRuleSequence r2 = (JSGFRuleSequence) tp1;
-					List<JSGFRule> r2r = r2.getRules();
-					ra = new ArrayList<>(r2r.size() + 1);
-					ra.add((JSGFRule) tp);
-					ra.addAll(r2r);
-				} else {
-					ra = Arrays.asList(new JSGFRule[] { (JSGFRule) tp, (JSGFRule) tp1 });
-				}
-				res.add(new ParsedRuleSequence(ra, tp1.getPos()));
 			}
 		}
-		return res;
+		System.arraycopy(results, rest, results, base, resultsSize - rest);
+		resultsSize -= rest - base;
+		return count(base);
 	}
 
 	/*
 	 * TAGS
 	 */
-	private List<TokenPos> parse(JSGFRuleGrammar grammar, JSGFRuleTag rtag, String[] input, int pos) {
-		String theTag = rtag.getTag();
-		// System.out.println("tag="+theTag);
-		List<TokenPos> p = parse(grammar, rtag.getRule(), input, pos);
-		if (p == null) {
-			return null;
+	private int parse(JSGFRuleGrammar grammar, JSGFRuleTag rtag, TokenTrie input, int pos) {
+		int base = resultsSize;
+		int p = parse(grammar, rtag.getRule(), input, pos);
+		if (p < 0) {
+			return -1;
 		}
-		List<TokenPos> res = new ArrayList<TokenPos>();
-		for (TokenPos tp : p) {
-			if (tp instanceof ParsedEmptyToken) {
-				res.add(tp);
+		wrap(base, RuleParse.TAG, rtag.getTag(), input, pos);
+		return p;
+	}
+
+	/*
+	 * put the non-empty parses since base inside a rule or tag record
+	 */
+	private void wrap(int base, int kind, String symbol, TokenTrie input, int pos) {
+		int id = -1;
+		for (int i = base; i < resultsSize; i += 2) {
+			if (results[i + 1] == EMPTY) {
 				continue;
 			}
-            
-			res.add(new ParsedRuleTag((JSGFRule) tp, theTag, tp.getPos()));
+			if (id < 0) {
+				id = symbolId(symbol);
+			}
+			results[i + 1] = newRecord(kind, id, input.getDepth(pos), input.getDepth(results[i]), results[i + 1]);
 		}
-		return res;
 	}
 
 	/*
 	 * LITERAL TOKENS
 	 */
-	private List<TokenPos> parse(JSGFRuleGrammar grammar, JSGFRuleToken rt, String[] input, int pos) {
-		if (pos >= input.length) {
-			return null;
-		}
-		// System.out.println(rt.getText() + " ?= " + input[pos]);
-		// TODO: what about case sensitivity ??????
-		String tText = rt.getText().toLowerCase();
-		if (tText.equals(input[pos]) || (input[pos].equals("%")) || (input[pos].equals("*"))) {
-			List<TokenPos> res = new ArrayList<TokenPos>();
-			res.add(new ParsedRuleToken(rt.getText(), pos + 1));
-			if (input[pos].equals("*")) {
-				res.add(new ParsedRuleToken(rt.getText(), pos));
+	private int parse(JSGFRuleGrammar grammar, JSGFRuleToken rt, TokenTrie input, int pos) {
+		String tText = Tokenization.fold(rt.getText());
+		String ta[] = null;
+		int base = resultsSize;
+		int id = -1;
+		// every branch of the trie is matched separately
+		for (int next = input.getFirstChild(pos); next != TokenTrie.NONE; next = input.getNextSibling(next)) {
+			String token = input.getToken(next);
+			int end = TokenTrie.NONE;
+			if (tText.equals(token) || (token.equals("%")) || (token.equals("*"))) {
+				end = next;
+			} else if (tText.indexOf(' ') >= 0 && tText.startsWith(token)) {
+				if (ta == null) {
+					ta = tokenize(tText);
+				}
+				if (ta[0].equals(token)) {
+					end = next;
+					for (int j = 1; j < ta.length && end != TokenTrie.NONE; j++) {
+						end = input.getChild(end, ta[j]);
+					}
+				}
 			}
-			return res;
-		} else {
-			if (tText.indexOf(' ') < 0) {
-				return null;
+			if (end == TokenTrie.NONE) {
+				continue;
 			}
-			if (!tText.startsWith(input[pos])) {
-				return null;
+			if (id < 0) {
+				id = symbolId(rt.getText());
 			}
-			String ta[] = tokenize(tText);
-			int j = 0;
-			while (true) {
-				if (j >= ta.length) {
-					break;
-				}
-				if (pos >= input.length) {
-					return null;
-				}
-				if (!ta[j].equals(input[pos])) {
-					return null;
-				}
-				pos++;
-				j++;
+			int start = input.getDepth(pos);
+			addResult(end, newRecord(RuleParse.TOKEN, id, start, input.getDepth(end), EMPTY));
+			if (token.equals("*")) {
+				addResult(pos, newRecord(RuleParse.TOKEN, id, start, start, EMPTY));
 			}
-			List<TokenPos> res = new ArrayList<TokenPos>();
-			res.add(new ParsedRuleToken(rt.getText(), pos));
-			return res;
 		}
+		return id < 0 ? -1 : count(base);
 	}
 }
@@ -0,0 +1,34 @@
+package com.synesthesiam.jsgf;
+
+// --------------------------------------------------------------------------
+
+/**
+ * A sentence and the natural log of its probability under the rule weights.
+ */
+public class ScoredSentence {
+  private final String sentence;
+  private final double logProbability;
+
+  public ScoredSentence(String sentence, double logProbability) {
+    this.sentence = sentence;
+    this.logProbability = logProbability;
+  }
+
+  public String getSentence() {
+    return sentence;
+  }
+
+  public double getLogProbability() {
+    return logProbability;
+  }
+
+  public double getProbability() {
+    return Math.exp(logProbability);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s\t%.6f", sentence, logProbability);
+  }
+
+}  // class ScoredSentence
@@ -0,0 +1,137 @@
+package com.synesthesiam.jsgf;
+
+import java.util.Arrays;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Prefix tree of tokenized sentences for RuleParser.
+ *
+ * Nodes are positions in the input: the root is the start of every sentence
+ * and each edge consumes one token. A single sentence is a chain. A group of
+ * hypotheses that share prefixes shares the nodes of those prefixes, so a
+ * parse from the root explores every hypothesis at once.
+ */
+class TokenTrie {
+  public static final int ROOT = 0;
+  public static final int NONE = -1;
+
+  private String[] labels = new String[16];
+  private int[] firstChildren = new int[16];
+  private int[] nextSiblings = new int[16];
+  private int[] heights = new int[16];
+  private int[] depths = new int[16];
+  private int size = 0;
+
+  public TokenTrie() {
+    newNode(null);
+  }
+
+  public TokenTrie(String[] tokens) {
+    this();
+    add(tokens);
+  }
+
+  /**
+   * Adds a tokenized sentence.
+   *
+   * @return the node where the sentence ends
+   */
+  public int add(String[] tokens) {
+    int node = ROOT;
+    heights[ROOT] = Math.max(heights[ROOT], tokens.length);
+
+    for (int i = 0; i < tokens.length; i++) {
+      int next = getChild(node, tokens[i]);
+      if (next == NONE) {
+        next = newNode(tokens[i]);
+        nextSiblings[next] = NONE;
+        depths[next] = depths[node] + 1;
+
+        // Keep children in insertion order
+        if (firstChildren[node] == NONE) {
+          firstChildren[node] = next;
+        } else {
+          int last = firstChildren[node];
+          while (nextSiblings[last] != NONE) {
+            last = nextSiblings[last];
+          }
+          nextSiblings[last] = next;
+        }
+      }
+
+      node = next;
+      heights[node] = Math.max(heights[node], tokens.length - i - 1);
+    }
+
+    return node;
+  }
+
+  /**
+   * Gets the child of a node along a token or NONE.
+   */
+  public int getChild(int node, String token) {
+    for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+      if (labels[child].equals(token)) {
+        return child;
+      }
+    }
+
+    return NONE;
+  }
+
+  public int getFirstChild(int node) {
+    return firstChildren[node];
+  }
+
+  public int getNextSibling(int node) {
+    return nextSiblings[node];
+  }
+
+  /**
+   * Gets the token on the edge into a node.
+   */
+  public String getToken(int node) {
+    return labels[node];
+  }
+
+  /**
+   * Gets the number of tokens on the longest path below a node.
+   */
+  public int getHeight(int node) {
+    return heights[node];
+  }
+
+  /**
+   * Gets the number of tokens from the root to a node, i.e. the index of the
+   * next token of every sentence through it.
+   */
+  public int getDepth(int node) {
+    return depths[node];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  // --------------------------------------------------------------------------
+
+  private int newNode(String label) {
+    if (size == labels.length) {
+      int capacity = size * 2;
+      labels = Arrays.copyOf(labels, capacity);
+      firstChildren = Arrays.copyOf(firstChildren, capacity);
+      nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+      heights = Arrays.copyOf(heights, capacity);
+      depths = Arrays.copyOf(depths, capacity);
+    }
+
+    labels[size] = label;
+    firstChildren[size] = NONE;
+    nextSiblings[size] = NONE;
+    heights[size] = 0;
+    depths[size] = 0;
+    return size++;
+  }
+
+}  // class TokenTrie
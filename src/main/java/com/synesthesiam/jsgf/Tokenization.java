@@ -0,0 +1,117 @@
+package com.synesthesiam.jsgf;
+
+import java.util.Arrays;
+
+// --------------------------------------------------------------------------
+
+/**
+ * The whitespace-separated tokens of a text as character offsets.
+ *
+ * Tokens are not copied out of the text: each one is a [start, end) range of
+ * it, so parse results can point back into the original input. Case is
+ * folded char by char with Character.toLowerCase, which (unlike
+ * String.toLowerCase()) doesn't depend on the default locale, e.g. "I" stays
+ * "i" in a Turkish locale.
+ */
+class Tokenization {
+  private final CharSequence text;
+  private int[] offsets = new int[16];
+  private int size = 0;
+
+  public Tokenization(CharSequence text) {
+    this.text = text;
+
+    int length = text.length();
+    int start = 0;
+    while (start < length) {
+      if (isDelimiter(text.charAt(start))) {
+        start++;
+        continue;
+      }
+
+      int end = start + 1;
+      while ((end < length) && !isDelimiter(text.charAt(end))) {
+        end++;
+      }
+
+      if (2 * size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+
+      offsets[2 * size] = start;
+      offsets[(2 * size) + 1] = end;
+      size++;
+      start = end;
+    }
+  }
+
+  /**
+   * Gets the tokenized text.
+   */
+  public CharSequence getText() {
+    return text;
+  }
+
+  /**
+   * Gets the number of tokens.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Gets the offset of the first character of a token.
+   */
+  public int getStart(int index) {
+    return offsets[2 * index];
+  }
+
+  /**
+   * Gets the offset after the last character of a token.
+   */
+  public int getEnd(int index) {
+    return offsets[(2 * index) + 1];
+  }
+
+  /**
+   * Gets the case-folded tokens.
+   */
+  public String[] getTokens() {
+    String[] tokens = new String[size];
+    for (int i = 0; i < size; i++) {
+      tokens[i] = fold(text, getStart(i), getEnd(i));
+    }
+
+    return tokens;
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Folds the case of a string (the same string if it is already folded).
+   */
+  public static String fold(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      if (Character.toLowerCase(text.charAt(i)) != text.charAt(i)) {
+        return fold(text, 0, text.length());
+      }
+    }
+
+    return text;
+  }
+
+  private static String fold(CharSequence text, int start, int end) {
+    char[] chars = new char[end - start];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = Character.toLowerCase(text.charAt(start + i));
+    }
+
+    return new String(chars);
+  }
+
+  /* Delimiters of java.util.StringTokenizer */
+  private static boolean isDelimiter(char c) {
+    return (c == ' ') || (c == '\t') || (c == '\n') || (c == '\r') || (c == '\f');
+  }
+
+}  // class Tokenization
@@ -0,0 +1,422 @@
+package com.synesthesiam.jsgf;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import edu.cmu.sphinx.linguist.language.grammar.GrammarArc;
+import edu.cmu.sphinx.linguist.language.grammar.GrammarNode;
+
+// --------------------------------------------------------------------------
+
+/**
+ * Samples complete paths through a GrammarNode graph, each with the same
+ * probability, regardless of arc weights or path length. A graph with * or +
+ * cycles needs a maximum number of repeats or a maximum length.
+ *
+ * If repeats are limited, a node is counted once per combination of repeat
+ * counts of the repetitions around it, which unrolls every repetition up to
+ * the limit. The exact number of paths from every node to a final node is
+ * counted per number of words left (if the length is limited), so every
+ * path has an
+ * index in [0, getPathCount()). A path is rebuilt from its index by
+ * following, at each node, the arc whose range of indices contains it.
+ * Drawing uniform indices gives uniform paths, and drawing distinct indices
+ * samples without replacement.
+ */
+class UniformSampler {
+  private final int initial;
+  private final String[] spellings;
+  private final int[] costs;
+  private final int[][] targets;
+
+  // Paths per (node, words left), at node * lengths + words left, exactly
+  // in bigCounts if a count doesn't fit a long
+  private final int lengths;
+  private long[] counts;
+  private BigInteger[] bigCounts;
+  private final int initialWordsLeft;
+
+  /**
+   * @throws IllegalStateException if a * or + cycle isn't bounded by the
+   *         maximum number of repeats or length of the walker
+   */
+  public UniformSampler(GrammarNode initialNode, GrammarWalker walker) {
+    // The node of each state and the states its arcs lead to
+    List<GrammarNode> nodes = new ArrayList<>();
+    List<int[]> stateTargets = new ArrayList<>();
+    boolean limitRepeat = (walker.getMaxRepeat() != GrammarWalker.UNLIMITED);
+    initial = limitRepeat
+        ? addRepeatStates(initialNode, walker, nodes, stateTargets)
+        : addNodes(initialNode, nodes, stateTargets);
+
+    int numNodes = nodes.size();
+    boolean limitLength = (walker.getMaxLength() != GrammarWalker.UNLIMITED);
+    lengths = limitLength ? (walker.getMaxLength() + 1) : 1;
+    spellings = new String[numNodes];
+    costs = new int[numNodes];
+    targets = stateTargets.toArray(new int[0][]);
+    boolean[] finals = new boolean[numNodes];
+
+    for (int u = 0; u < numNodes; u++) {
+      GrammarNode node = nodes.get(u);
+      finals[u] = node.isFinalNode();
+      spellings[u] = node.isFinalNode() ? null : GrammarWalker.getSpelling(node);
+      costs[u] = (limitLength && (spellings[u] != null)) ? 1 : 0;
+    }
+
+    // Arcs into a word use up one of the words left, so only the other arcs
+    // need their targets counted first
+    int[] order = getCountingOrder(nodes, limitRepeat, limitLength);
+    try {
+      counts = countPaths(order, finals);
+    } catch (ArithmeticException ex) {
+      countBigPaths(order, finals);
+    }
+
+    initialWordsLeft = (lengths - 1) - costs[initial];
+  }
+
+  /**
+   * Gets the number of complete paths within the length limit (the number
+   * of sentences, counting a sentence once per way to produce it).
+   */
+  public BigInteger getPathCount() {
+    return getCount(initial, initialWordsLeft);
+  }
+
+  /**
+   * Rebuilds the sentence of the path with an index in [0, getPathCount()).
+   */
+  public String getSentence(BigInteger index) {
+    List<String> words = new ArrayList<>();
+    int u = initial;
+    int wordsLeft = initialWordsLeft;
+
+    while (targets[u].length > 0) {
+      if (spellings[u] != null) {
+        words.add(spellings[u]);
+      }
+
+      // Paths through the arcs are numbered in arc order
+      int next = -1;
+      for (int v : targets[u]) {
+        BigInteger count = getCount(v, wordsLeft - costs[v]);
+        if (index.compareTo(count) < 0) {
+          next = v;
+          break;
+        }
+
+        index = index.subtract(count);
+      }
+
+      if (next < 0) {
+        throw new IllegalArgumentException("Path index out of range");
+      }
+
+      wordsLeft -= costs[next];
+      u = next;
+    }
+
+    return String.join(" ", words);
+  }
+
+  /**
+   * Generates sentences of independent uniform random paths. The iterator
+   * never ends unless there are no paths.
+   */
+  public Iterator<String> uniform(Random randomizer) {
+    BigInteger pathCount = getPathCount();
+    return new Iterator<String>() {
+      @Override
+      public boolean hasNext() {
+        return pathCount.signum() > 0;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        return getSentence(randomBelow(pathCount, randomizer));
+      }
+    };
+  }
+
+  /**
+   * Generates sentences of independent uniform random paths, skipping paths
+   * that were drawn before. The iterator ends after every path was drawn.
+   */
+  public Iterator<String> distinctPaths(Random randomizer) {
+    BigInteger pathCount = getPathCount();
+    return new Iterator<String>() {
+      private final Set<BigInteger> drawn = new HashSet<>();
+
+      @Override
+      public boolean hasNext() {
+        return pathCount.compareTo(BigInteger.valueOf(drawn.size())) > 0;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        BigInteger index;
+        do {
+          index = randomBelow(pathCount, randomizer);
+        } while (!drawn.add(index));
+
+        return getSentence(index);
+      }
+    };
+  }
+
+  /**
+   * Generates the sentence of every path once, in uniform random order
+   * (sampling without replacement). A shuffle of all indices is done lazily:
+   * only the indices it has swapped are stored, so drawing n paths takes
+   * O(n) time and memory however many paths there are.
+   */
+  public Iterator<String> unique(Random randomizer) {
+    BigInteger pathCount = getPathCount();
+    return new Iterator<String>() {
+      private final Map<BigInteger, BigInteger> swapped = new HashMap<>();
+      private BigInteger drawn = BigInteger.ZERO;
+
+      @Override
+      public boolean hasNext() {
+        return drawn.compareTo(pathCount) < 0;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        // Swap a random index from [drawn, pathCount) into position drawn
+        BigInteger position =
+            drawn.add(randomBelow(pathCount.subtract(drawn), randomizer));
+        BigInteger index = swapped.getOrDefault(position, position);
+        swapped.put(position, swapped.getOrDefault(drawn, drawn));
+        swapped.remove(drawn);
+        drawn = drawn.add(BigInteger.ONE);
+
+        return getSentence(index);
+      }
+    };
+  }
+
+  // --------------------------------------------------------------------------
+
+  /* Adds a state per node; returns the initial state */
+  private static int addNodes(GrammarNode initialNode, List<GrammarNode> nodes,
+      List<int[]> targets) {
+    nodes.addAll(GrammarWalker.postOrder(initialNode));
+    Map<GrammarNode, Integer> ids = new IdentityHashMap<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      ids.put(nodes.get(i), i);
+    }
+
+    for (GrammarNode node : nodes) {
+      // A final node ends the sentence
+      GrammarArc[] arcs = node.isFinalNode() ? new GrammarArc[0] : node.getSuccessors();
+      int[] arcTargets = new int[arcs.length];
+      for (int i = 0; i < arcs.length; i++) {
+        arcTargets[i] = ids.get(arcs[i].getGrammarNode());
+      }
+
+      targets.add(arcTargets);
+    }
+
+    return ids.get(initialNode);
+  }
+
+  /*
+   * Adds a state per node and repeat counts reachable within the repeat
+   * limit, dropping arcs that go around a repetition too often; returns the
+   * initial state.
+   */
+  private static int addRepeatStates(GrammarNode initialNode, GrammarWalker walker,
+      List<GrammarNode> nodes, List<int[]> targets) {
+    GrammarWalker.BackArcs backArcs = walker.getBackArcs(initialNode);
+    int maxRepeat = walker.getMaxRepeat();
+    Map<GrammarNode, Map<String, Integer>> ids = new IdentityHashMap<>();
+    List<int[]> repeats = new ArrayList<>();
+
+    int initial = getState(initialNode,
+        backArcs.enter(null, null, initialNode, false, maxRepeat), ids, nodes, repeats);
+
+    // Breadth-first, so the list of states grows while it is walked
+    for (int u = 0; u < nodes.size(); u++) {
+      GrammarNode node = nodes.get(u);
+      GrammarArc[] arcs = node.isFinalNode() ? new GrammarArc[0] : node.getSuccessors();
+      int[] arcTargets = new int[arcs.length];
+      int numTargets = 0;
+
+      for (GrammarArc arc : arcs) {
+        GrammarNode next = arc.getGrammarNode();
+        int[] nextRepeats = backArcs.enter(
+            node, repeats.get(u), next, backArcs.arcs.contains(arc), maxRepeat);
+        if (nextRepeats != null) {
+          arcTargets[numTargets++] = getState(next, nextRepeats, ids, nodes, repeats);
+        }
+      }
+
+      targets.add(Arrays.copyOf(arcTargets, numTargets));
+    }
+
+    return initial;
+  }
+
+  private static int getState(GrammarNode node, int[] nodeRepeats,
+      Map<GrammarNode, Map<String, Integer>> ids, List<GrammarNode> nodes,
+      List<int[]> repeats) {
+    Map<String, Integer> nodeIds = ids.computeIfAbsent(node, key -> new HashMap<>());
+    String key = Arrays.toString(nodeRepeats);
+    Integer id = nodeIds.get(key);
+    if (id == null) {
+      id = nodes.size();
+      nodeIds.put(key, id);
+      nodes.add(node);
+      repeats.add(nodeRepeats);
+    }
+
+    return id;
+  }
+
+  /* Counts in the given order, per words left; throws if a count overflows */
+  private long[] countPaths(int[] order, boolean[] finals) {
+    long[] counts = new long[order.length * lengths];
+    for (int wordsLeft = 0; wordsLeft < lengths; wordsLeft++) {
+      for (int u : order) {
+        long count = finals[u] ? 1 : 0;
+        for (int v : targets[u]) {
+          int nextWordsLeft = wordsLeft - costs[v];
+          if (nextWordsLeft >= 0) {
+            count = Math.addExact(count, counts[(v * lengths) + nextWordsLeft]);
+          }
+        }
+
+        counts[(u * lengths) + wordsLeft] = count;
+      }
+    }
+
+    return counts;
+  }
+
+  private void countBigPaths(int[] order, boolean[] finals) {
+    bigCounts = new BigInteger[order.length * lengths];
+    for (int wordsLeft = 0; wordsLeft < lengths; wordsLeft++) {
+      for (int u : order) {
+        BigInteger count = finals[u] ? BigInteger.ONE : BigInteger.ZERO;
+        for (int v : targets[u]) {
+          count = count.add(getCount(v, wordsLeft - costs[v]));
+        }
+
+        bigCounts[(u * lengths) + wordsLeft] = count;
+      }
+    }
+  }
+
+  /* Orders the nodes so that the targets of arcs into wordless nodes come first */
+  private int[] getCountingOrder(List<GrammarNode> nodes, boolean limitRepeat,
+      boolean limitLength) {
+    // Iterative DFS over those arcs with white (0), grey (1), black (2) nodes
+    int[] order = new int[nodes.size()];
+    int ordered = 0;
+    int[] states = new int[nodes.size()];
+    Deque<Integer> stack = new ArrayDeque<>();
+    Deque<Integer> arcIndexes = new ArrayDeque<>();
+
+    for (int root = 0; root < nodes.size(); root++) {
+      if (states[root] != 0) {
+        continue;
+      }
+
+      stack.push(root);
+      arcIndexes.push(0);
+      states[root] = 1;
+
+      while (!stack.isEmpty()) {
+        int u = stack.peek();
+        int arcIndex = arcIndexes.pop();
+        if (arcIndex >= targets[u].length) {
+          states[u] = 2;
+          order[ordered++] = stack.pop();
+          continue;
+        }
+
+        arcIndexes.push(arcIndex + 1);
+        int v = targets[u][arcIndex];
+        if (costs[v] > 0) {
+          continue;
+        }
+
+        if (states[v] == 0) {
+          states[v] = 1;
+          stack.push(v);
+          arcIndexes.push(0);
+        } else if (states[v] == 1) {
+          // Back edge: the cycle can repeat without adding words
+          List<GrammarNode> cycle = new ArrayList<>();
+          for (int stackNode : stack) {
+            cycle.add(0, nodes.get(stackNode));
+            if (stackNode == v) {
+              break;
+            }
+          }
+
+          if (!limitRepeat && !limitLength) {
+            cycle = GrammarWalker.findCycle(nodes.get(initial));
+            throw new IllegalStateException(String.format(
+                "Uniform sampling needs --max-repeat or --max-length for unbounded repetition (* or +) through \"%s\"",
+                GrammarWalker.describeCycle(cycle)));
+          }
+
+          // --max-length doesn't end a repetition without words
+          throw new IllegalStateException(String.format(
+              "Uniform sampling needs --max-repeat for repetition (* or +) without words through \"%s\"",
+              GrammarWalker.describeCycle(cycle)));
+        }
+      }
+    }
+
+    return order;
+  }
+
+  private BigInteger getCount(int node, int wordsLeft) {
+    if (wordsLeft < 0) {
+      return BigInteger.ZERO;
+    }
+
+    int index = (node * lengths) + wordsLeft;
+    return (bigCounts != null) ? bigCounts[index] : BigInteger.valueOf(counts[index]);
+  }
+
+  /* Uniform in [0, bound) by rejection from the smallest enclosing power of two */
+  private static BigInteger randomBelow(BigInteger bound, Random randomizer) {
+    int bits = bound.subtract(BigInteger.ONE).bitLength();
+    BigInteger value;
+    do {
+      value = new BigInteger(bits, randomizer);
+    } while (value.compareTo(bound) >= 0);
+
+    return value;
+  }
+
+}  // class UniformSampler